@@ -1,5 +1,6 @@
 module onethreeseven.common {
     requires java.desktop;
+    requires transitive java.management;
 
     exports onethreeseven.common;
 
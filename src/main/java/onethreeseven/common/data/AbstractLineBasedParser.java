@@ -1,10 +1,24 @@
 package onethreeseven.common.data;
 
+import onethreeseven.common.util.CharSlice;
 import onethreeseven.common.util.FileUtil;
+import onethreeseven.common.util.LineReader;
+import onethreeseven.common.util.TerminatorMatcher;
 import java.io.*;
-import java.nio.charset.Charset;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
 import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
 
 /**
  * @author Luke Bermingham
@@ -16,9 +30,31 @@ import java.util.function.Consumer;
  */
 public abstract class AbstractLineBasedParser<T> {
 
+    private static final int CHUNKS_PER_THREAD = 4;
+    private static final long MIN_CHUNK_SIZE = 1 << 20;
+    private static final String GZIP_EXTENSION = "gz";
+    private static final int BATCH_CHARS = 1 << 15;
+    private static final int BATCHES_PER_CONSUMER = 4;
+
     protected char[][] lineTerminators = null;
     protected int nLinesToSkip = 0;
+    protected boolean memoryMapped = false;
+    protected int parallelism = 1;
     protected Consumer<Double> progressListener;
+    protected ParseMetrics metrics = null;
+    protected boolean skipBadLines = false;
+    protected int pipelineConsumers = 0;
+
+    private final CharSlice decodedLine = new CharSlice();
+    private char[][] compiledFrom = null;
+    private TerminatorMatcher charTerminators = null;
+    private TerminatorMatcher byteTerminators = null;
+    private MetricsRecorder recorder = null;
+    //made once so parsing a line with the metrics on does not make garbage
+    private final Function<CharSequence, Void> lineParser = line -> {
+        parseLine(line);
+        return null;
+    };
 
     public AbstractLineBasedParser(){
         progressListener = getDefaultProgressListener();
@@ -27,35 +63,39 @@ public abstract class AbstractLineBasedParser<T> {
     /**
      * Parse some input resolve a buffered stream into our output format.
      * @param br to read resolve
-     * @param streamLength the length of the stream, or -1 if the size is unknown.
+     * @param streamLength the length of the stream in bytes, or -1 if the size is unknown. Progress counts the
+     * UTF-8 bytes of the lines read, so it matches the length of a UTF-8 file.
      * @throws IOException When file cannot be found, or stream cannot be closed.
      * @return A collection of trajectories, or null if the stream could not be read.
      */
     public T parse(BufferedReader br, double streamLength) throws IOException {
-        String line;
-        final Charset charset = Charset.forName("UTF-8");
-        double processed = 0;
-
+        if (pipelineConsumers > 0) {
+            return parsePipelined(br, streamLength);
+        }
+        final ProgressTracker progress = new ProgressTracker(progressListener, streamLength);
+        long reported = 0;
         int linesSkipped = 0;
-        StringBuilder sb = new StringBuilder();
 
-        //READING
-        while ((line = (lineTerminators == null) ?
-                br.readLine() :
-                FileUtil.readUntil(br, lineTerminators, sb, false)) != null) {
+        compileTerminators();
+        LineReader reader = new LineReader(br, charTerminators, false);
+        startRecording();
 
-            processed += line.getBytes(charset).length;
-            //output progress to the listener
-            if (progressListener != null) {
-                progressListener.accept(processed / streamLength);
+        //READING
+        while (reader.next()) {
+            //output progress to the listener, in bytes like the stream length
+            if (reader.consumedBytes() - reported >= ProgressTracker.REPORT_INTERVAL) {
+                report(progress, reader.consumedBytes() - reported);
+                reported = reader.consumedBytes();
             }
             if (nLinesToSkip != linesSkipped) {
                 linesSkipped++;
+                skippedLine();
             } else {
                 //PARSING
-                parseLine(line);
+                handleLine(reader.line());
             }
         }
+        report(progress, reader.consumedBytes() - reported);
 
         if (br != null) {
             br.close();
@@ -65,12 +105,30 @@ public abstract class AbstractLineBasedParser<T> {
         return done();
     }
 
+    /**
+     * Parse a file. Files with the extension "gz" are inflated on a separate thread whilst being parsed,
+     * their lines go to {@link #parseLine(byte[], int, int)} and progress is reported against the compressed size.
+     * Other files are read according to {@link #setParallelism(int)} and {@link #setMemoryMapped(boolean)}.
+     * @param dataset The file to parse.
+     * @return The output of parsing.
+     * @throws IOException If the file cannot be read.
+     */
     public T parse(File dataset) throws IOException {
 
         if(!isOkayToRead(dataset)){
             throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
         }
 
+        if(isCompressed(dataset)){
+            return parseCompressed(dataset, new ProgressTracker(progressListener, dataset.length()));
+        }
+        if(parallelism > 1){
+            return parseParallel(dataset);
+        }
+        if(memoryMapped){
+            return parseMapped(dataset, new ProgressTracker(progressListener, dataset.length()));
+        }
+
         FileReader fr;
         BufferedReader br;
 
@@ -86,14 +144,726 @@ public abstract class AbstractLineBasedParser<T> {
         return output;
     }
 
+    /**
+     * A run of lines copied out of the reader, one slot of the pipeline's ring.
+     */
+    private static final class LineBatch {
+        private char[] chars = new char[BATCH_CHARS];
+        private int[] starts = new int[256];
+        private int[] lengths = new int[256];
+        private int nLines = 0;
+        private int nChars = 0;
+        private int skipped = 0;
+        private long consumed = 0;
+
+        void clear() {
+            nLines = 0;
+            nChars = 0;
+            skipped = 0;
+            consumed = 0;
+        }
+
+        void add(CharSlice line) {
+            int len = line.length();
+            if (nChars + len > chars.length) {
+                chars = Arrays.copyOf(chars, Math.max(nChars + len, chars.length * 2));
+            }
+            if (nLines == starts.length) {
+                starts = Arrays.copyOf(starts, nLines * 2);
+                lengths = Arrays.copyOf(lengths, nLines * 2);
+            }
+            System.arraycopy(line.array(), line.offset(), chars, nChars, len);
+            starts[nLines] = nChars;
+            lengths[nLines] = len;
+            nLines++;
+            nChars += len;
+        }
+
+        boolean isFull() {
+            return nChars >= BATCH_CHARS;
+        }
+    }
+
+    /**
+     * Parse a stream with reading and parsing on different threads (see {@link #setPipelined(int)}).
+     * A reader thread splits the stream into lines and copies them, in batches, into a ring of reused
+     * buffers; consumer threads take the batches and pass the lines to {@link #parseLine(CharSequence)}.
+     * @param br The stream to parse.
+     * @param streamLength The length of the stream, or -1 if the size is unknown.
+     * @return The output of parsing.
+     * @throws IOException If the stream cannot be read.
+     */
+    private T parsePipelined(BufferedReader br, double streamLength) throws IOException {
+        if (pipelineConsumers > 1) {
+            checkChunkingSupported();
+        }
+        final ProgressTracker progress = new ProgressTracker(progressListener, streamLength);
+        final BufferRing<LineBatch> ring = new BufferRing<>(pipelineConsumers * BATCHES_PER_CONSUMER + 1, LineBatch::new);
+        compileTerminators();
+        final LineReader lineReader = new LineReader(br, charTerminators, false);
+        final String threadSuffix = String.valueOf(System.currentTimeMillis());
+
+        Thread reader = new Thread(() -> {
+            Throwable error = null;
+            try {
+                int linesSkipped = 0;
+                long reported = 0;
+                LineBatch batch = ring.claim();
+                batch.clear();
+                while (lineReader.next()) {
+                    if (linesSkipped != nLinesToSkip) {
+                        linesSkipped++;
+                        batch.skipped++;
+                        continue;
+                    }
+                    batch.add(lineReader.line());
+                    if (batch.isFull()) {
+                        batch.consumed = lineReader.consumedBytes() - reported;
+                        reported = lineReader.consumedBytes();
+                        ring.publish(batch);
+                        batch = ring.claim();
+                        batch.clear();
+                    }
+                }
+                batch.consumed = lineReader.consumedBytes() - reported;
+                ring.publish(batch);
+            } catch (InterruptedException ignore) {
+                //a consumer failed
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            } finally {
+                ring.finish(error);
+            }
+        }, "Pipelined-Parser-Reader-" + threadSuffix);
+        reader.setDaemon(true);
+        reader.start();
+
+        //one consumer keeps the lines in order, otherwise each consumer gets its own parser
+        List<AbstractLineBasedParser<T>> consumers = new ArrayList<>(pipelineConsumers);
+        if (pipelineConsumers == 1) {
+            consumers.add(this);
+        } else {
+            for (int i = 0; i < pipelineConsumers; i++) {
+                AbstractLineBasedParser<T> consumer = newChunkParser();
+                copySettingsTo(consumer);
+                consumers.add(consumer);
+            }
+        }
+        //make every thread before starting any, so the first consumer to fail can stop all the others
+        final List<Thread> threads = new ArrayList<>(consumers.size() + 1);
+        threads.add(reader);
+        final AtomicReference<Throwable> firstFailure = new AtomicReference<>();
+        List<CompletableFuture<T>> outputs = new ArrayList<>(pipelineConsumers);
+        for (int i = 0; i < consumers.size(); i++) {
+            final AbstractLineBasedParser<T> consumer = consumers.get(i);
+            final CompletableFuture<T> output = new CompletableFuture<>();
+            outputs.add(output);
+            Thread thread = new Thread(() -> {
+                try {
+                    output.complete(consumer.consumeBatches(ring, progress));
+                } catch (Throwable t) {
+                    if (firstFailure.compareAndSet(null, t)) {
+                        //stop the reader and the other consumers, they might be waiting on the ring
+                        for (Thread other : threads) {
+                            if (other != Thread.currentThread()) {
+                                other.interrupt();
+                            }
+                        }
+                    }
+                    output.completeExceptionally(t);
+                }
+            }, "Pipelined-Parser-Consumer-" + i + "-" + threadSuffix);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+
+        try {
+            for (int i = 1; i < threads.size(); i++) {
+                threads.get(i).start();
+            }
+            //wait for every consumer, so none is left running once this returns
+            for (int i = 1; i < threads.size(); i++) {
+                threads.get(i).join();
+            }
+            Throwable failed = firstFailure.get();
+            if (failed instanceof IOException) {
+                throw (IOException) failed;
+            } else if (failed instanceof RuntimeException) {
+                throw (RuntimeException) failed;
+            } else if (failed instanceof Error) {
+                throw (Error) failed;
+            } else if (failed != null) {
+                throw new IOException("Could not parse the stream.", failed);
+            }
+
+            T combined = null;
+            for (CompletableFuture<T> output : outputs) {
+                T next = output.join();
+                combined = (combined == null) ? next : combine(combined, next);
+            }
+            Throwable error = ring.getError();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException("Could not read the stream.", error);
+            }
+            return combined;
+        } catch (InterruptedException e) {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted whilst parsing the stream.");
+        } finally {
+            reader.interrupt();
+            br.close();
+        }
+    }
+
+    /**
+     * Parse the batches of lines coming through a pipeline until the reader is finished.
+     * @param ring Where the batches come from.
+     * @param progress Where to report progress.
+     * @return The output of parsing.
+     * @throws InterruptedException If interrupted whilst waiting for a batch.
+     */
+    private T consumeBatches(BufferRing<LineBatch> ring, ProgressTracker progress) throws InterruptedException {
+        final CharSlice line = new CharSlice();
+        LineBatch batch;
+        startRecording();
+        while ((batch = ring.take()) != null) {
+            for (int i = 0; i < batch.skipped; i++) {
+                skippedLine();
+            }
+            for (int i = 0; i < batch.nLines; i++) {
+                handleLine(line.set(batch.chars, batch.starts[i], batch.lengths[i]));
+            }
+            report(progress, batch.consumed);
+            ring.release(batch);
+        }
+        return done();
+    }
+
+    /**
+     * Parse a file by memory-mapping it and finding the line terminators in the raw bytes.
+     * Each line is passed to {@link #parseLine(byte[], int, int)} without being decoded first.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @param progress Where to report how many bytes have been consumed.
+     * @return The output of parsing.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private T parseMapped(File dataset, ProgressTracker progress) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ)) {
+            return parseMappedRange(channel, 0, channel.size(), nLinesToSkip, compileByteTerminators(), progress);
+        }
+    }
+
+    /**
+     * Parse a whole file at the byte level, inflating it first if it is gzip compressed.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @param progress Where to report how many (compressed) bytes have been consumed.
+     * @return The output of parsing.
+     * @throws IOException If the file cannot be read.
+     */
+    T parseFile(File dataset, ProgressTracker progress) throws IOException {
+        if(isCompressed(dataset)){
+            return parseCompressed(dataset, progress);
+        }
+        return parseMapped(dataset, progress);
+    }
+
+    /**
+     * Parse the contents of a file which has already been read into memory.
+     * @param bytes The UTF-8 encoded contents.
+     * @param progress Where to report how many bytes have been consumed.
+     * @return The output of parsing.
+     * @throws IOException Not expected, the bytes are already in memory.
+     */
+    T parseBytes(byte[] bytes, ProgressTracker progress) throws IOException {
+        try (ByteLineScanner scanner = new ByteLineScanner(ByteLineScanner.wrap(bytes), compileByteTerminators())) {
+            return parseScanned(scanner, nLinesToSkip, progress, scanner::consumed);
+        }
+    }
+
+    /**
+     * Parse the lines in a region of a memory-mapped file, the region must begin at the start of a line.
+     * @param channel The file to read, it is not closed.
+     * @param start The first byte of the region.
+     * @param end One past the last byte of the region.
+     * @param linesToSkip How many lines to skip at the start of the region.
+     * @param matcher The compiled line terminators, or null for the defaults.
+     * @param progress Where to report how many bytes have been consumed.
+     * @return The output of parsing.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private T parseMappedRange(FileChannel channel, long start, long end, int linesToSkip,
+                               TerminatorMatcher matcher, ProgressTracker progress) throws IOException {
+        try (ByteLineScanner scanner = new ByteLineScanner(ByteLineScanner.mapped(channel, start, end), matcher)) {
+            return parseScanned(scanner, linesToSkip, progress, scanner::consumed);
+        }
+    }
+
+    /**
+     * Parse a gzip compressed file. The file is inflated on a separate thread which hands blocks
+     * to this one through a small ring of reused buffers (see {@link InflatingBlockSource}),
+     * so decompressing and parsing happen at the same time. Lines are passed to
+     * {@link #parseLine(byte[], int, int)} and progress is measured in compressed bytes read.
+     * @param dataset The file to parse, assumed to be UTF-8 once inflated.
+     * @param progress Where to report how many compressed bytes have been consumed.
+     * @return The output of parsing.
+     * @throws IOException If the file cannot be read or is not valid gzip.
+     */
+    private T parseCompressed(File dataset, ProgressTracker progress) throws IOException {
+        try (InflatingBlockSource source = new InflatingBlockSource(dataset);
+             ByteLineScanner scanner = new ByteLineScanner(source, compileByteTerminators())) {
+            return parseScanned(scanner, nLinesToSkip, progress, source::getCompressedPosition);
+        }
+    }
+
+    /**
+     * Pass every line from a scanner to {@link #parseLine(byte[], int, int)}.
+     * @param scanner Where the lines come from.
+     * @param linesToSkip How many lines to skip at the start.
+     * @param progress Where to report progress.
+     * @param position How far through the input the scanner is, in the same units as the progress.
+     * @return The output of parsing.
+     * @throws IOException If the scanner cannot read.
+     */
+    private T parseScanned(ByteLineScanner scanner, int linesToSkip, ProgressTracker progress,
+                           LongSupplier position) throws IOException {
+        int linesSkipped = 0;
+        long reported = 0;
+        startRecording();
+
+        //READING
+        while (scanner.next()) {
+            //output progress to the listener
+            if (position.getAsLong() - reported >= ProgressTracker.REPORT_INTERVAL) {
+                report(progress, position.getAsLong() - reported);
+                reported = position.getAsLong();
+            }
+            if (linesToSkip != linesSkipped) {
+                linesSkipped++;
+                skippedLine();
+            } else {
+                //PARSING
+                handleLine(scanner.bytes(), scanner.offset(), scanner.length());
+            }
+        }
+        report(progress, position.getAsLong() - reported);
+
+        //FINALISING
+        return done();
+    }
+
+    /**
+     * Parse only the lines which have been appended to a file since it was last parsed this way.
+     * The checkpoint is kept next to the file, see {@link ParseCheckpoint#sidecarFor(File)}.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @return The output of parsing the new lines.
+     * @throws IOException If the file or its checkpoint cannot be read, or the checkpoint cannot be written.
+     */
+    public T parseIncremental(File dataset) throws IOException {
+        return parseIncremental(dataset, ParseCheckpoint.load(ParseCheckpoint.sidecarFor(dataset)));
+    }
+
+    /**
+     * Parse the lines of a file from a checkpoint onwards, then move the checkpoint past them and commit it.
+     * Only complete lines are parsed, a last line without a terminator is left until the next call
+     * in case it is still being written. Header lines (see {@link #setnLinesToSkip(int)}) are only skipped
+     * at the start of the file. If the file is now shorter than the checkpoint it is assumed to have been
+     * replaced and is parsed from the beginning again. Lines go to {@link #parseLine(byte[], int, int)}.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @param checkpoint Where the last parse got up to, it is updated and committed once {@link #done()} returns.
+     * @return The output of parsing the new lines.
+     * @throws IOException If the file cannot be read or the checkpoint cannot be committed.
+     */
+    public T parseIncremental(File dataset, ParseCheckpoint checkpoint) throws IOException {
+        if(!isOkayToRead(dataset)){
+            throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
+        }
+        parseNewLines(dataset, checkpoint, progressListener);
+        T output = done();
+        checkpoint.commit();
+        return output;
+    }
+
+    /**
+     * Follow a file that is being appended to, like "tail -f". New lines are parsed as they appear
+     * (see {@link #parseIncremental(File, ParseCheckpoint)}) and the checkpoint is committed after
+     * each batch, so following can be stopped and resumed later without parsing any line twice.
+     * This blocks until told to stop or the thread is interrupted, then returns the output of {@link #done()}.
+     * @param dataset The file to follow, assumed to be UTF-8 encoded.
+     * @param checkpoint Where to start following from.
+     * @param pollMillis How long to wait before looking again when there is nothing new.
+     * @param keepFollowing Checked before every poll, following stops once it returns false.
+     * @return The output of parsing every line seen whilst following.
+     * @throws IOException If the file cannot be read or the checkpoint cannot be committed.
+     */
+    public T follow(File dataset, ParseCheckpoint checkpoint, long pollMillis,
+                    BooleanSupplier keepFollowing) throws IOException {
+        if(!isOkayToRead(dataset)){
+            throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
+        }
+        if (pollMillis < 1) {
+            throw new IllegalArgumentException("Poll interval must be at least one millisecond.");
+        }
+        while (keepFollowing.getAsBoolean() && !Thread.currentThread().isInterrupted()) {
+            if (parseNewLines(dataset, checkpoint, null)) {
+                checkpoint.commit();
+            } else {
+                try {
+                    Thread.sleep(pollMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        return done();
+    }
+
+    /**
+     * Pass each complete line after the checkpoint to {@link #parseLine(byte[], int, int)},
+     * then move the checkpoint (in memory) to just after the last of them.
+     * @param dataset The file to read.
+     * @param checkpoint Where to start reading from.
+     * @param listener Where to report progress through the new bytes, may be null.
+     * @return True if any new lines were found.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private boolean parseNewLines(File dataset, ParseCheckpoint checkpoint, Consumer<Double> listener) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ)) {
+            final long end = channel.size();
+            if (end < checkpoint.getOffset()) {
+                //the file has been truncated or replaced, start again
+                checkpoint.reset();
+            }
+            final long start = checkpoint.getOffset();
+            if (start == end) {
+                return false;
+            }
+            final ProgressTracker progress = new ProgressTracker(listener, end - start);
+            long lines = checkpoint.getLineCount();
+            long committed = 0;
+            long reported = 0;
+            boolean pendingLF = checkpoint.isPendingLF();
+
+            try (ByteLineScanner scanner = new ByteLineScanner(ByteLineScanner.mapped(channel, start, end),
+                    compileByteTerminators())) {
+                scanner.setPendingLF(pendingLF);
+                startRecording();
+                //READING, stopping short of a line which has not been finished yet
+                while (scanner.next() && scanner.terminated()) {
+                    //output progress to the listener
+                    if (scanner.consumed() - reported >= ProgressTracker.REPORT_INTERVAL) {
+                        report(progress, scanner.consumed() - reported);
+                        reported = scanner.consumed();
+                    }
+                    if (lines >= nLinesToSkip) {
+                        //PARSING
+                        handleLine(scanner.bytes(), scanner.offset(), scanner.length());
+                    } else {
+                        skippedLine();
+                    }
+                    lines++;
+                    committed = scanner.consumed();
+                    pendingLF = scanner.isPendingLF();
+                }
+            }
+            report(progress, committed - reported);
+            checkpoint.advance(start + committed, lines, pendingLF);
+            return committed > 0;
+        }
+    }
+
+    /**
+     * Parse a file in parallel. The file is memory-mapped and cut into chunks that begin on line boundaries,
+     * each chunk is parsed by its own parser (see {@link #newChunkParser()}) on a fork-join pool,
+     * then the chunk outputs are merged in file order using {@link #combine(Object, Object)}.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @return The combined output of all chunks.
+     * @throws IOException If the file cannot be mapped.
+     */
+    private T parseParallel(File dataset) throws IOException {
+        //the parallelism field may have been set by a subclass, so check before any chunk is parsed
+        checkChunkingSupported();
+        final long fileLength = dataset.length();
+        final TerminatorMatcher matcher = compileByteTerminators();
+        final ProgressTracker progress = new ProgressTracker(progressListener, fileLength);
+
+        try (FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ)) {
+            long nChunks = Math.max(1, Math.min((long) parallelism * CHUNKS_PER_THREAD, fileLength / MIN_CHUNK_SIZE));
+            long[] bounds = lineAlignedBounds(channel, matcher, fileLength, (int) nChunks);
+
+            ForkJoinPool pool = new ForkJoinPool(parallelism);
+            try {
+                return pool.invoke(new ChunkTask(channel, matcher, bounds, 0, bounds.length - 1, progress));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            } finally {
+                pool.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Cut a file into roughly equal sized pieces which begin and end on line boundaries.
+     * @param channel The file, it is not closed.
+     * @param matcher The compiled line terminators, or null for the defaults.
+     * @param fileLength The length of the file.
+     * @param nPieces How many pieces to cut it into.
+     * @return The nPieces + 1 boundaries, piece i is [bounds[i], bounds[i + 1]), some may be empty.
+     * @throws IOException If the file cannot be read.
+     */
+    private static long[] lineAlignedBounds(FileChannel channel, TerminatorMatcher matcher,
+                                            long fileLength, int nPieces) throws IOException {
+        long[] bounds = new long[nPieces + 1];
+        for (int i = 1; i < nPieces; i++) {
+            long position = Math.max(bounds[i - 1], fileLength * i / nPieces);
+            bounds[i] = ByteLineScanner.nextLineStart(channel, matcher, position, fileLength);
+        }
+        bounds[nPieces] = fileLength;
+        return bounds;
+    }
+
+    /**
+     * Plan how to split a file between several workers (threads, processes or machines),
+     * each of which parses its own range using {@link #parse(File, long, long)}.
+     * The ranges are balanced by size and already aligned to the start of a line.
+     * @param dataset The file to split.
+     * @param nSplits How many ranges to make.
+     * @return The nSplits + 1 boundaries, range i being [bounds[i], bounds[i + 1]).
+     * A range can be empty if the file has fewer lines than there are splits.
+     * @throws IOException If the file cannot be read.
+     */
+    public long[] planSplits(File dataset, int nSplits) throws IOException {
+        if(!isOkayToRead(dataset)){
+            throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
+        }
+        if (nSplits < 1) {
+            throw new IllegalArgumentException("There must be at least one split.");
+        }
+        try (FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ)) {
+            return lineAlignedBounds(channel, compileByteTerminators(), channel.size(), nSplits);
+        }
+    }
+
+    /**
+     * Parse only the lines belonging to a byte range of a file, so a file can be shared between workers.
+     * The range does not need to be aligned to lines: a line belongs to the range it starts in,
+     * so a partial line at the start of the range is skipped (the previous range finishes it) and
+     * the line straddling the end of the range is parsed in full. Covering a file with adjacent
+     * ranges therefore parses every line exactly once. Header lines (see {@link #setnLinesToSkip(int)})
+     * are only skipped by the range starting at byte 0. Lines go to {@link #parseLine(byte[], int, int)}.
+     * @param dataset The file to parse, assumed to be UTF-8 encoded.
+     * @param startByte The start of the range, inclusive.
+     * @param endByte The end of the range, exclusive, it may be past the end of the file.
+     * @return The output of parsing the range.
+     * @throws IOException If the file cannot be mapped.
+     */
+    public T parse(File dataset, long startByte, long endByte) throws IOException {
+        if(!isOkayToRead(dataset)){
+            throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
+        }
+        if (startByte < 0 || endByte < startByte) {
+            throw new IllegalArgumentException("Invalid byte range [" + startByte + ", " + endByte + ").");
+        }
+        final TerminatorMatcher matcher = compileByteTerminators();
+        try (FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ)) {
+            final long fileLength = channel.size();
+            final long from = ByteLineScanner.nextLineStart(channel, matcher, Math.min(startByte, fileLength), fileLength);
+            final long to = Math.max(from, ByteLineScanner.nextLineStart(channel, matcher, Math.min(endByte, fileLength), fileLength));
+            final int linesToSkip = (startByte == 0) ? nLinesToSkip : 0;
+            return parseMappedRange(channel, from, to, linesToSkip, matcher, new ProgressTracker(progressListener, to - from));
+        }
+    }
+
+    /**
+     * Parses a run of chunks, splitting it in half until there is a single chunk,
+     * then combines the halves back together in order.
+     */
+    private class ChunkTask extends RecursiveTask<T> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final TerminatorMatcher matcher;
+        private final long[] bounds;
+        private final int from;
+        private final int to;
+        private final ProgressTracker progress;
+
+        ChunkTask(FileChannel channel, TerminatorMatcher matcher, long[] bounds, int from, int to, ProgressTracker progress) {
+            this.channel = channel;
+            this.matcher = matcher;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+            this.progress = progress;
+        }
+
+        @Override
+        protected T compute() {
+            if (to - from == 1) {
+                AbstractLineBasedParser<T> chunkParser = newChunkParser();
+                copySettingsTo(chunkParser);
+                //only the first chunk has a header
+                int linesToSkip = (from == 0) ? nLinesToSkip : 0;
+                try {
+                    return chunkParser.parseMappedRange(channel, bounds[from], bounds[to], linesToSkip, matcher, progress);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            int mid = (from + to) >>> 1;
+            ChunkTask left = new ChunkTask(channel, matcher, bounds, from, mid, progress);
+            ChunkTask right = new ChunkTask(channel, matcher, bounds, mid, to, progress);
+            left.fork();
+            T rightOutput = right.compute();
+            return combine(left.join(), rightOutput);
+        }
+    }
+
+    /**
+     * Begin counting for the metrics (if there are any) at the start of a parsing loop.
+     */
+    private void startRecording() {
+        recorder = newRecorder();
+    }
+
+    /**
+     * @return Counts for the metrics on one parsing thread, or null if there are no metrics.
+     */
+    MetricsRecorder newRecorder() {
+        return (metrics == null) ? null : new MetricsRecorder(metrics);
+    }
+
+    private void report(ProgressTracker progress, long bytes) {
+        report(progress, recorder, bytes);
+    }
+
+    /**
+     * Report progress, and flush the counts for the metrics at the same time.
+     * @param progress Where to report the progress.
+     * @param recorder The counts of the thread reporting, or null if there are no metrics.
+     * @param bytes How many more bytes have been consumed.
+     */
+    static void report(ProgressTracker progress, MetricsRecorder recorder, long bytes) {
+        progress.advance(bytes);
+        if (recorder != null) {
+            recorder.flush(bytes);
+        }
+    }
+
+    private void skippedLine() {
+        skippedLine(recorder);
+    }
+
+    /**
+     * @param recorder The counts of the thread which skipped a line, or null if there are no metrics.
+     */
+    static void skippedLine(MetricsRecorder recorder) {
+        if (recorder != null) {
+            recorder.skippedLine();
+        }
+    }
+
+    private void handleLine(CharSequence line) {
+        if (recorder == null && !skipBadLines) {
+            parseLine(line);
+            return;
+        }
+        handleLine(recorder, line, lineParser);
+    }
+
+    /**
+     * Parse a line the same way every parsing loop does: timed for the metrics, with a failure
+     * counted and either thrown or, if bad lines are skipped, carried on past.
+     * @param recorder The counts of the thread parsing, or null if there are no metrics.
+     * @param line The line.
+     * @param parser What parses the line.
+     * @param <V> What the line is parsed into.
+     * @return What the line was parsed into, or null if it was bad and skipped.
+     */
+    <V> V handleLine(MetricsRecorder recorder, CharSequence line, Function<CharSequence, V> parser) {
+        if (recorder == null && !skipBadLines) {
+            return parser.apply(line);
+        }
+        long start = (recorder == null) ? 0 : recorder.beforeLine();
+        V parsed = null;
+        try {
+            parsed = parser.apply(line);
+        } catch (RuntimeException e) {
+            lineFailed(e);
+        }
+        if (recorder != null) {
+            recorder.afterLine(start);
+        }
+        return parsed;
+    }
+
+    private void handleLine(byte[] bytes, int offset, int length) {
+        if (recorder == null && !skipBadLines) {
+            parseLine(bytes, offset, length);
+            return;
+        }
+        long start = (recorder == null) ? 0 : recorder.beforeLine();
+        try {
+            parseLine(bytes, offset, length);
+        } catch (RuntimeException e) {
+            lineFailed(e);
+        }
+        if (recorder != null) {
+            recorder.afterLine(start);
+        }
+    }
+
+    private void lineFailed(RuntimeException e) {
+        if (metrics != null) {
+            metrics.lineFailed();
+        }
+        if (!skipBadLines) {
+            throw e;
+        }
+    }
+
+    /**
+     * Give a parser made by {@link #newChunkParser()} the same line terminators, metrics and error handling.
+     * @param chunkParser The parser.
+     */
+    void copySettingsTo(AbstractLineBasedParser<T> chunkParser) {
+        chunkParser.lineTerminators = lineTerminators;
+        chunkParser.metrics = metrics;
+        chunkParser.skipBadLines = skipBadLines;
+    }
+
+    /**
+     * Compile the line terminators into matchers for chars and for UTF-8 bytes,
+     * unless that has already been done for the current terminators.
+     */
+    private void compileTerminators() {
+        if (lineTerminators != compiledFrom) {
+            charTerminators = (lineTerminators == null) ? null : TerminatorMatcher.ofChars(lineTerminators);
+            byteTerminators = (lineTerminators == null) ? null : TerminatorMatcher.ofUtf8(lineTerminators);
+            compiledFrom = lineTerminators;
+        }
+    }
+
+    TerminatorMatcher compileByteTerminators() {
+        compileTerminators();
+        return byteTerminators;
+    }
+
     /**
      * If custom line terminators are set these are used in parsing instead
-     * of the default \n \r or \n\r \r\n
+     * of the default \n \r or \n\r \r\n. They are compiled into a single automaton
+     * (see {@link TerminatorMatcher}) so all of them are looked for at once.
      * @param lineTerminators the custom line terminators to check for.
      * @return A reference to this object. Useful for method chaining.
      */
     public AbstractLineBasedParser<T> setLineTerminators(char[][] lineTerminators) {
         this.lineTerminators = lineTerminators;
+        compileTerminators();
         return this;
     }
 
@@ -108,6 +878,63 @@ public abstract class AbstractLineBasedParser<T> {
         return this;
     }
 
+    /**
+     * When enabled {@link #parse(File)} memory-maps the file and splits it into lines
+     * at the byte level, skipping the character decoding done by a {@link BufferedReader}.
+     * Lines are then handed to {@link #parseLine(byte[], int, int)}. The file is assumed to be UTF-8.
+     * @param memoryMapped Whether to memory-map files when parsing.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public AbstractLineBasedParser<T> setMemoryMapped(boolean memoryMapped) {
+        this.memoryMapped = memoryMapped;
+        return this;
+    }
+
+    /**
+     * When greater than one {@link #parse(File)} splits the file into chunks aligned to line boundaries
+     * and parses them in parallel (memory-mapped, see {@link #setMemoryMapped(boolean)}) on a fork-join pool.
+     * Each chunk is parsed by its own parser from {@link #newChunkParser()} and the outputs are merged,
+     * in file order, by {@link #combine(Object, Object)}. Subclasses must override both to support this.
+     * @param parallelism How many threads to parse with.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws UnsupportedOperationException If the parallelism is more than one and this parser does not override
+     * {@link #newChunkParser()} and {@link #combine(Object, Object)}.
+     */
+    public AbstractLineBasedParser<T> setParallelism(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least one.");
+        }
+        if (parallelism > 1) {
+            checkChunkingSupported();
+        }
+        this.parallelism = parallelism;
+        return this;
+    }
+
+    /**
+     * When greater than zero {@link #parse(BufferedReader, double)} (and so reading a plain file which is
+     * not memory-mapped or parsed in parallel) reads on a dedicated thread, which splits the stream into
+     * lines and hands them over in batches through a bounded ring of reused buffers, whilst parseLine
+     * runs on the consumer threads. Waiting on the disk and parsing then overlap instead of adding up.
+     * With one consumer the lines are parsed in order by this parser, so parseLine can depend on the
+     * previous lines. With more than one each consumer has its own parser from {@link #newChunkParser()},
+     * lines are shared out in no particular order and the outputs merged by {@link #combine(Object, Object)}.
+     * @param consumers How many threads to parse with, or 0 to read and parse on the calling thread.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws UnsupportedOperationException If there is more than one consumer and this parser does not override
+     * {@link #newChunkParser()} and {@link #combine(Object, Object)}.
+     */
+    public AbstractLineBasedParser<T> setPipelined(int consumers) {
+        if (consumers < 0) {
+            throw new IllegalArgumentException("Consumers cannot be negative.");
+        }
+        if (consumers > 1) {
+            checkChunkingSupported();
+        }
+        this.pipelineConsumers = consumers;
+        return this;
+    }
+
     /**
      * Attach a progress listener to parsing a trajectory data-set.
      * Progress is reported as an int 1-100%
@@ -119,6 +946,36 @@ public abstract class AbstractLineBasedParser<T> {
         return this;
     }
 
+    /**
+     * @param dataset A file.
+     * @return True if the file should be inflated whilst it is parsed, based on its extension.
+     */
+    static boolean isCompressed(File dataset){
+        return GZIP_EXTENSION.equals(FileUtil.getExtension(dataset));
+    }
+
+    /**
+     * Collect throughput and timing figures whilst parsing, see {@link ParseMetrics}.
+     * The same metrics are used by every thread when parsing in parallel, and can be shared between parsers.
+     * @param metrics Where to collect the figures, or null to stop collecting them.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public AbstractLineBasedParser<T> setMetrics(ParseMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * When enabled a line which makes parseLine throw a {@link RuntimeException} is skipped (and counted
+     * in the metrics, if there are any) rather than stopping the parse.
+     * @param skipBadLines Whether to carry on past lines that cannot be parsed.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public AbstractLineBasedParser<T> setSkipBadLines(boolean skipBadLines) {
+        this.skipBadLines = skipBadLines;
+        return this;
+    }
+
     private boolean isOkayToRead(File dataset){
         return dataset.exists() && dataset.canRead();
     }
@@ -138,10 +995,36 @@ public abstract class AbstractLineBasedParser<T> {
 
     /**
      * Parse a the line and add to the output.
+     * Subclasses which would rather avoid creating a String for every line can override
+     * {@link #parseLine(CharSequence)} as well, and implement this by passing the line on to it.
      * @param line The line to parse
      */
     protected abstract void parseLine(String line);
 
+    /**
+     * Parse a line without it having been copied into a String.
+     * The line is a reused view over the parser's internal buffer, so it is only valid
+     * for the duration of this call; use {@link CharSequence#toString()} to keep any part of it.
+     * By default the line is copied and passed on to {@link #parseLine(String)}.
+     * @param line The line to parse, excluding its terminator.
+     */
+    protected void parseLine(CharSequence line) {
+        parseLine(line.toString());
+    }
+
+    /**
+     * Parse a line that is still in its raw UTF-8 encoded form, this is used by the
+     * memory-mapped mode (see {@link #setMemoryMapped(boolean)}).
+     * By default the bytes are decoded into a reused buffer and passed on to {@link #parseLine(CharSequence)},
+     * subclasses that can work with the raw bytes should override this instead.
+     * Note: the array belongs to the parser and is only valid for the duration of this call.
+     * @param bytes The array holding the line.
+     * @param offset Where the line starts in the array.
+     * @param length The length of the line in bytes, excluding its terminator.
+     */
+    protected void parseLine(byte[] bytes, int offset, int length) {
+        parseLine(decodedLine.decodeUtf8(bytes, offset, length));
+    }
 
     /**
      * Called to indicate the file has been parsed fully
@@ -150,6 +1033,50 @@ public abstract class AbstractLineBasedParser<T> {
      */
     protected abstract T done();
 
+    /**
+     * Make a new, empty parser which will be used to accumulate the output of one chunk of a file when
+     * parsing in parallel (see {@link #setParallelism(int)}). Line terminators are copied across and
+     * header lines are only skipped by the first chunk, anything else the chunk needs should be copied here.
+     * @return A fresh parser of the same kind.
+     */
+    protected AbstractLineBasedParser<T> newChunkParser() {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support parallel parsing.");
+    }
+
+    /**
+     * Parsing with more than one parser needs both {@link #newChunkParser()} and {@link #combine(Object, Object)},
+     * so check they are overridden before any parsing starts, rather than failing part of the way through.
+     * @throws UnsupportedOperationException If either is not overridden.
+     */
+    void checkChunkingSupported() {
+        if (!overrides("newChunkParser") || !overrides("combine", Object.class, Object.class)) {
+            throw new UnsupportedOperationException(getClass().getName() +
+                    " does not support parallel parsing, it must override newChunkParser and combine.");
+        }
+    }
+
+    private boolean overrides(String method, Class<?>... parameterTypes) {
+        for (Class<?> c = getClass(); c != AbstractLineBasedParser.class; c = c.getSuperclass()) {
+            try {
+                c.getDeclaredMethod(method, parameterTypes);
+                return true;
+            } catch (NoSuchMethodException e) {
+                //try the superclass
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Merge the outputs of two consecutive chunks when parsing in parallel.
+     * @param first The output of the earlier chunk.
+     * @param second The output of the chunk which directly follows it in the file.
+     * @return The merged output.
+     */
+    protected T combine(T first, T second) {
+        throw new UnsupportedOperationException(getClass().getName() + " does not support parallel parsing.");
+    }
+
 
 
 }
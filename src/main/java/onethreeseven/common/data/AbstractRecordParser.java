@@ -0,0 +1,224 @@
+package onethreeseven.common.data;
+
+import onethreeseven.common.util.CharSlice;
+import onethreeseven.common.util.TerminatorMatcher;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A line-based parser where each line becomes (at most) one record.
+ * Records can either be collected into a list using {@link #parse(File)}, or pulled
+ * lazily using {@link #stream(File)} so that a whole data-set never has to be held in memory.
+ * Implementations of {@link #parseRecord(CharSequence)} should not keep any state between lines,
+ * that way parallel parsing and parallel streams work without any extra effort.
+ * @param <R> The record type.
+ * @author Luke Bermingham
+ */
+public abstract class AbstractRecordParser<R> extends AbstractLineBasedParser<List<R>> {
+
+    /**
+     * Regions smaller than this are not worth splitting for a parallel stream.
+     */
+    private static final long MIN_SPLIT_SIZE = 1 << 16;
+
+    private List<R> records = new ArrayList<>();
+    //shared by every part of a stream, so each line does not make a new one
+    private final Function<CharSequence, R> recordParser = this::parseRecord;
+
+    /**
+     * Turn a line into a record.
+     * @param line The line, a reused view which is only valid for the duration of this call.
+     * @return The record, or null if the line does not hold one.
+     */
+    protected abstract R parseRecord(CharSequence line);
+
+    @Override
+    protected void parseLine(String line) {
+        parseLine((CharSequence) line);
+    }
+
+    @Override
+    protected void parseLine(CharSequence line) {
+        R record = parseRecord(line);
+        if (record != null) {
+            records.add(record);
+        }
+    }
+
+    @Override
+    protected List<R> done() {
+        List<R> output = records;
+        records = new ArrayList<>();
+        return output;
+    }
+
+    @Override
+    protected AbstractLineBasedParser<List<R>> newChunkParser() {
+        return new ChunkParser();
+    }
+
+    @Override
+    protected List<R> combine(List<R> first, List<R> second) {
+        first.addAll(second);
+        return first;
+    }
+
+    /**
+     * Collects the records of one chunk, using the enclosing parser to make each record.
+     */
+    private class ChunkParser extends AbstractLineBasedParser<List<R>> {
+
+        private final List<R> chunkRecords = new ArrayList<>();
+
+        @Override
+        protected void parseLine(String line) {
+            parseLine((CharSequence) line);
+        }
+
+        @Override
+        protected void parseLine(CharSequence line) {
+            R record = parseRecord(line);
+            if (record != null) {
+                chunkRecords.add(record);
+            }
+        }
+
+        @Override
+        protected List<R> done() {
+            return chunkRecords;
+        }
+    }
+
+    /**
+     * Lazily parse the records of a file. The file is memory-mapped (and assumed to be UTF-8),
+     * lines are only read and parsed as the stream pulls them, so memory use stays constant
+     * however big the file is. The stream can be made parallel, in which case the file is split
+     * into regions on line boundaries. The stream holds the file open, so close it when done,
+     * i.e. using try-with-resources.
+     * Lines are handled the same as by {@link #parse(File)}: they are counted in the metrics
+     * (see {@link #setMetrics(ParseMetrics)}), and bad lines are skipped if {@link #setSkipBadLines(boolean)} says so.
+     * @param dataset The file to parse.
+     * @return A stream of the records in the file.
+     * @throws IOException If the file cannot be opened.
+     */
+    public Stream<R> stream(File dataset) throws IOException {
+        if (dataset == null || !dataset.exists() || !dataset.canRead()) {
+            throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions.");
+        }
+        final FileChannel channel = FileChannel.open(dataset.toPath(), StandardOpenOption.READ);
+        final long fileLength = channel.size();
+        final ProgressTracker progress = new ProgressTracker(progressListener, fileLength);
+        RecordSpliterator spliterator = new RecordSpliterator(
+                channel, compileByteTerminators(), 0, fileLength, progress);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Pulls records from a region of a memory-mapped file. The region can be split
+     * in two (on a line boundary) until traversal begins.
+     */
+    private class RecordSpliterator implements Spliterator<R> {
+
+        private final FileChannel channel;
+        private final TerminatorMatcher matcher;
+        private long start;
+        private final long end;
+        private final ProgressTracker progress;
+        private final CharSlice decoded = new CharSlice();
+
+        private ByteLineScanner scanner = null;
+        //made once traversal begins, on the thread traversing
+        private MetricsRecorder recorder = null;
+        private int linesSkipped = 0;
+        private long reported = 0;
+
+        RecordSpliterator(FileChannel channel, TerminatorMatcher matcher, long start, long end, ProgressTracker progress) {
+            this.channel = channel;
+            this.matcher = matcher;
+            this.start = start;
+            this.end = end;
+            this.progress = progress;
+        }
+
+        @Override
+        public boolean tryAdvance(Consumer<? super R> action) {
+            try {
+                if (scanner == null) {
+                    scanner = new ByteLineScanner(ByteLineScanner.mapped(channel, start, end), matcher);
+                    recorder = newRecorder();
+                }
+                while (scanner.next()) {
+                    if (scanner.consumed() - reported >= ProgressTracker.REPORT_INTERVAL) {
+                        report(progress, recorder, scanner.consumed() - reported);
+                        reported = scanner.consumed();
+                    }
+                    //only the region at the start of the file has a header
+                    if (start == 0 && linesSkipped != nLinesToSkip) {
+                        linesSkipped++;
+                        skippedLine(recorder);
+                        continue;
+                    }
+                    R record = handleLine(recorder,
+                            decoded.decodeUtf8(scanner.bytes(), scanner.offset(), scanner.length()), recordParser);
+                    if (record != null) {
+                        action.accept(record);
+                        return true;
+                    }
+                }
+                report(progress, recorder, scanner.consumed() - reported);
+                reported = scanner.consumed();
+                return false;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public Spliterator<R> trySplit() {
+            if (scanner != null || end - start < MIN_SPLIT_SIZE) {
+                return null;
+            }
+            try {
+                long mid = ByteLineScanner.nextLineStart(channel, matcher, start + (end - start) / 2, end);
+                if (mid <= start || mid >= end) {
+                    return null;
+                }
+                //hand off the first half (and with it the header, if there is one), keep the second
+                RecordSpliterator prefix = new RecordSpliterator(channel, matcher, start, mid, progress);
+                this.start = mid;
+                return prefix;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public long estimateSize() {
+            //bytes rather than records, but proportional which is all that matters for splitting
+            return end - start;
+        }
+
+        @Override
+        public int characteristics() {
+            //not IMMUTABLE, the file can change underneath the mapping
+            return ORDERED | NONNULL;
+        }
+    }
+
+}
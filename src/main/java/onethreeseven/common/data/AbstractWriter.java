@@ -1,52 +1,113 @@
 package onethreeseven.common.data;
 
 import java.io.BufferedWriter;
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.Flushable;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.stream.Stream;
 
 /**
  * An abstract writer which can be extended to write whatever object.
  * It does not implement any of the actual writing functionality though.
+ * <p>
+ * To write many entities, either write them in bulk with {@link #write(File, Iterable)} or
+ * {@link #write(File, Stream)}, or {@link #open(File)} a session and write them as they come;
+ * either way the file is opened once and written through one buffer.
  * @author Luke Bermingham.
  */
 public abstract class AbstractWriter<T> {
 
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+    //writing one entity does not need a big buffer, this is BufferedWriter's default
+    private static final int SINGLE_WRITE_BUFFER_SIZE = 1 << 13;
+
     protected String delimiter = ", ";
+    protected int bufferSize = DEFAULT_BUFFER_SIZE;
 
     public void setDelimiter(String delimiter) {
         this.delimiter = delimiter;
     }
 
-    public boolean write(File file, T t) {
-        BufferedWriter bw = null;
-        try {
-            if(file.exists() && file.canWrite()){
-                //logger.info("File already exists, going to append to it: " + file.getAbsolutePath());
-                bw = new BufferedWriter(new FileWriter(file, true));
-            }
-            //file does not exist
-            else if(file.createNewFile() && file.canWrite()){
-                bw = new BufferedWriter(new FileWriter(file));
-            }
-            if (bw == null) {
-                System.err.println("Could not write to file: " + file.getAbsolutePath());
-            }else{
-                return this.write(bw, t);
-            }
+    /**
+     * @param bufferSize How many chars are buffered before they are written to the file, 64K by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public AbstractWriter<T> setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be at least one.");
+        }
+        this.bufferSize = bufferSize;
+        return this;
+    }
 
+    /**
+     * Append one entity to a file, opening and closing the file.
+     * To write more than one entity use {@link #open(File)} or the bulk writes instead.
+     * @param file The file, it is created if it does not exist.
+     * @param t The entity to write.
+     * @return True if writing the entity was successful; otherwise, false.
+     * @throws UncheckedIOException If the file cannot be opened or written.
+     */
+    public boolean write(File file, T t) {
+        try (Session session = open(file, Math.min(bufferSize, SINGLE_WRITE_BUFFER_SIZE))) {
+            return session.write(t);
         } catch (IOException e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (bw != null) {
-                    bw.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            throw new UncheckedIOException(e);
         }
-        return false;
+    }
+
+    /**
+     * Append many entities to a file, opening it once.
+     * @param file The file, it is created if it does not exist.
+     * @param entities The entities to write.
+     * @return How many of the entities were written successfully.
+     * @throws IOException If the file cannot be opened or written.
+     */
+    public long write(File file, Iterable<? extends T> entities) throws IOException {
+        return write(file, entities.iterator());
+    }
+
+    /**
+     * Append many entities to a file, opening it once.
+     * The stream is consumed in order, but not closed.
+     * @param file The file, it is created if it does not exist.
+     * @param entities The entities to write.
+     * @return How many of the entities were written successfully.
+     * @throws IOException If the file cannot be opened or written.
+     */
+    public long write(File file, Stream<? extends T> entities) throws IOException {
+        return write(file, entities.iterator());
+    }
+
+    private long write(File file, Iterator<? extends T> entities) throws IOException {
+        try (Session session = open(file)) {
+            return session.writeAll(entities);
+        }
+    }
+
+    /**
+     * @return A builder for formatting records without garbage, using this writer's delimiter.
+     */
+    public RecordBuilder newRecordBuilder() {
+        return new RecordBuilder(delimiter);
+    }
+
+    /**
+     * Open a file for appending, which stays open until the session is closed.
+     * @param file The file, it is created if it does not exist.
+     * @return The session, close it when finished (i.e. with try-with-resources).
+     * @throws IOException If the file cannot be opened.
+     */
+    public Session open(File file) throws IOException {
+        return open(file, bufferSize);
+    }
+
+    private Session open(File file, int sessionBufferSize) throws IOException {
+        return new Session(new BufferedWriter(new FileWriter(file, true), sessionBufferSize));
     }
 
     /**
@@ -58,5 +119,87 @@ public abstract class AbstractWriter<T> {
      */
     protected abstract boolean write(BufferedWriter bw, T t) throws IOException;
 
+    /**
+     * An open file which entities can be written to one at a time.
+     * Writes are buffered, so they are only certain to be in the file after {@link #flush()} or {@link #close()}.
+     */
+    public class Session implements Closeable, Flushable {
+
+        private final BufferedWriter bw;
+        private boolean open = true;
+
+        private Session(BufferedWriter bw) {
+            this.bw = bw;
+        }
+
+        /**
+         * @param t The entity to write.
+         * @return True if writing the entity was successful; otherwise, false.
+         * @throws IOException If the file cannot be written.
+         */
+        public boolean write(T t) throws IOException {
+            checkOpen();
+            return AbstractWriter.this.write(bw, t);
+        }
+
+        /**
+         * Write a formatted record, its chars go straight into the buffer so the builder can be reused at once.
+         * @param record The record.
+         * @throws IOException If the file cannot be written.
+         */
+        public void write(RecordBuilder record) throws IOException {
+            checkOpen();
+            bw.write(record.array(), 0, record.length());
+        }
+
+        /**
+         * @param entities The entities to write.
+         * @return How many of the entities were written successfully.
+         * @throws IOException If the file cannot be written.
+         */
+        public long writeAll(Iterable<? extends T> entities) throws IOException {
+            return writeAll(entities.iterator());
+        }
+
+        private long writeAll(Iterator<? extends T> entities) throws IOException {
+            checkOpen();
+            long written = 0;
+            while (entities.hasNext()) {
+                if (AbstractWriter.this.write(bw, entities.next())) {
+                    written++;
+                }
+            }
+            return written;
+        }
+
+        /**
+         * Write everything buffered so far to the file.
+         * @throws IOException If the file cannot be written.
+         */
+        @Override
+        public void flush() throws IOException {
+            checkOpen();
+            bw.flush();
+        }
+
+        /**
+         * Write everything buffered and close the file, closing again does nothing.
+         * @throws IOException If the file cannot be written or closed.
+         */
+        @Override
+        public void close() throws IOException {
+            if (open) {
+                open = false;
+                bw.close();
+            }
+        }
+
+        private void checkOpen() {
+            if (!open) {
+                throw new IllegalStateException("The session has been closed.");
+            }
+        }
+
+    }
 
 }
@@ -0,0 +1,52 @@
+package onethreeseven.common.data;
+
+import java.io.IOException;
+
+/**
+ * The part of a {@link ConcurrentFileWriter} which encodes strings and writes them to the file.
+ * It is only ever used by the writer thread: strings are added one at a time, then the
+ * batch is written out. An implementation may write part of the batch early if it runs out of room.
+ * @author Luke Bermingham
+ */
+abstract class BatchWriter {
+
+    /**
+     * @param toAppend Add some chars to the current batch.
+     * @throws IOException If part of the batch had to be written and that failed.
+     */
+    abstract void add(CharSequence toAppend) throws IOException;
+
+    /**
+     * Write everything added since the last batch.
+     * @throws IOException If the write fails.
+     */
+    abstract void writeBatch() throws IOException;
+
+    /**
+     * Force everything written so far to the disk.
+     * @throws IOException If it cannot be forced.
+     */
+    abstract void force() throws IOException;
+
+    /**
+     * @return How long the writer thread can sleep while there is nothing to write
+     * before it must call {@link #onIdle()}, or a negative number to sleep until the next append.
+     */
+    long idleTimeoutNanos() {
+        return -1;
+    }
+
+    /**
+     * Called by the writer thread each time it finds nothing to write.
+     * @throws IOException If something has to be written and that failed.
+     */
+    void onIdle() throws IOException {
+    }
+
+    /**
+     * Close the file.
+     * @throws IOException If the file cannot be closed.
+     */
+    abstract void close() throws IOException;
+
+}
@@ -0,0 +1,312 @@
+package onethreeseven.common.data;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a file written by a {@link BinaryRecordWriter} through a memory mapping, a record at a time.
+ * Call {@link #next()} to move to the next record, then read its fields with the get methods;
+ * doubles and longs are read straight from the mapping. Records can also be found by their index
+ * with {@link #seek(long)}, if they are fixed width or the file has an index.
+ * <p>
+ * Files bigger than the largest mapping are mapped a region at a time, so there is no limit on their size.
+ * @author Luke Bermingham
+ */
+public class BinaryRecordReader implements Closeable {
+
+    private static final int MAX_REGION = 1 << 30;
+
+    private final FileChannel channel;
+    private final FileChannel index;
+    private final long size;
+    private final long dataStart;
+    private final RecordSchema schema;
+    private final ColumnarTable.Type[] types;
+    private final int fixedWidth;
+    private final int maxRegion;
+
+    private MappedByteBuffer region = null;
+    private ByteBuffer view = null;
+    private long regionStart = 0;
+    private long nextOffset;
+    //where each field of the current record is in the region
+    private final int[] fieldPositions;
+    private boolean hasRecord = false;
+    private final ByteBuffer indexEntry = ByteBuffer.allocate(Long.BYTES);
+
+    /**
+     * Open a file, using its index if there is one.
+     * @param file The file.
+     * @throws IOException If the file cannot be opened or is not a binary record file.
+     */
+    public BinaryRecordReader(File file) throws IOException {
+        this(file, MAX_REGION);
+    }
+
+    /**
+     * @param file The file.
+     * @param maxRegion The most bytes mapped at once.
+     * @throws IOException If the file cannot be opened or is not a binary record file.
+     */
+    BinaryRecordReader(File file, int maxRegion) throws IOException {
+        this.maxRegion = maxRegion;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        FileChannel indexChannel = null;
+        int headerSize;
+        try {
+            this.size = channel.size();
+            ByteBuffer preamble = ByteBuffer.allocate(BinaryRecordWriter.PREAMBLE_SIZE);
+            readFully(channel, preamble, 0);
+            if (preamble.getInt() != BinaryRecordWriter.MAGIC) {
+                throw new IOException("Not a binary record file: " + file);
+            }
+            byte version = preamble.get();
+            if (version != BinaryRecordWriter.VERSION) {
+                throw new IOException("Unsupported binary record version " + version);
+            }
+            boolean isFixedWidth = preamble.get() == BinaryRecordWriter.FIXED_WIDTH;
+            headerSize = preamble.getInt();
+            if (headerSize < BinaryRecordWriter.PREAMBLE_SIZE || headerSize > size) {
+                throw new IOException("Invalid header size " + headerSize);
+            }
+            ByteBuffer header = ByteBuffer.allocate(headerSize - BinaryRecordWriter.PREAMBLE_SIZE);
+            readFully(channel, header, BinaryRecordWriter.PREAMBLE_SIZE);
+            try {
+                this.schema = RecordSchema.read(header);
+            } catch (BufferUnderflowException e) {
+                throw new IOException("Truncated header.", e);
+            }
+            if (isFixedWidth != schema.isFixedWidth()) {
+                throw new IOException("Header does not match the schema.");
+            }
+
+            File indexFile = BinaryRecordWriter.indexFor(file);
+            if (!isFixedWidth && indexFile.isFile()) {
+                indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ);
+                ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES);
+                readFully(indexChannel, magic, 0);
+                if (magic.getInt() != BinaryRecordWriter.INDEX_MAGIC) {
+                    throw new IOException("Not a binary record index: " + indexFile);
+                }
+            }
+        } catch (IOException e) {
+            channel.close();
+            if (indexChannel != null) {
+                indexChannel.close();
+            }
+            throw e;
+        }
+        this.index = indexChannel;
+        this.dataStart = headerSize;
+        this.nextOffset = dataStart;
+        this.types = new ColumnarTable.Type[schema.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = schema.getColumnType(i);
+        }
+        this.fixedWidth = schema.isFixedWidth() ? schema.getFixedWidth() : -1;
+        this.fieldPositions = new int[types.length];
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new EOFException("Unexpected end of file.");
+            }
+        }
+        buffer.flip();
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    /**
+     * @return How many records there are, or -1 if that is not known without reading them all
+     * (variable width records without an index).
+     * @throws IOException If the index cannot be read.
+     */
+    public long getRecordCount() throws IOException {
+        if (fixedWidth > 0) {
+            return (size - dataStart) / fixedWidth;
+        }
+        if (index != null) {
+            return (index.size() - Integer.BYTES) / Long.BYTES;
+        }
+        return -1;
+    }
+
+    /**
+     * Move to the next record.
+     * @return True if there is a next record, false at the end of the file.
+     * @throws IOException If the record is truncated or cannot be mapped.
+     */
+    public boolean next() throws IOException {
+        if (nextOffset >= size) {
+            hasRecord = false;
+            return false;
+        }
+        if (fixedWidth > 0) {
+            map(nextOffset, fixedWidth);
+            int position = (int) (nextOffset - regionStart);
+            for (int i = 0; i < types.length; i++) {
+                fieldPositions[i] = position;
+                position += Long.BYTES;
+            }
+            nextOffset += fixedWidth;
+        } else {
+            map(nextOffset, Integer.BYTES);
+            int length = region.getInt((int) (nextOffset - regionStart));
+            if (length < 0 || length > size - nextOffset - Integer.BYTES) {
+                throw new IOException("Invalid record length at " + nextOffset);
+            }
+            map(nextOffset, Integer.BYTES + length);
+            int position = (int) (nextOffset - regionStart) + Integer.BYTES;
+            final int end = position + length;
+            for (int i = 0; i < types.length; i++) {
+                fieldPositions[i] = position;
+                if (types[i] == ColumnarTable.Type.STRING) {
+                    position += Integer.BYTES + Math.max(0, region.getInt(position));
+                } else {
+                    position += Long.BYTES;
+                }
+                if (position > end) {
+                    throw new IOException("Invalid record at " + nextOffset);
+                }
+            }
+            nextOffset += Integer.BYTES + length;
+        }
+        hasRecord = true;
+        return true;
+    }
+
+    /**
+     * Go to a record, so the next call to {@link #next()} reads it.
+     * @param record The index of the record.
+     * @throws IOException If the index cannot be read.
+     * @throws IllegalStateException If the records are variable width and there is no index.
+     */
+    public void seek(long record) throws IOException {
+        long count = getRecordCount();
+        if (count < 0) {
+            throw new IllegalStateException("Finding a record needs fixed width records or an index.");
+        }
+        if (record < 0 || record > count) {
+            throw new IllegalArgumentException("There is no record " + record + ", there are " + count);
+        }
+        if (record == count) {
+            nextOffset = size;
+        } else if (fixedWidth > 0) {
+            nextOffset = dataStart + record * fixedWidth;
+        } else {
+            indexEntry.clear();
+            readFully(index, indexEntry, Integer.BYTES + record * Long.BYTES);
+            nextOffset = indexEntry.getLong();
+        }
+        hasRecord = false;
+    }
+
+    /**
+     * Make sure some of the file is in the mapped region, mapping a new region if it is not.
+     * @param offset Where it starts in the file.
+     * @param length How long it is.
+     * @throws IOException If it goes past the end of the file or cannot be mapped.
+     */
+    private void map(long offset, int length) throws IOException {
+        if (offset + length > size) {
+            throw new EOFException("Truncated record at " + offset);
+        }
+        if (region != null && offset >= regionStart && offset + length <= regionStart + region.limit()) {
+            return;
+        }
+        long regionSize = Math.min(Math.max(maxRegion, length), size - offset);
+        region = channel.map(FileChannel.MapMode.READ_ONLY, offset, regionSize);
+        view = region.duplicate();
+        regionStart = offset;
+    }
+
+    private int fieldPosition(int column, ColumnarTable.Type type) {
+        if (!hasRecord) {
+            throw new IllegalStateException("There is no current record, call next() first.");
+        }
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + column + " is a " + types[column] + " column.");
+        }
+        return fieldPositions[column];
+    }
+
+    public double getDouble(int column) {
+        return region.getDouble(fieldPosition(column, ColumnarTable.Type.DOUBLE));
+    }
+
+    public long getLong(int column) {
+        return region.getLong(fieldPosition(column, ColumnarTable.Type.LONG));
+    }
+
+    /**
+     * @param column The column.
+     * @return The string, which may be null.
+     */
+    public String getString(int column) {
+        int position = fieldPosition(column, ColumnarTable.Type.STRING);
+        int length = region.getInt(position);
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        view.position(position + Integer.BYTES);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read every remaining record into a table.
+     * @return The table, with the same columns as the schema.
+     * @throws IOException If a record cannot be read.
+     */
+    public ColumnarTable readTable() throws IOException {
+        long count = getRecordCount();
+        ColumnarTable table = new ColumnarTable((count > 0 && count < Integer.MAX_VALUE) ? (int) count : 1024);
+        for (int i = 0; i < types.length; i++) {
+            table.addColumn(schema.getColumnName(i), types[i]);
+        }
+        while (next()) {
+            table.newRow();
+            for (int i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case DOUBLE:
+                        table.setDouble(i, getDouble(i));
+                        break;
+                    case LONG:
+                        table.setLong(i, getLong(i));
+                        break;
+                    default:
+                        table.setString(i, getString(i));
+                }
+            }
+        }
+        return table.trimToSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        region = null;
+        view = null;
+        try {
+            channel.close();
+        } finally {
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+}
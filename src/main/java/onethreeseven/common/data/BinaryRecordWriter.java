@@ -0,0 +1,248 @@
+package onethreeseven.common.data;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes records in a compact binary format, as an alternative to delimited text between the stages of a pipeline:
+ * doubles and longs are stored as their 8 bytes, so nothing is formatted and nothing is lost when they are read back
+ * with a {@link BinaryRecordReader}.
+ * <p>
+ * The file starts with a header holding the {@link RecordSchema}. Records follow back to back: fixed width
+ * (8 bytes a field) when there are no string fields, otherwise each record is prefixed with its length and each
+ * string with its length in bytes (UTF-8, -1 for null). Fixed width records can be found by their index; for
+ * variable width records an index of record offsets can be written to a sidecar file ("file.idx") as well.
+ * <p>
+ * Typical use:
+ * <pre>
+ * try (BinaryRecordWriter writer = new BinaryRecordWriter(file, schema, true)) {
+ *     writer.setLong(0, time).setDouble(1, x).setString(2, mode).writeRecord();
+ * }
+ * </pre>
+ * @author Luke Bermingham
+ */
+public class BinaryRecordWriter implements Closeable {
+
+    static final int MAGIC = 0x31333742;
+    static final int INDEX_MAGIC = 0x31333749;
+    static final byte VERSION = 1;
+    static final byte FIXED_WIDTH = 1;
+    //magic, version, flags, header length
+    static final int PREAMBLE_SIZE = Integer.BYTES + 2 + Integer.BYTES;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ColumnarTable.Type[] types;
+    private final boolean fixedWidth;
+    private final FileChannel channel;
+    private final DataOutputStream index;
+    private ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    //where the buffer starts in the file
+    private long flushed = 0;
+    private long nRecords = 0;
+
+    //the record being built
+    private final long[] numbers;
+    private final byte[][] strings;
+
+    /**
+     * @param file The file to write, it is replaced if it exists.
+     * @param schema The fields of each record.
+     * @param writeIndex Whether to write an index of record offsets to "file.idx" (not needed for fixed width records).
+     * @throws IOException If the file cannot be opened.
+     */
+    public BinaryRecordWriter(File file, RecordSchema schema, boolean writeIndex) throws IOException {
+        final int nColumns = schema.getColumnCount();
+        if (nColumns == 0) {
+            throw new IllegalArgumentException("The schema must have at least one column.");
+        }
+        this.types = new ColumnarTable.Type[nColumns];
+        for (int i = 0; i < nColumns; i++) {
+            types[i] = schema.getColumnType(i);
+        }
+        this.fixedWidth = schema.isFixedWidth();
+        this.numbers = new long[nColumns];
+        this.strings = new byte[nColumns][];
+
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        DataOutputStream indexOut = null;
+        try {
+            if (writeIndex) {
+                indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFor(file)), BUFFER_SIZE));
+                indexOut.writeInt(INDEX_MAGIC);
+            }
+            int headerSize = PREAMBLE_SIZE + schema.encodedSize();
+            ensureRoom(headerSize);
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            buffer.put(fixedWidth ? FIXED_WIDTH : 0);
+            buffer.putInt(headerSize);
+            schema.write(buffer);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            if (indexOut != null) {
+                indexOut.close();
+            }
+            throw e;
+        }
+        this.index = indexOut;
+    }
+
+    /**
+     * @param file A binary record file.
+     * @return Where its index is written.
+     */
+    public static File indexFor(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    public BinaryRecordWriter setDouble(int column, double value) {
+        checkType(column, ColumnarTable.Type.DOUBLE);
+        numbers[column] = Double.doubleToRawLongBits(value);
+        return this;
+    }
+
+    public BinaryRecordWriter setLong(int column, long value) {
+        checkType(column, ColumnarTable.Type.LONG);
+        numbers[column] = value;
+        return this;
+    }
+
+    /**
+     * @param column The column.
+     * @param value The string, may be null.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public BinaryRecordWriter setString(int column, CharSequence value) {
+        checkType(column, ColumnarTable.Type.STRING);
+        strings[column] = (value == null) ? null : value.toString().getBytes(StandardCharsets.UTF_8);
+        return this;
+    }
+
+    private void checkType(int column, ColumnarTable.Type type) {
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + column + " is a " + types[column] + " column.");
+        }
+    }
+
+    /**
+     * Write the record made by the set methods, then start the next one.
+     * Fields which were not set are 0, or null for strings.
+     * @throws IOException If the file cannot be written.
+     */
+    public void writeRecord() throws IOException {
+        int size = 0;
+        if (!fixedWidth) {
+            size += Integer.BYTES;
+            for (int i = 0; i < types.length; i++) {
+                size += (types[i] == ColumnarTable.Type.STRING) ?
+                        Integer.BYTES + ((strings[i] == null) ? 0 : strings[i].length) :
+                        Long.BYTES;
+            }
+        } else {
+            size = types.length * Long.BYTES;
+        }
+        ensureRoom(size);
+        if (index != null) {
+            index.writeLong(flushed + buffer.position());
+        }
+        if (!fixedWidth) {
+            buffer.putInt(size - Integer.BYTES);
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] != ColumnarTable.Type.STRING) {
+                buffer.putLong(numbers[i]);
+            } else if (strings[i] == null) {
+                buffer.putInt(-1);
+            } else {
+                buffer.putInt(strings[i].length);
+                buffer.put(strings[i]);
+            }
+        }
+        Arrays.fill(numbers, 0);
+        Arrays.fill(strings, null);
+        nRecords++;
+    }
+
+    /**
+     * Write every row of a table, its columns must have the same types as the schema.
+     * @param table The table.
+     * @throws IOException If the file cannot be written.
+     */
+    public void write(ColumnarTable table) throws IOException {
+        if (table.getColumnCount() != types.length) {
+            throw new IllegalArgumentException("The table has " + table.getColumnCount() + " columns, not " + types.length);
+        }
+        for (int i = 0; i < types.length; i++) {
+            checkType(i, table.getColumnType(i));
+        }
+        for (int row = 0; row < table.getRowCount(); row++) {
+            for (int i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case DOUBLE:
+                        setDouble(i, table.getDouble(row, i));
+                        break;
+                    case LONG:
+                        setLong(i, table.getLong(row, i));
+                        break;
+                    default:
+                        setString(i, table.getString(row, i));
+                }
+            }
+            writeRecord();
+        }
+    }
+
+    /**
+     * @return How many records have been written.
+     */
+    public long getRecordCount() {
+        return nRecords;
+    }
+
+    private void ensureRoom(int size) throws IOException {
+        if (buffer.remaining() < size) {
+            flush();
+            if (buffer.capacity() < size) {
+                buffer = ByteBuffer.allocate(size);
+            }
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            flushed += channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Write what is buffered and close the file (and its index).
+     * @throws IOException If the file cannot be written.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (channel.isOpen()) {
+                flush();
+            }
+        } finally {
+            channel.close();
+            if (index != null) {
+                index.close();
+            }
+        }
+    }
+
+}
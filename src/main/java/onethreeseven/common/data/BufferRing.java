@@ -0,0 +1,95 @@
+package onethreeseven.common.data;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.function.Supplier;
+
+/**
+ * A bounded ring of preallocated slots for handing buffers from one thread to another.
+ * The producer claims an empty slot, fills it and publishes it; the consumer takes the
+ * published slot, uses it and releases it back to the producer. Nothing is allocated
+ * once the ring is made, and the producer can never get more than the ring's capacity ahead.
+ * @param <E> The slot type.
+ * @author Luke Bermingham
+ */
+final class BufferRing<E> {
+
+    private static final Object END = new Object();
+
+    private final ArrayBlockingQueue<E> empty;
+    private final ArrayBlockingQueue<Object> published;
+    private volatile Throwable error = null;
+
+    /**
+     * @param capacity How many slots the ring has.
+     * @param slotFactory Makes each slot up front.
+     */
+    BufferRing(int capacity, Supplier<E> slotFactory) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Ring must have at least one slot.");
+        }
+        this.empty = new ArrayBlockingQueue<>(capacity);
+        //one extra place for the end marker
+        this.published = new ArrayBlockingQueue<>(capacity + 1);
+        for (int i = 0; i < capacity; i++) {
+            empty.add(slotFactory.get());
+        }
+    }
+
+    /**
+     * Producer: wait for an empty slot.
+     * @return A slot to fill.
+     * @throws InterruptedException If interrupted whilst waiting.
+     */
+    E claim() throws InterruptedException {
+        return empty.take();
+    }
+
+    /**
+     * Producer: hand a filled slot to the consumer.
+     * @param slot The slot.
+     */
+    void publish(E slot) {
+        published.add(slot);
+    }
+
+    /**
+     * Producer: there will be no more slots published.
+     * @param error Why the producer stopped early, or null if it finished normally.
+     */
+    void finish(Throwable error) {
+        this.error = error;
+        published.add(END);
+    }
+
+    /**
+     * Consumer: wait for the next published slot.
+     * @return The slot, or null once the producer has finished.
+     * @throws InterruptedException If interrupted whilst waiting.
+     */
+    @SuppressWarnings("unchecked")
+    E take() throws InterruptedException {
+        Object slot = published.take();
+        if (slot == END) {
+            //leave the marker in place for any other consumers
+            published.add(END);
+            return null;
+        }
+        return (E) slot;
+    }
+
+    /**
+     * Consumer: give a slot back so the producer can refill it.
+     * @param slot The slot.
+     */
+    void release(E slot) {
+        empty.add(slot);
+    }
+
+    /**
+     * @return Why the producer finished early, or null if it did not (or has not finished).
+     */
+    Throwable getError() {
+        return error;
+    }
+
+}
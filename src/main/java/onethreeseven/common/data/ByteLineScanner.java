@@ -0,0 +1,353 @@
+package onethreeseven.common.data;
+
+import onethreeseven.common.util.TerminatorMatcher;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Splits a sequence of raw byte blocks into lines without decoding them.
+ * With no custom terminators lines end at \n, \r or \r\n (the same rule as
+ * {@link java.io.BufferedReader#readLine()}); otherwise a {@link TerminatorMatcher} is used.
+ * Lines are pulled one at a time using {@link #next()}; the line's bytes are
+ * only valid until the next call.
+ * @author Luke Bermingham
+ */
+final class ByteLineScanner implements Closeable {
+
+    /**
+     * The largest region of a file that is mapped at once.
+     */
+    static final long MAX_MAP_WINDOW = 1L << 28;
+
+    /**
+     * Somewhere to pull blocks of bytes from.
+     */
+    interface BlockSource extends Closeable {
+        /**
+         * Get the next block of bytes, the previous block is no longer used once this is called.
+         * @return The next block, with the bytes between its position and limit unread, or null at the end.
+         * @throws IOException If the underlying source cannot be read.
+         */
+        ByteBuffer nextBlock() throws IOException;
+    }
+
+    private final BlockSource source;
+    private final TerminatorMatcher matcher;
+
+    private ByteBuffer block = null;
+    private int blockPos = 0;
+    private int blockLimit = 0;
+    private int state = TerminatorMatcher.START;
+    private boolean skipLF = false;
+    private boolean terminated = false;
+
+    //bytes of a line which started in an earlier block (or a copy of a line in a direct buffer)
+    private byte[] scratch = new byte[1024];
+    private int scratchLen = 0;
+
+    private byte[] lineBytes;
+    private int lineOffset;
+    private int lineLength;
+    private long consumed = 0;
+
+    /**
+     * @param source Where to read the bytes from.
+     * @param matcher The compiled custom terminators, or null to use \n, \r and \r\n.
+     */
+    ByteLineScanner(BlockSource source, TerminatorMatcher matcher) {
+        this.source = source;
+        this.matcher = matcher;
+    }
+
+    /**
+     * Move to the next line.
+     * @return True if there is another line, false if the source is exhausted.
+     * @throws IOException If the source cannot be read.
+     */
+    boolean next() throws IOException {
+        while (true) {
+            if (blockPos == blockLimit) {
+                if (!advanceBlock()) {
+                    //whatever is left over is the last line (it just had no terminator)
+                    if (scratchLen > 0) {
+                        setLineFromScratch();
+                        terminated = false;
+                        return true;
+                    }
+                    return false;
+                }
+                continue;
+            }
+
+            final int start = blockPos;
+            int i = start;
+
+            if (matcher == null) {
+                if (skipLF) {
+                    skipLF = false;
+                    if (block.get(i) == '\n') {
+                        blockPos++;
+                        consumed++;
+                        continue;
+                    }
+                }
+                byte b = 0;
+                while (i < blockLimit && (b = block.get(i)) != '\n' && b != '\r') {
+                    i++;
+                }
+                if (i == blockLimit) {
+                    carry(start, i);
+                    continue;
+                }
+                setLine(start, i);
+                skipLF = b == '\r';
+                terminated = true;
+                blockPos = i + 1;
+                consumed += blockPos - start;
+                return true;
+            } else {
+                int termLength = 0;
+                while (i < blockLimit) {
+                    state = matcher.step(state, block.get(i++) & 0xFF);
+                    if ((termLength = matcher.matchLength(state)) != 0) {
+                        break;
+                    }
+                }
+                if (termLength == 0) {
+                    carry(start, i);
+                    continue;
+                }
+                state = TerminatorMatcher.START;
+                blockPos = i;
+                consumed += i - start;
+                int inBlock = i - start;
+                if (inBlock >= termLength) {
+                    setLine(start, i - termLength);
+                } else {
+                    //the terminator began in an earlier block
+                    scratchLen -= termLength - inBlock;
+                    setLineFromScratch();
+                }
+                terminated = true;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The array holding the current line.
+     */
+    byte[] bytes() {
+        return lineBytes;
+    }
+
+    /**
+     * @return Where the current line starts in {@link #bytes()}.
+     */
+    int offset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return The length of the current line, excluding its terminator.
+     */
+    int length() {
+        return lineLength;
+    }
+
+    /**
+     * @return How many bytes have been consumed so far, including terminators.
+     */
+    long consumed() {
+        return consumed;
+    }
+
+    /**
+     * @return False if the current line is the last one and ran into the end of the source
+     * instead of a terminator, i.e. it may not be complete yet.
+     */
+    boolean terminated() {
+        return terminated;
+    }
+
+    /**
+     * @return True if the last terminator was a \r, so a \n straight after it belongs to the same line break.
+     */
+    boolean isPendingLF() {
+        return skipLF;
+    }
+
+    /**
+     * Carry on from an earlier scan that stopped just after a \r (see {@link #isPendingLF()}).
+     * @param pendingLF Whether to skip a \n at the very start of the source.
+     */
+    void setPendingLF(boolean pendingLF) {
+        this.skipLF = pendingLF;
+    }
+
+    @Override
+    public void close() throws IOException {
+        source.close();
+    }
+
+    private boolean advanceBlock() throws IOException {
+        ByteBuffer next = source.nextBlock();
+        if (next == null) {
+            block = null;
+            blockPos = 0;
+            blockLimit = 0;
+            return false;
+        }
+        block = next;
+        blockPos = next.position();
+        blockLimit = next.limit();
+        return true;
+    }
+
+    private void carry(int from, int to) {
+        int len = to - from;
+        ensureScratch(scratchLen + len);
+        block.position(from);
+        block.get(scratch, scratchLen, len);
+        scratchLen += len;
+        blockPos = to;
+        consumed += len;
+    }
+
+    private void setLine(int from, int to) {
+        if (scratchLen == 0 && block.hasArray()) {
+            lineBytes = block.array();
+            lineOffset = block.arrayOffset() + from;
+            lineLength = to - from;
+            return;
+        }
+        int len = to - from;
+        ensureScratch(scratchLen + len);
+        block.position(from);
+        block.get(scratch, scratchLen, len);
+        scratchLen += len;
+        setLineFromScratch();
+    }
+
+    private void setLineFromScratch() {
+        lineBytes = scratch;
+        lineOffset = 0;
+        lineLength = scratchLen;
+        scratchLen = 0;
+    }
+
+    private void ensureScratch(int size) {
+        if (size > scratch.length) {
+            byte[] bigger = new byte[Math.max(size, scratch.length * 2)];
+            System.arraycopy(scratch, 0, bigger, 0, scratchLen);
+            scratch = bigger;
+        }
+    }
+
+    /**
+     * Find the first line that starts at or after a position, i.e. the position just after
+     * a terminator. Scanning begins a little before the position so a terminator
+     * straddling it is still recognised.
+     * @param channel The file to scan, it is not closed.
+     * @param matcher The compiled custom terminators, or null to use \n, \r and \r\n.
+     * @param position Any position in the file.
+     * @param end The end of the file (or of the region being considered).
+     * @return The start of the first line at or after the position, or the end if there is none.
+     * @throws IOException If the file cannot be read.
+     */
+    static long nextLineStart(FileChannel channel, TerminatorMatcher matcher, long position, long end) throws IOException {
+        if (position <= 0) {
+            return 0;
+        }
+        if (position >= end) {
+            return end;
+        }
+        long from;
+        if (matcher == null) {
+            //enough to see a \r\n straddling the position
+            from = Math.max(0, position - 2);
+        } else {
+            //terminators can overlap themselves (think "##" in "#####"), so go back to where
+            //no terminator could be in progress, i.e. just after a byte no terminator contains
+            from = position;
+            while (from > 0 && matcher.isTerminatorSymbol(byteAt(channel, from - 1) & 0xFF)) {
+                from--;
+            }
+        }
+        try (ByteLineScanner scanner = new ByteLineScanner(mapped(channel, from, end), matcher)) {
+            while (scanner.next()) {
+                long lineEnd = from + scanner.consumed();
+                //a \r leaves its \n unconsumed until the next line is read, it still belongs to this line
+                if (matcher == null && scanner.skipLF && lineEnd < end &&
+                        byteAt(channel, lineEnd) == '\n') {
+                    lineEnd++;
+                }
+                if (lineEnd >= position) {
+                    return lineEnd;
+                }
+            }
+        }
+        return end;
+    }
+
+    private static byte byteAt(FileChannel channel, long position) throws IOException {
+        ByteBuffer single = ByteBuffer.allocate(1);
+        channel.read(single, position);
+        return single.get(0);
+    }
+
+    /**
+     * A source of exactly one block, for bytes that are already in memory.
+     * @param bytes The bytes.
+     * @return A source giving the bytes as a single block.
+     */
+    static BlockSource wrap(byte[] bytes) {
+        return new BlockSource() {
+            private boolean given = false;
+
+            @Override
+            public ByteBuffer nextBlock() {
+                if (given) {
+                    return null;
+                }
+                given = true;
+                return ByteBuffer.wrap(bytes);
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Maps a region of a file, one window at a time. Closing the source does not close the channel.
+     * @param channel The file to map.
+     * @param start The first byte to read.
+     * @param end One past the last byte to read.
+     * @return A source of mapped blocks.
+     */
+    static BlockSource mapped(FileChannel channel, long start, long end) {
+        return new BlockSource() {
+            private long position = start;
+
+            @Override
+            public ByteBuffer nextBlock() throws IOException {
+                if (position >= end) {
+                    return null;
+                }
+                long size = Math.min(MAX_MAP_WINDOW, end - position);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+                position += size;
+                return mapped;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+}
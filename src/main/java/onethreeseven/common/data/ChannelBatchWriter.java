@@ -0,0 +1,184 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+
+/**
+ * Writes batches through a {@link FileChannel}: strings are encoded straight into direct buffers,
+ * which are written together with one gathering write per batch (or per {@link #MAX_GATHER} buffers).
+ * The buffers are reused, so no garbage is made and the bytes are not copied again by the channel.
+ * ASCII, and Latin-1 when encoding to UTF-8 or ISO-8859-1, is encoded char by char without the
+ * {@link CharsetEncoder}; a string is only handed to the encoder from its first char outside that range.
+ * @author Luke Bermingham
+ */
+final class ChannelBatchWriter extends BatchWriter {
+
+    static final int BUFFER_SIZE = 1 << 16;
+    static final int MAX_GATHER = 16;
+
+    private final FileOutputStream out;
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final boolean utf8;
+    //chars below this are encoded without the encoder
+    private final int fastLimit;
+
+    private final ArrayDeque<ByteBuffer> pool;
+    private final ByteBuffer[] gathered = new ByteBuffer[MAX_GATHER];
+    private int nGathered = 0;
+    private ByteBuffer current = null;
+
+    /**
+     * @param file The file to append to.
+     * @param charset How to encode the strings.
+     * @throws IOException If the file cannot be opened.
+     */
+    ChannelBatchWriter(File file, Charset charset) throws IOException {
+        this(file, charset, new ArrayDeque<>());
+    }
+
+    /**
+     * @param file The file to append to.
+     * @param charset How to encode the strings.
+     * @param pool Where to take buffers from and return them to, it can be shared by writers
+     *             used from the same thread. Between batches a writer holds no buffers.
+     * @throws IOException If the file cannot be opened.
+     */
+    ChannelBatchWriter(File file, Charset charset, ArrayDeque<ByteBuffer> pool) throws IOException {
+        this.pool = pool;
+        this.out = new FileOutputStream(file, true);
+        this.channel = out.getChannel();
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.utf8 = charset.equals(StandardCharsets.UTF_8);
+        if (utf8) {
+            //up to here UTF-8 needs at most two bytes
+            this.fastLimit = 0x800;
+        } else if (charset.equals(StandardCharsets.ISO_8859_1)) {
+            this.fastLimit = 0x100;
+        } else if (charset.equals(StandardCharsets.US_ASCII)) {
+            this.fastLimit = 0x80;
+        } else {
+            this.fastLimit = 0;
+        }
+    }
+
+    @Override
+    void add(CharSequence toAppend) throws IOException {
+        final int length = toAppend.length();
+        for (int i = 0; i < length; i++) {
+            char c = toAppend.charAt(i);
+            if (c >= fastLimit) {
+                encode(toAppend, i);
+                return;
+            }
+            if (c < 0x80 || !utf8) {
+                room(1).put((byte) c);
+            } else {
+                ByteBuffer buffer = room(2);
+                buffer.put((byte) (0xC0 | (c >> 6)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    /**
+     * Encode the rest of a string with the encoder.
+     * @param toAppend The string.
+     * @param from Where to start.
+     * @throws IOException If part of the batch had to be written and that failed.
+     */
+    private void encode(CharSequence toAppend, int from) throws IOException {
+        CharBuffer chars = CharBuffer.wrap(toAppend, from, toAppend.length());
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, room(1), true);
+            if (result.isUnderflow()) {
+                result = encoder.flush(current);
+            }
+            if (result.isUnderflow()) {
+                return;
+            }
+            //overflow, carry on in a fresh buffer
+            nextBuffer();
+        }
+    }
+
+    /**
+     * @param bytes How many bytes are about to be put.
+     * @return A buffer with at least that much room.
+     * @throws IOException If part of the batch had to be written and that failed.
+     */
+    private ByteBuffer room(int bytes) throws IOException {
+        if (current == null || current.remaining() < bytes) {
+            nextBuffer();
+        }
+        return current;
+    }
+
+    private void nextBuffer() throws IOException {
+        if (current != null) {
+            current.flip();
+            gathered[nGathered++] = current;
+            current = null;
+            if (nGathered == MAX_GATHER) {
+                writeGathered();
+            }
+        }
+        current = pool.isEmpty() ? ByteBuffer.allocateDirect(BUFFER_SIZE) : pool.pop();
+        current.clear();
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        if (current != null) {
+            if (current.position() > 0) {
+                current.flip();
+                gathered[nGathered++] = current;
+            } else {
+                pool.push(current);
+            }
+            current = null;
+        }
+        writeGathered();
+    }
+
+    private void writeGathered() throws IOException {
+        long remaining = 0;
+        for (int i = 0; i < nGathered; i++) {
+            remaining += gathered[i].remaining();
+        }
+        //a gathering write may not write everything in one go
+        while (remaining > 0) {
+            remaining -= channel.write(gathered, 0, nGathered);
+        }
+        for (int i = 0; i < nGathered; i++) {
+            pool.push(gathered[i]);
+            gathered[i] = null;
+        }
+        nGathered = 0;
+    }
+
+    @Override
+    void force() throws IOException {
+        //with the metadata, an append changes the file's length
+        channel.force(true);
+    }
+
+    @Override
+    void close() throws IOException {
+        out.close();
+    }
+
+}
@@ -0,0 +1,484 @@
+package onethreeseven.common.data;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A table of parsed records stored by column in primitive arrays, for parsers to build up and return
+ * from {@link AbstractLineBasedParser#done()} instead of a list of record objects.
+ * A double or long field costs 8 bytes and a string field 4 bytes (an index into the column's
+ * dictionary, each distinct string is only stored once), compared with the object header,
+ * boxed fields and list slot of a record object.
+ * <p>
+ * Typical use inside a parser:
+ * <pre>
+ * private final ColumnarTable table = new ColumnarTable()
+ *         .addColumn("time", ColumnarTable.Type.LONG)
+ *         .addColumn("x", ColumnarTable.Type.DOUBLE)
+ *         .addColumn("mode", ColumnarTable.Type.STRING);
+ * private final FieldTokenizer tokenizer = new FieldTokenizer();
+ * protected void parseLine(String line) {
+ *     parseLine((CharSequence) line);
+ * }
+ * protected void parseLine(CharSequence line) {
+ *     table.appendRow(tokenizer.reset(line));
+ * }
+ * protected ColumnarTable done() {
+ *     return table.trimToSize();
+ * }
+ * </pre>
+ * @author Luke Bermingham
+ */
+public class ColumnarTable {
+
+    /**
+     * The kinds of column.
+     */
+    public enum Type {
+        DOUBLE, LONG, STRING
+    }
+
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    private String[] names = new String[0];
+    private Type[] types = new Type[0];
+    //a double[], long[] or int[] (dictionary codes) per column
+    private Object[] columns = new Object[0];
+    private Dictionary[] dictionaries = new Dictionary[0];
+    private final Map<String, Integer> columnIndex = new HashMap<>();
+
+    private int capacity;
+    private int nRows = 0;
+
+    public ColumnarTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity How many rows to make room for up front, the columns grow as needed.
+     */
+    public ColumnarTable(int initialCapacity) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("Initial capacity must be at least one.");
+        }
+        this.capacity = initialCapacity;
+    }
+
+    /**
+     * Add a column, this has to be done before any rows are added.
+     * @param name The name of the column, which must be unique.
+     * @param type The type of the column.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable addColumn(String name, Type type) {
+        if (nRows > 0) {
+            throw new IllegalStateException("Columns must be added before any rows.");
+        }
+        if (columnIndex.containsKey(name)) {
+            throw new IllegalArgumentException("There is already a column called " + name);
+        }
+        int column = names.length;
+        names = Arrays.copyOf(names, column + 1);
+        types = Arrays.copyOf(types, column + 1);
+        columns = Arrays.copyOf(columns, column + 1);
+        dictionaries = Arrays.copyOf(dictionaries, column + 1);
+        names[column] = name;
+        types[column] = type;
+        switch (type) {
+            case DOUBLE:
+                columns[column] = new double[capacity];
+                break;
+            case LONG:
+                columns[column] = new long[capacity];
+                break;
+            default:
+                int[] codes = new int[capacity];
+                Arrays.fill(codes, Dictionary.NULL_CODE);
+                columns[column] = codes;
+                dictionaries[column] = new Dictionary();
+        }
+        columnIndex.put(name, column);
+        return this;
+    }
+
+    /**
+     * Start a new row, its fields are then filled in using the set methods.
+     * Fields which are not set are 0, or null for strings.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable newRow() {
+        if (nRows == capacity) {
+            grow(Math.max(capacity + 1, capacity + (capacity >> 1)));
+        }
+        nRows++;
+        return this;
+    }
+
+    /**
+     * Add a row straight from a tokenized line, field i going into column i.
+     * Strings are only copied the first time they are seen.
+     * @param fields The tokenized line.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws NumberFormatException If a numeric field is not a number, in which case no row is added.
+     * @throws IndexOutOfBoundsException If the line has too few fields, in which case no row is added.
+     */
+    public ColumnarTable appendRow(FieldTokenizer fields) {
+        newRow();
+        final int row = nRows - 1;
+        try {
+            for (int i = 0; i < types.length; i++) {
+                switch (types[i]) {
+                    case DOUBLE:
+                        ((double[]) columns[i])[row] = fields.getDouble(i);
+                        break;
+                    case LONG:
+                        ((long[]) columns[i])[row] = fields.getLong(i);
+                        break;
+                    default:
+                        ((int[]) columns[i])[row] = dictionaries[i].encode(fields.getField(i));
+                }
+            }
+        } catch (RuntimeException e) {
+            //leave the table as it was
+            clearRow(row);
+            nRows--;
+            throw e;
+        }
+        return this;
+    }
+
+    /**
+     * @param column The column to set in the newest row.
+     * @param value The value.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable setDouble(int column, double value) {
+        ((double[]) column(column, Type.DOUBLE))[lastRow()] = value;
+        return this;
+    }
+
+    /**
+     * @param column The column to set in the newest row.
+     * @param value The value.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable setLong(int column, long value) {
+        ((long[]) column(column, Type.LONG))[lastRow()] = value;
+        return this;
+    }
+
+    /**
+     * @param column The column to set in the newest row.
+     * @param value The value, which is only copied if it has not been seen in this column before.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable setString(int column, CharSequence value) {
+        int[] codes = (int[]) column(column, Type.STRING);
+        codes[lastRow()] = (value == null) ? Dictionary.NULL_CODE : dictionaries[column].encode(value);
+        return this;
+    }
+
+    /**
+     * Append all the rows of another table with the same columns, i.e. to combine the outputs
+     * of parsing in parallel (see {@link AbstractLineBasedParser#combine(Object, Object)}).
+     * @param other The other table.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable appendAll(ColumnarTable other) {
+        if (!Arrays.equals(types, other.types) || !Arrays.equals(names, other.names)) {
+            throw new IllegalArgumentException("Tables must have the same columns.");
+        }
+        if (nRows + other.nRows > capacity) {
+            grow(Math.max(nRows + other.nRows, capacity + (capacity >> 1)));
+        }
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Type.STRING) {
+                //the other table's codes mean different strings, so translate them
+                int[] remap = dictionaries[i].encodeAll(other.dictionaries[i]);
+                int[] from = (int[]) other.columns[i];
+                int[] to = (int[]) columns[i];
+                for (int row = 0; row < other.nRows; row++) {
+                    to[nRows + row] = (from[row] == Dictionary.NULL_CODE) ? Dictionary.NULL_CODE : remap[from[row]];
+                }
+            } else {
+                System.arraycopy(other.columns[i], 0, columns[i], nRows, other.nRows);
+            }
+        }
+        nRows += other.nRows;
+        return this;
+    }
+
+    /**
+     * Shrink the columns so they hold exactly the rows added, i.e. once parsing is done.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ColumnarTable trimToSize() {
+        if (nRows != capacity) {
+            grow(nRows);
+        }
+        return this;
+    }
+
+    /**
+     * @return How many rows the table has.
+     */
+    public int getRowCount() {
+        return nRows;
+    }
+
+    /**
+     * @return How many columns the table has.
+     */
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    /**
+     * @param column The index of a column.
+     * @return The name of the column.
+     */
+    public String getColumnName(int column) {
+        return names[column];
+    }
+
+    /**
+     * @param column The index of a column.
+     * @return The type of the column.
+     */
+    public Type getColumnType(int column) {
+        return types[column];
+    }
+
+    /**
+     * @param name The name of a column.
+     * @return The index of the column.
+     * @throws IllegalArgumentException If there is no such column.
+     */
+    public int getColumnIndex(String name) {
+        Integer column = columnIndex.get(name);
+        if (column == null) {
+            throw new IllegalArgumentException("There is no column called " + name);
+        }
+        return column;
+    }
+
+    /**
+     * @param row The index of a row.
+     * @param column The index of a double column.
+     * @return The value.
+     */
+    public double getDouble(int row, int column) {
+        return ((double[]) column(column, Type.DOUBLE))[checkRow(row)];
+    }
+
+    /**
+     * @param row The index of a row.
+     * @param column The index of a long column.
+     * @return The value.
+     */
+    public long getLong(int row, int column) {
+        return ((long[]) column(column, Type.LONG))[checkRow(row)];
+    }
+
+    /**
+     * @param row The index of a row.
+     * @param column The index of a string column.
+     * @return The value, or null if it was never set.
+     */
+    public String getString(int row, int column) {
+        int code = ((int[]) column(column, Type.STRING))[checkRow(row)];
+        return dictionaries[column].decode(code);
+    }
+
+    /**
+     * @param column The index of a double column.
+     * @return The column's values. Once the table has been trimmed (see {@link #trimToSize()}) this is the
+     * table's own array, so it must not be modified and no copy is made; before that it is a copy.
+     */
+    public double[] getDoubleColumn(int column) {
+        double[] values = (double[]) column(column, Type.DOUBLE);
+        return (values.length == nRows) ? values : Arrays.copyOf(values, nRows);
+    }
+
+    /**
+     * @param column The index of a long column.
+     * @return The column's values. Once the table has been trimmed (see {@link #trimToSize()}) this is the
+     * table's own array, so it must not be modified and no copy is made; before that it is a copy.
+     */
+    public long[] getLongColumn(int column) {
+        long[] values = (long[]) column(column, Type.LONG);
+        return (values.length == nRows) ? values : Arrays.copyOf(values, nRows);
+    }
+
+    /**
+     * @param column The index of a string column.
+     * @return The column's dictionary codes, -1 meaning null, see {@link #getDictionary(int)}.
+     * Once the table has been trimmed (see {@link #trimToSize()}) this is the table's own array,
+     * so it must not be modified and no copy is made; before that it is a copy.
+     */
+    public int[] getStringCodes(int column) {
+        int[] codes = (int[]) column(column, Type.STRING);
+        return (codes.length == nRows) ? codes : Arrays.copyOf(codes, nRows);
+    }
+
+    /**
+     * @param column The index of a string column.
+     * @return The distinct strings of the column, indexed by code.
+     */
+    public String[] getDictionary(int column) {
+        column(column, Type.STRING);
+        return dictionaries[column].toArray();
+    }
+
+    private Object column(int column, Type type) {
+        if (column < 0 || column >= types.length) {
+            throw new IndexOutOfBoundsException("Column " + column + " does not exist, there are " + types.length + " columns.");
+        }
+        if (types[column] != type) {
+            throw new IllegalArgumentException("Column " + names[column] + " is " + types[column] + " not " + type);
+        }
+        return columns[column];
+    }
+
+    private int lastRow() {
+        if (nRows == 0) {
+            throw new IllegalStateException("Call newRow() before setting fields.");
+        }
+        return nRows - 1;
+    }
+
+    private int checkRow(int row) {
+        if (row < 0 || row >= nRows) {
+            throw new IndexOutOfBoundsException("Row " + row + " does not exist, there are " + nRows + " rows.");
+        }
+        return row;
+    }
+
+    private void clearRow(int row) {
+        for (int i = 0; i < columns.length; i++) {
+            switch (types[i]) {
+                case DOUBLE:
+                    ((double[]) columns[i])[row] = 0;
+                    break;
+                case LONG:
+                    ((long[]) columns[i])[row] = 0;
+                    break;
+                default:
+                    ((int[]) columns[i])[row] = Dictionary.NULL_CODE;
+            }
+        }
+    }
+
+    private void grow(int newCapacity) {
+        for (int i = 0; i < columns.length; i++) {
+            switch (types[i]) {
+                case DOUBLE:
+                    columns[i] = Arrays.copyOf((double[]) columns[i], newCapacity);
+                    break;
+                case LONG:
+                    columns[i] = Arrays.copyOf((long[]) columns[i], newCapacity);
+                    break;
+                default:
+                    int[] codes = Arrays.copyOf((int[]) columns[i], newCapacity);
+                    if (newCapacity > capacity) {
+                        Arrays.fill(codes, capacity, newCapacity, Dictionary.NULL_CODE);
+                    }
+                    columns[i] = codes;
+            }
+        }
+        capacity = newCapacity;
+    }
+
+    /**
+     * The distinct strings of a column, found by hashing the chars of a line directly
+     * so that a string which has been seen before does not need to be copied.
+     */
+    private static final class Dictionary {
+
+        private static final int NULL_CODE = -1;
+
+        private String[] values = new String[16];
+        private int size = 0;
+        //code + 1 for each slot, 0 when the slot is empty
+        private int[] slots = new int[32];
+
+        int encode(CharSequence value) {
+            final int hash = hash(value);
+            int mask = slots.length - 1;
+            int idx = mix(hash) & mask;
+            int slot;
+            while ((slot = slots[idx]) != 0) {
+                String existing = values[slot - 1];
+                if (existing.hashCode() == hash && contentEquals(existing, value)) {
+                    return slot - 1;
+                }
+                idx = (idx + 1) & mask;
+            }
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size] = value.toString();
+            slots[idx] = ++size;
+            if (size * 2 > slots.length) {
+                rehash();
+            }
+            return size - 1;
+        }
+
+        int[] encodeAll(Dictionary other) {
+            int[] remap = new int[other.size];
+            for (int i = 0; i < other.size; i++) {
+                remap[i] = encode(other.values[i]);
+            }
+            return remap;
+        }
+
+        String decode(int code) {
+            return (code == NULL_CODE) ? null : values[code];
+        }
+
+        String[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+
+        private void rehash() {
+            int[] bigger = new int[slots.length * 2];
+            int mask = bigger.length - 1;
+            for (int code = 0; code < size; code++) {
+                int idx = mix(values[code].hashCode()) & mask;
+                while (bigger[idx] != 0) {
+                    idx = (idx + 1) & mask;
+                }
+                bigger[idx] = code + 1;
+            }
+            slots = bigger;
+        }
+
+        //the same as String.hashCode() so it can be compared with the cached hash of the stored strings
+        private static int hash(CharSequence value) {
+            int h = 0;
+            for (int i = 0; i < value.length(); i++) {
+                h = 31 * h + value.charAt(i);
+            }
+            return h;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean contentEquals(String existing, CharSequence value) {
+            if (existing.length() != value.length()) {
+                return false;
+            }
+            for (int i = 0; i < existing.length(); i++) {
+                if (existing.charAt(i) != value.charAt(i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+}
@@ -1,83 +1,565 @@
 package onethreeseven.common.data;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Allows concurrently appending to a file.
- * It achieves this by using a blocking queue.
+ * Appending threads add to a lock-free queue and a single writer thread drains it: everything
+ * pending is taken in one batch, encoded together and written to the file in one call.
+ * Appending threads never wait on the disk unless the queue is full; when it is
+ * they block until the writer thread catches up. The writer thread parks while
+ * there is nothing to write and is unparked by the next append.
+ * <p>
+ * How soon the data is forced to the disk is set by the {@link Durability} policy, and each append
+ * returns a future which completes once its data has been forced. With {@link Durability#GROUP_COMMIT}
+ * every append in a batch shares one force, so many appenders can wait for durability at close to
+ * the speed of not waiting at all.
+ * <p>
+ * Threads which cannot afford to block can use {@link #appendAsync(String)}, which never waits
+ * for room in the queue; what happens when it is full is set by the {@link OverflowPolicy}.
  * @author Luke Bermingham
  */
 public class ConcurrentFileWriter {
 
-    private final Byte mon = 0;
+    /**
+     * How the writer thread gets the strings into the file.
+     */
+    public enum Backend {
+        /**
+         * Each batch is collected, encoded into a heap buffer and written to a stream.
+         */
+        STREAM,
+        /**
+         * Strings are encoded straight into pooled direct buffers, with a fast path for ASCII and Latin-1,
+         * and each batch is written to a file channel with gathering writes. Fewer copies and system calls.
+         */
+        CHANNEL
+    }
+
+    /**
+     * When the data is forced to the disk, so that it survives a crash.
+     */
+    public enum Durability {
+        /**
+         * Never forced by the writer, left to the operating system. Appends return a future
+         * which is already complete and promises nothing.
+         */
+        NONE,
+        /**
+         * Forced at most once every force interval, see {@link #setForceInterval(long)}.
+         * Appends complete at the first force after they are written.
+         */
+        PERIODIC,
+        /**
+         * Forced after every batch is written, and every append in the batch completes on that one force.
+         */
+        GROUP_COMMIT
+    }
+
+    /**
+     * What {@link #appendAsync(String)} does when the queue is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Wait for room, like {@link #append(String)}.
+         */
+        BLOCK,
+        /**
+         * Reject the append, its future completes with a {@link RejectedExecutionException}.
+         */
+        FAIL_FAST,
+        /**
+         * Drop the oldest string still waiting in the queue to make room. The dropped append's future
+         * completes with a {@link RejectedExecutionException}, unless the durability is
+         * {@link Durability#NONE}, in which case it is only counted.
+         */
+        DROP_OLDEST,
+        /**
+         * Append to the spill file instead, see {@link #setSpillFile(File)}. The future completes once the
+         * string is written to the spill file; it is not forced.
+         */
+        SPILL
+    }
+
+    private static final CompletableFuture<Void> NOT_FORCED = CompletableFuture.completedFuture(null);
+
+    /**
+     * A queued string and the future to complete once it is forced.
+     */
+    private static final class Append {
+        private final CharSequence text;
+        private final CompletableFuture<Void> forced;
 
-    private final FileWriter writer;
-    private final ArrayBlockingQueue<String> toProcess;
-    private final AtomicBoolean stillWriting = new AtomicBoolean(true);
+        private Append(CharSequence text, CompletableFuture<Void> forced) {
+            this.text = text;
+            this.forced = forced;
+        }
+    }
+
+    private final BatchWriter batchWriter;
+    private final Charset charset;
+    private final int maxConcurrentWrites;
+    private final ConcurrentLinkedQueue<Append> toProcess = new ConcurrentLinkedQueue<>();
+    private final Semaphore capacity;
     private final Thread writerThread;
+    private volatile boolean stillWriting = true;
+    //set once the writer thread has stopped taking from the queue
+    private volatile boolean stopped = false;
+    private volatile IOException failure = null;
+    private volatile Durability durability = Durability.NONE;
+    private volatile long forceIntervalNanos = 1_000_000_000L;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+    private volatile BatchWriter spillWriter = null;
+
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+
+    //only used by the writer thread
+    private final List<CompletableFuture<Void>> awaitingForce = new ArrayList<>();
+    private long lastForce = System.nanoTime();
 
+    /**
+     * Append using the {@link Backend#STREAM} backend and the platform's charset.
+     * @param toWriteTo The file to append to, it is created if it does not exist.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @throws IOException If the file cannot be opened.
+     */
     public ConcurrentFileWriter(File toWriteTo, int maxConcurrentWrites) throws IOException {
-        this.writer = new FileWriter(toWriteTo, true);
-        this.toProcess = new ArrayBlockingQueue<>(maxConcurrentWrites, false);
+        this(toWriteTo, maxConcurrentWrites, Backend.STREAM, Charset.defaultCharset());
+    }
 
-        writerThread = new Thread(() -> {
-            synchronized (mon) {
-                try {
-                    //while we are still writing
-                    while (!toProcess.isEmpty() || stillWriting.get()) {
-                        //write anything that we have to
-                        while (!toProcess.isEmpty()) {
-                            String toWrite = toProcess.poll();
-                            if (toWrite != null) {
-                                writer.append(toWrite, 0, toWrite.length());
-                            }
+    /**
+     * @param toWriteTo The file to append to, it is created if it does not exist.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @param backend How to write to the file.
+     * @param charset How to encode the strings.
+     * @throws IOException If the file cannot be opened.
+     */
+    public ConcurrentFileWriter(File toWriteTo, int maxConcurrentWrites, Backend backend, Charset charset) throws IOException {
+        this((backend == Backend.CHANNEL) ?
+                new ChannelBatchWriter(toWriteTo, charset) :
+                new StreamBatchWriter(toWriteTo, charset), maxConcurrentWrites, charset);
+    }
+
+    /**
+     * @param batchWriter What the writer thread writes with.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @param charset How the strings are encoded, for the spill file.
+     */
+    ConcurrentFileWriter(BatchWriter batchWriter, int maxConcurrentWrites, Charset charset) {
+        if (maxConcurrentWrites < 1) {
+            throw new IllegalArgumentException("Max concurrent writes must be at least one.");
+        }
+        this.batchWriter = batchWriter;
+        this.charset = charset;
+        this.maxConcurrentWrites = maxConcurrentWrites;
+        this.capacity = new Semaphore(maxConcurrentWrites);
+
+        writerThread = new Thread(this::writeLoop, "Concurrent-File-Writer-" + System.currentTimeMillis());
+        writerThread.start();
+    }
+
+    /**
+     * Queue a string to be appended to the file, blocking if the queue is full.
+     * Strings appended by the same thread are written in the order they were appended.
+     * @param toAppend The string to append.
+     * @return Completes once the string has been forced to the disk (according to the {@link Durability} policy),
+     * or exceptionally if it could not be written or forced, or if appending was interrupted.
+     * @throws IllegalStateException If the writer has been closed.
+     * @throws UncheckedIOException If an earlier write to the file failed.
+     */
+    public CompletableFuture<Void> append(String toAppend) {
+        if (!stillWriting) {
+            throw new IllegalStateException("The writer has been closed.");
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException(failed);
+        }
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return failedFuture(e);
+        }
+        return enqueue(toAppend);
+    }
+
+    /**
+     * Queue a string to be appended to the file without waiting for room in the queue
+     * (unless the overflow policy is {@link OverflowPolicy#BLOCK}). If the queue is full the
+     * {@link OverflowPolicy} decides what happens.
+     * @param toAppend The string to append.
+     * @return Completes once the string has been forced to the disk (according to the {@link Durability} policy),
+     * or exceptionally if it was rejected or dropped, if it could not be written,
+     * or if the writer has been closed or has failed.
+     */
+    public CompletableFuture<Void> appendAsync(String toAppend) {
+        final OverflowPolicy policy = overflowPolicy;
+        if (policy == OverflowPolicy.BLOCK) {
+            try {
+                return append(toAppend);
+            } catch (RuntimeException e) {
+                return failedFuture(e);
+            }
+        }
+        if (!stillWriting) {
+            return failedFuture(new IllegalStateException("The writer has been closed."));
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            return failedFuture(new UncheckedIOException(failed));
+        }
+        while (!capacity.tryAcquire()) {
+            switch (policy) {
+                case DROP_OLDEST:
+                    Append oldest = toProcess.poll();
+                    if (oldest != null) {
+                        //take over the dropped string's place in the queue
+                        dropped.increment();
+                        if (oldest.forced != NOT_FORCED) {
+                            oldest.forced.completeExceptionally(
+                                    new RejectedExecutionException("Dropped to make room for a newer append."));
                         }
-                        //wait to be woken up again
-                        mon.wait();
+                        return enqueue(toAppend);
                     }
-                } catch (IOException | InterruptedException e) {
-                    e.printStackTrace();
-                }
+                    //the writer thread took everything, room is about to be released
+                    Thread.yield();
+                    break;
+                case SPILL:
+                    return spill(toAppend);
+                default:
+                    rejected.increment();
+                    return failedFuture(new RejectedExecutionException("The write queue is full."));
             }
-        }, "Concurrent-File-Writer-" + System.currentTimeMillis());
-        writerThread.start();
+        }
+        return enqueue(toAppend);
+    }
+
+    /**
+     * Queue a string once its place in the queue has been acquired.
+     * @param toAppend The string.
+     * @return The append's future.
+     */
+    private CompletableFuture<Void> enqueue(CharSequence toAppend) {
+        CompletableFuture<Void> forced = (durability == Durability.NONE) ? NOT_FORCED : new CompletableFuture<>();
+        toProcess.offer(new Append(toAppend, forced));
+        //wake up the writer thread so it can begin writing again (no-op if it is awake)
+        LockSupport.unpark(writerThread);
+        if (stopped) {
+            //raced with close, nothing will take it from the queue now
+            rejectRemaining();
+        }
+        return forced;
     }
 
-    public void append(String toAppend) {
+    /**
+     * Reject everything left in the queue once the writer thread has stopped,
+     * so no append's future is left waiting.
+     */
+    private void rejectRemaining() {
+        int taken = 0;
+        Append next;
+        while ((next = toProcess.poll()) != null) {
+            rejected.increment();
+            if (next.forced != NOT_FORCED) {
+                next.forced.completeExceptionally(
+                        new RejectedExecutionException("The writer was closed before the append was written."));
+            }
+            taken++;
+        }
+        //appenders blocked on a full queue take their turn being rejected
+        if (taken > 0) {
+            capacity.release(taken);
+        }
+    }
+
+    private CompletableFuture<Void> spill(CharSequence toAppend) {
+        BatchWriter spill = spillWriter;
         try {
-            toProcess.put(toAppend);
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+            //the spill file is the slow path, appenders take turns
+            synchronized (spill) {
+                spill.add(toAppend);
+                spill.writeBatch();
+            }
+        } catch (IOException e) {
+            return failedFuture(e);
+        }
+        spilled.increment();
+        return NOT_FORCED;
+    }
+
+    private static CompletableFuture<Void> failedFuture(Throwable cause) {
+        CompletableFuture<Void> failed = new CompletableFuture<>();
+        failed.completeExceptionally(cause);
+        return failed;
+    }
+
+    private void writeLoop() {
+        while (true) {
+            //read the flag before draining, so nothing appended before close can be missed
+            boolean closing = !stillWriting;
+            int taken = drainBatch();
+            if (taken > 0) {
+                write();
+            }
+            if (!awaitingForce.isEmpty()) {
+                force(closing);
+            }
+            if (taken == 0) {
+                if (closing) {
+                    return;
+                }
+                idle();
+                //an unpark from an append since the drain makes this return straight away
+                long timeout = batchWriter.idleTimeoutNanos();
+                if (!awaitingForce.isEmpty()) {
+                    //wake up in time for the next periodic force
+                    long untilForce = forceIntervalNanos - (System.nanoTime() - lastForce);
+                    timeout = (timeout < 0) ? untilForce : Math.min(timeout, untilForce);
+                }
+                if (timeout < 0) {
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * Take everything pending from the queue into the batch.
+     * @return How many strings were taken.
+     */
+    private int drainBatch() {
+        int taken = 0;
+        Append next;
+        while ((next = toProcess.poll()) != null) {
+            //after a failure the rest is discarded, appenders have been told
+            if (failure == null) {
+                try {
+                    batchWriter.add(next.text);
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+            if (next.forced != NOT_FORCED) {
+                if (failure == null) {
+                    awaitingForce.add(next.forced);
+                } else {
+                    next.forced.completeExceptionally(failure);
+                }
+            }
+            taken++;
+        }
+        //let the appenders carry on while the batch is written
+        if (taken > 0) {
+            capacity.release(taken);
         }
-        //wake up the writer thread so it can begin writing again
-        synchronized (mon) {
-            mon.notifyAll();
+        return taken;
+    }
+
+    private void write() {
+        if (failure == null) {
+            try {
+                batchWriter.writeBatch();
+            } catch (IOException e) {
+                failed(e);
+            }
         }
     }
 
+    /**
+     * Force what has been written if the policy says it is time, and complete the appends waiting for it.
+     * @param now Whether to force regardless of the policy.
+     */
+    private void force(boolean now) {
+        if (failure == null) {
+            long time = System.nanoTime();
+            if (!now && durability == Durability.PERIODIC && time - lastForce < forceIntervalNanos) {
+                return;
+            }
+            try {
+                batchWriter.force();
+                lastForce = time;
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+        //failed sets the failure, so check again
+        IOException failed = failure;
+        for (CompletableFuture<Void> forced : awaitingForce) {
+            if (failed == null) {
+                forced.complete(null);
+            } else {
+                forced.completeExceptionally(failed);
+            }
+        }
+        awaitingForce.clear();
+    }
+
+    private void idle() {
+        if (failure == null) {
+            try {
+                batchWriter.onIdle();
+            } catch (IOException e) {
+                failed(e);
+            }
+        }
+    }
+
+    /**
+     * Stop writing, the failure is handed to the appends waiting on it and thrown from later appends.
+     * @param e The failure.
+     */
+    private void failed(IOException e) {
+        failure = e;
+    }
+
+    /**
+     * Set when the data is forced to the disk, it can be changed while appending.
+     * @param durability The policy, {@link Durability#NONE} by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ConcurrentFileWriter setDurability(Durability durability) {
+        if (durability == null) {
+            throw new IllegalArgumentException("Durability cannot be null.");
+        }
+        this.durability = durability;
+        LockSupport.unpark(writerThread);
+        return this;
+    }
+
+    /**
+     * @param forceIntervalMillis How often to force the data to disk with {@link Durability#PERIODIC}, 1 second by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public ConcurrentFileWriter setForceInterval(long forceIntervalMillis) {
+        if (forceIntervalMillis < 1) {
+            throw new IllegalArgumentException("Force interval must be at least 1ms.");
+        }
+        this.forceIntervalNanos = forceIntervalMillis * 1_000_000L;
+        LockSupport.unpark(writerThread);
+        return this;
+    }
+
+    /**
+     * Set what {@link #appendAsync(String)} does when the queue is full.
+     * @param overflowPolicy The policy, {@link OverflowPolicy#BLOCK} by default.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws IllegalStateException If the policy is {@link OverflowPolicy#SPILL} and no spill file has been set.
+     */
+    public ConcurrentFileWriter setOverflowPolicy(OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == null) {
+            throw new IllegalArgumentException("Overflow policy cannot be null.");
+        }
+        if (overflowPolicy == OverflowPolicy.SPILL && spillWriter == null) {
+            throw new IllegalStateException("Set a spill file before using the spill policy.");
+        }
+        this.overflowPolicy = overflowPolicy;
+        return this;
+    }
+
+    /**
+     * Set the file which appends go to when the queue is full, with {@link OverflowPolicy#SPILL}.
+     * It is written with the same charset, and can only be set once.
+     * @param spillFile The spill file, it is created if it does not exist.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws IOException If the spill file cannot be opened.
+     */
+    public synchronized ConcurrentFileWriter setSpillFile(File spillFile) throws IOException {
+        if (spillWriter != null) {
+            throw new IllegalStateException("The spill file has already been set.");
+        }
+        this.spillWriter = new StreamBatchWriter(spillFile, charset);
+        return this;
+    }
+
+    /**
+     * @return Roughly how many strings are waiting to be written.
+     */
+    public int getQueueDepth() {
+        return maxConcurrentWrites - capacity.availablePermits();
+    }
+
+    /**
+     * @return How many waiting strings have been dropped by {@link OverflowPolicy#DROP_OLDEST}.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return How many appends have been rejected by {@link OverflowPolicy#FAIL_FAST}.
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return How many strings have been written to the spill file.
+     */
+    public long getSpilledCount() {
+        return spilled.sum();
+    }
+
     /**
      * Closes resources associated with the writer, wait for the writer to finish what it is doing.
+     * Closing waits for the writer thread even if interrupted, the interrupt is kept for the caller.
+     * Unless the policy is {@link Durability#NONE}, everything still waiting is forced first.
+     * Appends which race with closing and miss the writer's last batch are rejected,
+     * their futures complete with a {@link RejectedExecutionException}.
+     * @throws UncheckedIOException If the file (or the spill file) cannot be closed, the writer is closed regardless.
      */
     public void close() {
-        stillWriting.set(false);
-        synchronized (mon) {
-            mon.notifyAll();
+        stillWriting = false;
+        LockSupport.unpark(writerThread);
+        //nothing can be closed under the writer thread, so keep waiting for it even if interrupted
+        boolean interrupted = false;
+        while (writerThread.isAlive()) {
+            try {
+                writerThread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
         }
-        try {
-            writerThread.join();
-        } catch (InterruptedException e) {
-            e.printStackTrace();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
         }
 
-        toProcess.clear();
+        stopped = true;
+        rejectRemaining();
+        IOException closeFailure = null;
         try {
-            writer.close();
+            batchWriter.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            closeFailure = e;
+        }
+        if (spillWriter != null) {
+            try {
+                spillWriter.close();
+            } catch (IOException e) {
+                if (closeFailure == null) {
+                    closeFailure = e;
+                } else {
+                    closeFailure.addSuppressed(e);
+                }
+            }
+        }
+        if (closeFailure != null) {
+            throw new UncheckedIOException(closeFailure);
         }
     }
 
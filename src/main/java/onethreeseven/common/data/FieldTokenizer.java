@@ -0,0 +1,406 @@
+package onethreeseven.common.data;
+
+import onethreeseven.common.util.CharSlice;
+import onethreeseven.common.util.StringTable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A reusable tokenizer for delimited lines, which is a garbage-free replacement for
+ * <code>line.split(", ")</code> followed by <code>Double.parseDouble</code> on each field.
+ * It finds the field boundaries once per line and parses numbers straight from the
+ * chars (or bytes) of the line, without creating any substrings.
+ * The delimiter follows the same convention as {@link AbstractWriter}, i.e. ", " by default.
+ * <p>
+ * Typical use inside a parser:
+ * <pre>
+ * private final FieldTokenizer tokenizer = new FieldTokenizer();
+ * protected void parseLine(String line) {
+ *     parseLine((CharSequence) line);
+ * }
+ * protected void parseLine(CharSequence line) {
+ *     tokenizer.reset(line);
+ *     long time = tokenizer.getLong(0);
+ *     double x = tokenizer.getDouble(1);
+ * }
+ * </pre>
+ * Numeric fields may be surrounded by spaces. Doubles with more than 15 significant
+ * digits (or very large exponents) fall back to {@link Double#parseDouble(String)}.
+ * @author Luke Bermingham
+ */
+public class FieldTokenizer {
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    private final char[] delimiter;
+
+    //where the line comes from, exactly one of these is in use
+    private char[] chars = null;
+    private byte[] bytes = null;
+    private CharSequence sequence = null;
+
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int nFields = 0;
+
+    private final CharSlice field = new CharSlice();
+    private char[] fieldCopy = new char[64];
+
+    public FieldTokenizer() {
+        this(", ");
+    }
+
+    /**
+     * @param delimiter What separates fields, it cannot be empty.
+     */
+    public FieldTokenizer(String delimiter) {
+        if (delimiter == null || delimiter.isEmpty()) {
+            throw new IllegalArgumentException("Delimiter cannot be empty.");
+        }
+        this.delimiter = delimiter.toCharArray();
+    }
+
+    /**
+     * Tokenize a line.
+     * @param line The line, a {@link CharSlice} is read straight from its array.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public FieldTokenizer reset(CharSequence line) {
+        if (line instanceof CharSlice) {
+            CharSlice slice = (CharSlice) line;
+            return reset(slice.array(), slice.offset(), slice.length());
+        }
+        this.sequence = line;
+        this.chars = null;
+        this.bytes = null;
+        tokenize(0, line.length());
+        return this;
+    }
+
+    /**
+     * Tokenize a line held in a char array.
+     * @param chars The array.
+     * @param offset Where the line starts.
+     * @param length The length of the line.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public FieldTokenizer reset(char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.bytes = null;
+        this.sequence = null;
+        tokenize(offset, offset + length);
+        return this;
+    }
+
+    /**
+     * Tokenize a line which is still UTF-8 encoded, i.e. from
+     * {@link AbstractLineBasedParser#parseLine(byte[], int, int)}.
+     * The delimiter has to be ASCII for this to work.
+     * @param bytes The array.
+     * @param offset Where the line starts.
+     * @param length The length of the line in bytes.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public FieldTokenizer reset(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.chars = null;
+        this.sequence = null;
+        tokenize(offset, offset + length);
+        return this;
+    }
+
+    /**
+     * @return How many fields the current line has.
+     */
+    public int getFieldCount() {
+        return nFields;
+    }
+
+    /**
+     * @param field The index of the field.
+     * @return The field, as a reused view that is only valid until the next call.
+     */
+    public CharSequence getField(int field) {
+        checkField(field);
+        int start = starts[field];
+        int len = ends[field] - start;
+        if (chars != null) {
+            return this.field.set(chars, start, len);
+        }
+        if (bytes != null) {
+            return this.field.decodeUtf8(bytes, start, len);
+        }
+        if (fieldCopy.length < len) {
+            fieldCopy = new char[Math.max(len, fieldCopy.length * 2)];
+        }
+        for (int i = 0; i < len; i++) {
+            fieldCopy[i] = sequence.charAt(start + i);
+        }
+        return this.field.set(fieldCopy, 0, len);
+    }
+
+    /**
+     * @param field The index of the field.
+     * @return A copy of the field.
+     */
+    public String getString(int field) {
+        checkField(field);
+        if (bytes != null) {
+            return new String(bytes, starts[field], ends[field] - starts[field], StandardCharsets.UTF_8);
+        }
+        return getField(field).toString();
+    }
+
+    /**
+     * Get a field from a table of canonical strings, for fields with only a few distinct values.
+     * No String is created if the value is already in the table.
+     * @param field The index of the field.
+     * @param table The table to look the value up in (and add it to).
+     * @return The canonical copy of the field.
+     */
+    public String getString(int field, StringTable table) {
+        checkField(field);
+        int start = starts[field];
+        int len = ends[field] - start;
+        if (chars != null) {
+            return table.intern(chars, start, len);
+        }
+        if (bytes != null) {
+            return table.intern(bytes, start, len);
+        }
+        return table.intern(getField(field));
+    }
+
+    /**
+     * @param field The index of the field.
+     * @return The field parsed as an int.
+     * @throws NumberFormatException If the field is not an int.
+     */
+    public int getInt(int field) {
+        long value = getLong(field);
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+            throw badNumber(field);
+        }
+        return (int) value;
+    }
+
+    /**
+     * @param field The index of the field.
+     * @return The field parsed as a long.
+     * @throws NumberFormatException If the field is not a long.
+     */
+    public long getLong(int field) {
+        checkField(field);
+        int i = skipSpaces(starts[field], ends[field]);
+        int end = trimSpaces(i, ends[field]);
+        if (i == end) {
+            throw badNumber(field);
+        }
+        boolean negative = false;
+        int c = at(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            if (++i == end) {
+                throw badNumber(field);
+            }
+        }
+        //accumulate negatively so that Long.MIN_VALUE fits
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = at(i) - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw badNumber(field);
+            }
+            value = value * 10 - digit;
+        }
+        if (!negative) {
+            if (value == Long.MIN_VALUE) {
+                throw badNumber(field);
+            }
+            return -value;
+        }
+        return value;
+    }
+
+    /**
+     * @param field The index of the field.
+     * @return The field parsed as a double.
+     * @throws NumberFormatException If the field is not a double.
+     */
+    public double getDouble(int field) {
+        checkField(field);
+        int i = skipSpaces(starts[field], ends[field]);
+        final int end = trimSpaces(i, ends[field]);
+        if (i == end) {
+            throw badNumber(field);
+        }
+        boolean negative = false;
+        int c = at(i);
+        if (c == '-' || c == '+') {
+            negative = c == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significantDigits = 0;
+        int exponent = 0;
+        boolean sawDigit = false;
+        boolean exact = true;
+
+        //integer part
+        for (; i < end && (c = at(i)) >= '0' && c <= '9'; i++) {
+            sawDigit = true;
+            if (mantissa == 0 && c == '0') {
+                continue;
+            }
+            if (significantDigits < 18) {
+                mantissa = mantissa * 10 + (c - '0');
+                significantDigits++;
+            } else {
+                exponent++;
+                exact &= c == '0';
+            }
+        }
+        //fraction
+        if (i < end && at(i) == '.') {
+            for (i++; i < end && (c = at(i)) >= '0' && c <= '9'; i++) {
+                sawDigit = true;
+                if (mantissa == 0 && c == '0') {
+                    exponent--;
+                    continue;
+                }
+                if (significantDigits < 18) {
+                    mantissa = mantissa * 10 + (c - '0');
+                    significantDigits++;
+                    exponent--;
+                } else {
+                    exact &= c == '0';
+                }
+            }
+        }
+        if (!sawDigit) {
+            //NaN, Infinity and anything unusual
+            return slowDouble(field);
+        }
+        //exponent
+        if (i < end && ((c = at(i)) == 'e' || c == 'E')) {
+            i++;
+            boolean negativeExp = false;
+            if (i < end && ((c = at(i)) == '-' || c == '+')) {
+                negativeExp = c == '-';
+                i++;
+            }
+            if (i == end) {
+                throw badNumber(field);
+            }
+            int exp = 0;
+            for (; i < end && (c = at(i)) >= '0' && c <= '9'; i++) {
+                if (exp < 100000) {
+                    exp = exp * 10 + (c - '0');
+                }
+            }
+            exponent += negativeExp ? -exp : exp;
+        }
+        if (i != end || !exact) {
+            return slowDouble(field);
+        }
+
+        double value;
+        if (mantissa == 0) {
+            value = 0;
+        } else if (mantissa <= MAX_EXACT_MANTISSA && exponent >= -22 && exponent <= 22) {
+            //both operands are exact, so the one rounding IEEE does gives the correct result
+            value = (exponent < 0) ? mantissa / POWERS_OF_TEN[-exponent] : mantissa * POWERS_OF_TEN[exponent];
+        } else {
+            return slowDouble(field);
+        }
+        return negative ? -value : value;
+    }
+
+    private double slowDouble(int field) {
+        try {
+            return Double.parseDouble(getString(field).trim());
+        } catch (NumberFormatException e) {
+            throw badNumber(field);
+        }
+    }
+
+    private NumberFormatException badNumber(int field) {
+        return new NumberFormatException("Field " + field + " is not a valid number: \"" + getString(field) + "\"");
+    }
+
+    private void checkField(int field) {
+        if (field < 0 || field >= nFields) {
+            throw new IndexOutOfBoundsException("Field " + field + " does not exist, there are " + nFields + " fields.");
+        }
+    }
+
+    private int at(int i) {
+        if (chars != null) {
+            return chars[i];
+        }
+        if (bytes != null) {
+            return bytes[i] & 0xFF;
+        }
+        return sequence.charAt(i);
+    }
+
+    private int skipSpaces(int from, int to) {
+        while (from < to && at(from) == ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private int trimSpaces(int from, int to) {
+        while (to > from && at(to - 1) == ' ') {
+            to--;
+        }
+        return to;
+    }
+
+    private void tokenize(int from, int to) {
+        nFields = 0;
+        final int first = delimiter[0];
+        final int delimLength = delimiter.length;
+        int fieldStart = from;
+        int i = from;
+        while (i <= to - delimLength) {
+            if (at(i) == first && matchesDelimiter(i)) {
+                addField(fieldStart, i);
+                i += delimLength;
+                fieldStart = i;
+            } else {
+                i++;
+            }
+        }
+        addField(fieldStart, to);
+    }
+
+    private boolean matchesDelimiter(int i) {
+        for (int j = 1; j < delimiter.length; j++) {
+            if (at(i + j) != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addField(int start, int end) {
+        if (nFields == starts.length) {
+            int[] biggerStarts = new int[starts.length * 2];
+            int[] biggerEnds = new int[ends.length * 2];
+            System.arraycopy(starts, 0, biggerStarts, 0, nFields);
+            System.arraycopy(ends, 0, biggerEnds, 0, nFields);
+            starts = biggerStarts;
+            ends = biggerEnds;
+        }
+        starts[nFields] = start;
+        ends[nFields] = end;
+        nFields++;
+    }
+
+}
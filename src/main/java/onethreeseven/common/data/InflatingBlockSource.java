@@ -0,0 +1,173 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Decompresses a gzip file on its own thread and passes the inflated blocks to the
+ * parsing thread through a {@link BufferRing}, so inflating and parsing overlap.
+ * @author Luke Bermingham
+ */
+final class InflatingBlockSource implements ByteLineScanner.BlockSource {
+
+    private static final int BLOCK_SIZE = 1 << 16;
+    private static final int RING_SIZE = 8;
+
+    /**
+     * One slot of the ring, an inflated block and how far through the compressed file it came from.
+     */
+    private static final class Block {
+        private final byte[] data = new byte[BLOCK_SIZE];
+        private final ByteBuffer buffer = ByteBuffer.wrap(data);
+        private int length = 0;
+        private long compressedPosition = 0;
+    }
+
+    /**
+     * Counts how many compressed bytes have been read.
+     */
+    private static final class CountingInputStream extends FilterInputStream {
+        private volatile long count = 0;
+
+        private CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    private final BufferRing<Block> ring = new BufferRing<>(RING_SIZE, Block::new);
+    private final Thread inflater;
+    private Block current = null;
+    private long compressedPosition = 0;
+
+    /**
+     * Open a gzip file and start inflating it.
+     * @param compressed The gzip file.
+     * @throws IOException If the file cannot be opened or does not have a gzip header.
+     */
+    InflatingBlockSource(File compressed) throws IOException {
+        final CountingInputStream counter = new CountingInputStream(new FileInputStream(compressed));
+        final InputStream in;
+        try {
+            in = new GZIPInputStream(counter, BLOCK_SIZE);
+        } catch (IOException e) {
+            counter.close();
+            throw e;
+        }
+
+        this.inflater = new Thread(() -> {
+            Throwable error = null;
+            try {
+                while (true) {
+                    Block block = ring.claim();
+                    int n = readFully(in, block.data);
+                    if (n == 0) {
+                        break;
+                    }
+                    block.length = n;
+                    block.compressedPosition = counter.count;
+                    ring.publish(block);
+                }
+            } catch (InterruptedException ignore) {
+                //the parser stopped early
+            } catch (IOException | RuntimeException e) {
+                error = e;
+            } finally {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+                ring.finish(error);
+            }
+        }, "Gzip-Inflater-" + System.currentTimeMillis());
+        inflater.setDaemon(true);
+        inflater.start();
+    }
+
+    private static int readFully(InputStream in, byte[] data) throws IOException {
+        int total = 0;
+        while (total < data.length) {
+            int n = in.read(data, total, data.length - total);
+            if (n == -1) {
+                break;
+            }
+            total += n;
+        }
+        return total;
+    }
+
+    @Override
+    public ByteBuffer nextBlock() throws IOException {
+        if (current != null) {
+            ring.release(current);
+            current = null;
+        }
+        try {
+            current = ring.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting for the gzip inflater.");
+        }
+        if (current == null) {
+            Throwable error = ring.getError();
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error != null) {
+                throw new IOException("Could not inflate the gzip file.", error);
+            }
+            return null;
+        }
+        compressedPosition = current.compressedPosition;
+        current.buffer.clear();
+        current.buffer.limit(current.length);
+        return current.buffer;
+    }
+
+    /**
+     * @return How many compressed bytes had been read when the current block was inflated.
+     */
+    long getCompressedPosition() {
+        return compressedPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        inflater.interrupt();
+        try {
+            inflater.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
@@ -0,0 +1,401 @@
+package onethreeseven.common.data;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Appends to a file through memory mapped regions, for event streams too fast for a {@link ConcurrentFileWriter}.
+ * There is no writer thread and no queue: each append claims its space in the file by moving an atomic
+ * position along, then copies its bytes straight into the mapping, so many threads can append at once
+ * and none of them waits on the disk.
+ * <p>
+ * The file is mapped a region at a time, and the region after the one being written is mapped ahead of time,
+ * which extends the file past the data. Regions are let go once they have been filled, and the file is
+ * truncated to the length of the data on {@link #close()}. If the process dies before then the file ends
+ * with zeros after the last append, and appends which were still copying may be zeros too.
+ * <p>
+ * Strings are written as UTF-8. The order of appends in the file is the order they claimed their space;
+ * appends from one thread are always in the order they were made.
+ * @author Luke Bermingham
+ */
+public class MappedLogWriter implements Closeable {
+
+    private static final int DEFAULT_REGION_SIZE = 1 << 26;
+    //the position once the writer is closed, so no more space can be claimed
+    private static final long CLOSED = -1;
+
+    /**
+     * A mapped part of the file, which is let go once all of it has been written.
+     */
+    private static final class Region {
+        private final int index;
+        private final MappedByteBuffer buffer;
+        private final AtomicInteger unwritten;
+
+        private Region(int index, MappedByteBuffer buffer, int unwritten) {
+            this.index = index;
+            this.buffer = buffer;
+            this.unwritten = new AtomicInteger(unwritten);
+        }
+    }
+
+    private final FileChannel channel;
+    private final int regionSize;
+    private final long start;
+    private final AtomicLong position;
+    //bytes copied into the mapping, so close knows when every claimed append has finished
+    private final LongAdder copied = new LongAdder();
+    //indexed by region, null until mapped and once filled; only replaced or changed while holding the lock
+    private volatile Region[] regions = new Region[16];
+    private final Object mapLock = new Object();
+
+    /**
+     * Append to a file, 64MB is mapped at a time.
+     * @param file The file, it is created if it does not exist.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedLogWriter(File file) throws IOException {
+        this(file, DEFAULT_REGION_SIZE);
+    }
+
+    /**
+     * @param file The file, it is created if it does not exist.
+     * @param regionSize How many bytes are mapped at a time.
+     * @throws IOException If the file cannot be opened.
+     */
+    public MappedLogWriter(File file, int regionSize) throws IOException {
+        if (regionSize < 1) {
+            throw new IllegalArgumentException("Region size must be at least one.");
+        }
+        this.regionSize = regionSize;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.start = channel.size();
+            this.position = new AtomicLong(start);
+            region(regionIndex(start));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param bytes The bytes to append.
+     * @return Where they start in the file.
+     * @throws IOException If the file cannot be mapped.
+     * @throws IllegalStateException If the writer has been closed.
+     */
+    public long append(byte[] bytes) throws IOException {
+        return append(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param bytes The bytes to append from.
+     * @param offset Where the bytes to append start.
+     * @param length How many to append.
+     * @return Where they start in the file.
+     * @throws IOException If the file cannot be mapped.
+     * @throws IllegalStateException If the writer has been closed.
+     */
+    public long append(byte[] bytes, int offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > bytes.length) {
+            throw new IndexOutOfBoundsException("Offset " + offset + " and length " + length + " out of " + bytes.length);
+        }
+        final long claimed = claim(length);
+        long at = claimed;
+        int done = 0;
+        try {
+            while (done < length) {
+                Region region = region(regionIndex(at));
+                int inRegion = (int) (at % regionSize);
+                int n = Math.min(length - done, regionSize - inRegion);
+                ByteBuffer view = region.buffer.duplicate();
+                view.position(inRegion);
+                view.put(bytes, offset + done, n);
+                written(region, n);
+                done += n;
+                at += n;
+            }
+        } finally {
+            //whatever went wrong (even an Error), the claimed space must be accounted for or close waits forever
+            if (done < length) {
+                abandon(at, length - done);
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Append text as UTF-8, encoded straight into the mapping (i.e. a String or a {@link RecordBuilder}).
+     * Unpaired surrogates are written as '?'.
+     * @param text The text to append.
+     * @return Where it starts in the file.
+     * @throws IOException If the file cannot be mapped.
+     * @throws IllegalStateException If the writer has been closed.
+     */
+    public long append(CharSequence text) throws IOException {
+        final int nChars = text.length();
+        final int length = utf8Length(text);
+        final long claimed = claim(length);
+        long at = claimed;
+        Region region = null;
+        int inRegion = 0;
+        int regionWritten = 0;
+        boolean finished = false;
+        try {
+            for (int i = 0; i < nChars; i++) {
+                char c = text.charAt(i);
+                int codePoint = c;
+                if (Character.isHighSurrogate(c) && i + 1 < nChars && Character.isLowSurrogate(text.charAt(i + 1))) {
+                    codePoint = Character.toCodePoint(c, text.charAt(++i));
+                } else if (Character.isSurrogate(c)) {
+                    codePoint = '?';
+                }
+                int nBytes = (codePoint < 0x80) ? 1 : (codePoint < 0x800) ? 2 : (codePoint < 0x10000) ? 3 : 4;
+                for (int b = 0; b < nBytes; b++) {
+                    if (region == null || inRegion == regionSize) {
+                        if (region != null) {
+                            written(region, regionWritten);
+                            regionWritten = 0;
+                        }
+                        region = region(regionIndex(at));
+                        inRegion = (int) (at % regionSize);
+                    }
+                    region.buffer.put(inRegion++, utf8Byte(codePoint, nBytes, b));
+                    regionWritten++;
+                    at++;
+                }
+            }
+            if (region != null) {
+                written(region, regionWritten);
+            }
+            finished = true;
+        } finally {
+            if (!finished) {
+                //the bytes copied into the current region have not been counted yet
+                abandon(at - regionWritten, length - (int) (at - claimed) + regionWritten);
+            }
+        }
+        return claimed;
+    }
+
+    private static int utf8Length(CharSequence text) {
+        final int nChars = text.length();
+        int nBytes = 0;
+        for (int i = 0; i < nChars; i++) {
+            char c = text.charAt(i);
+            if (c < 0x80) {
+                nBytes++;
+            } else if (c < 0x800) {
+                nBytes += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < nChars && Character.isLowSurrogate(text.charAt(i + 1))) {
+                nBytes += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                nBytes++;
+            } else {
+                nBytes += 3;
+            }
+        }
+        return nBytes;
+    }
+
+    /**
+     * @param codePoint The code point being encoded.
+     * @param nBytes How many bytes it takes.
+     * @param b Which of them to return.
+     * @return The byte.
+     */
+    private static byte utf8Byte(int codePoint, int nBytes, int b) {
+        if (nBytes == 1) {
+            return (byte) codePoint;
+        }
+        //the lead byte has nBytes high bits set, every other byte starts with 10
+        int shift = 6 * (nBytes - 1 - b);
+        if (b == 0) {
+            return (byte) ((0xFF00 >> nBytes) | (codePoint >> shift));
+        }
+        return (byte) (0x80 | ((codePoint >> shift) & 0x3F));
+    }
+
+    /**
+     * @param length How many bytes to claim.
+     * @return Where the claimed space starts in the file.
+     */
+    private long claim(int length) {
+        long claimed;
+        do {
+            claimed = position.get();
+            if (claimed == CLOSED) {
+                throw new IllegalStateException("The writer has been closed.");
+            }
+        } while (!position.compareAndSet(claimed, claimed + length));
+        return claimed;
+    }
+
+    private int regionIndex(long offset) {
+        long index = offset / regionSize;
+        if (index >= Integer.MAX_VALUE) {
+            throw new IllegalStateException("The file is too big for the region size.");
+        }
+        return (int) index;
+    }
+
+    /**
+     * @param index The index of a region.
+     * @return The region, which is mapped (along with the one after it) if it has not been yet.
+     * @throws IOException If the region cannot be mapped.
+     */
+    private Region region(int index) throws IOException {
+        Region[] current = regions;
+        Region region = (index < current.length) ? current[index] : null;
+        if (region != null) {
+            return region;
+        }
+        synchronized (mapLock) {
+            region = map(index);
+            if (index < Integer.MAX_VALUE - 1) {
+                map(index + 1);
+            }
+            return region;
+        }
+    }
+
+    /**
+     * Map a region, holding the lock.
+     * @param index The index of the region.
+     * @return The region.
+     * @throws IOException If the region cannot be mapped.
+     */
+    private Region map(int index) throws IOException {
+        Region[] current = regions;
+        if (index >= current.length) {
+            current = Arrays.copyOf(current, Math.max(index + 1, current.length * 2));
+            regions = current;
+        }
+        if (current[index] == null) {
+            long offset = (long) index * regionSize;
+            //the first region may already hold some of the file
+            int unwritten = (int) Math.min(regionSize, offset + regionSize - start);
+            current[index] = new Region(index, channel.map(FileChannel.MapMode.READ_WRITE, offset, regionSize), unwritten);
+        }
+        return current[index];
+    }
+
+    /**
+     * Count bytes copied into a region, letting it go once it is full.
+     * @param region The region.
+     * @param n How many bytes were copied.
+     */
+    private void written(Region region, int n) {
+        copied.add(n);
+        if (region.unwritten.addAndGet(-n) == 0) {
+            synchronized (mapLock) {
+                Region[] current = regions;
+                current[region.index] = null;
+                regions = current;
+            }
+        }
+    }
+
+    /**
+     * Give up on claimed space which could not be written, it is left as zeros
+     * and counted as written so its regions are still let go.
+     * @param at Where the space starts in the file.
+     * @param n How many bytes were not copied.
+     */
+    private void abandon(long at, int n) {
+        while (n > 0) {
+            int inRegion = (int) (at % regionSize);
+            int inThisRegion = Math.min(n, regionSize - inRegion);
+            Region region;
+            try {
+                region = region(regionIndex(at));
+            } catch (IOException | RuntimeException e) {
+                region = null;
+            }
+            if (region != null) {
+                written(region, inThisRegion);
+            } else {
+                //it cannot be mapped, so nothing else can be written to it either
+                copied.add(inThisRegion);
+            }
+            n -= inThisRegion;
+            at += inThisRegion;
+        }
+    }
+
+    /**
+     * @return How many regions are mapped and not yet filled.
+     */
+    int getMappedRegionCount() {
+        int count = 0;
+        for (Region region : regions) {
+            if (region != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return How long the file will be once every append so far has been copied.
+     */
+    public long getPosition() {
+        long current = position.get();
+        return (current == CLOSED) ? start + copied.sum() : current;
+    }
+
+    /**
+     * Force everything appended so far to the disk: the regions still mapped, then the file itself,
+     * which covers the regions already filled and let go.
+     * Only appends which have finished copying are certain to be forced.
+     * @throws IOException If the file cannot be forced.
+     */
+    public void force() throws IOException {
+        for (Region region : regions) {
+            if (region != null) {
+                region.buffer.force();
+            }
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Stop appending, wait for appends still copying, then truncate the file to the length of the data
+     * and close it. Closing again does nothing.
+     * @throws IOException If the file cannot be truncated or closed.
+     */
+    @Override
+    public void close() throws IOException {
+        final long end = position.getAndSet(CLOSED);
+        if (end == CLOSED) {
+            return;
+        }
+        while (start + copied.sum() < end) {
+            //appends still copying are at most a region's copy away from done
+            LockSupport.parkNanos(this, 100_000);
+        }
+        synchronized (mapLock) {
+            //let the mappings go, they are unmapped once they are collected
+            Arrays.fill(regions, null);
+        }
+        try {
+            channel.truncate(end);
+        } finally {
+            channel.close();
+        }
+    }
+
+}
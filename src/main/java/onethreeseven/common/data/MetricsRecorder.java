@@ -0,0 +1,65 @@
+package onethreeseven.common.data;
+
+/**
+ * Counts what one parsing thread does in plain fields, and adds it to the shared
+ * {@link ParseMetrics} whenever progress is reported, so the shared totals are
+ * only touched every {@link ProgressTracker#REPORT_INTERVAL} bytes.
+ * @author Luke Bermingham
+ */
+final class MetricsRecorder {
+
+    private final ParseMetrics metrics;
+    private final long startNanos;
+    private long lastFlush;
+    private long lines = 0;
+    private long skipped = 0;
+    private long sampledNanos = 0;
+    private int untilSample = 1;
+
+    MetricsRecorder(ParseMetrics metrics) {
+        this.metrics = metrics;
+        this.startNanos = System.nanoTime();
+        this.lastFlush = startNanos;
+    }
+
+    /**
+     * Called before a line is parsed.
+     * @return The time now if this line is being timed, otherwise 0.
+     */
+    long beforeLine() {
+        lines++;
+        if (--untilSample == 0) {
+            untilSample = ParseMetrics.SAMPLE_INTERVAL;
+            return System.nanoTime();
+        }
+        return 0;
+    }
+
+    /**
+     * Called after a line has been parsed.
+     * @param start What {@link #beforeLine()} returned.
+     */
+    void afterLine(long start) {
+        if (start != 0) {
+            sampledNanos += System.nanoTime() - start;
+        }
+    }
+
+    void skippedLine() {
+        skipped++;
+    }
+
+    /**
+     * Add everything counted since the last flush to the shared metrics.
+     * @param bytes How many bytes have been consumed since the last flush.
+     */
+    void flush(long bytes) {
+        long now = System.nanoTime();
+        metrics.add(startNanos, lines, skipped, bytes, sampledNanos, now - lastFlush);
+        lastFlush = now;
+        lines = 0;
+        skipped = 0;
+        sampledNanos = 0;
+    }
+
+}
@@ -0,0 +1,237 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Parses many files at once, i.e. a directory holding a file per device, and merges the results.
+ * Each file is parsed by its own parser from {@link AbstractLineBasedParser#newChunkParser()},
+ * and the outputs are merged using {@link AbstractLineBasedParser#combine(Object, Object)} in a
+ * deterministic order: the order the files were given in, or the order of {@link #setOrder(Comparator)}.
+ * <p>
+ * Reading and parsing are done by separate pools: small files are read into memory by a wide pool
+ * of I/O threads (so many opens and reads can wait on the disk together), then parsed by a pool
+ * with one thread per core. Large and gzip compressed files are parsed directly on the parsing pool.
+ * Progress is reported once for all the files together, measured in bytes on disk.
+ * @param <T> The output type.
+ * @author Luke Bermingham
+ */
+public class MultiFileParser<T> {
+
+    /**
+     * Files up to this size are read into memory before parsing.
+     */
+    private static final long SMALL_FILE_SIZE = 1 << 22;
+    private static final int DEFAULT_IO_THREADS = 32;
+
+    private final AbstractLineBasedParser<T> prototype;
+    private int ioThreads = DEFAULT_IO_THREADS;
+    private int parseThreads = Runtime.getRuntime().availableProcessors();
+    private Comparator<File> order = null;
+    private Consumer<Double> progressListener;
+
+    /**
+     * @param prototype The parser whose settings (line terminators, lines to skip per file, metrics
+     *                  and whether to skip bad lines) are used,
+     *                  it must support {@link AbstractLineBasedParser#newChunkParser()} and
+     *                  {@link AbstractLineBasedParser#combine(Object, Object)}.
+     * @throws UnsupportedOperationException If the prototype does not support them.
+     */
+    public MultiFileParser(AbstractLineBasedParser<T> prototype) {
+        prototype.checkChunkingSupported();
+        this.prototype = prototype;
+        this.progressListener = prototype.progressListener;
+    }
+
+    /**
+     * Parse every regular file in a directory, merged in order of file name
+     * (unless a different order has been set).
+     * @param directory The directory.
+     * @return The merged output.
+     * @throws IOException If the directory or any of the files cannot be read.
+     */
+    public T parseDirectory(File directory) throws IOException {
+        return parseDirectory(directory, File::isFile);
+    }
+
+    /**
+     * Parse the files in a directory which pass a filter, merged in order of file name
+     * (unless a different order has been set).
+     * @param directory The directory.
+     * @param filter Which files to parse.
+     * @return The merged output.
+     * @throws IOException If the directory or any of the files cannot be read.
+     */
+    public T parseDirectory(File directory, FileFilter filter) throws IOException {
+        File[] files = directory.listFiles(file -> file.isFile() && filter.accept(file));
+        if (files == null) {
+            throw new IOException("Could not list the files in " + directory);
+        }
+        Arrays.sort(files, Comparator.comparing(File::getName));
+        return parse(Arrays.asList(files));
+    }
+
+    /**
+     * Parse some files concurrently and merge their outputs.
+     * @param files The files, merged in this order unless a different order has been set.
+     * @return The merged output, or the output of an empty parser if there are no files.
+     * @throws IOException If any of the files cannot be read, the other files are abandoned.
+     */
+    public T parse(Collection<File> files) throws IOException {
+        List<File> ordered = new ArrayList<>(files);
+        if (order != null) {
+            ordered.sort(order);
+        }
+        long totalBytes = 0;
+        for (File file : ordered) {
+            if (!file.isFile() || !file.canRead()) {
+                throw new IllegalArgumentException("Dataset either doesn't exist or doesn't have read permissions: " + file);
+            }
+            totalBytes += file.length();
+        }
+        if (ordered.isEmpty()) {
+            return newFileParser().done();
+        }
+
+        final ProgressTracker progress = new ProgressTracker(progressListener, totalBytes);
+        //stop the readers getting too far ahead of the parsers
+        final Semaphore inMemory = new Semaphore(parseThreads * 2);
+        final ExecutorService ioPool = Executors.newFixedThreadPool(ioThreads, daemonThreads("Multi-File-Reader-"));
+        final ExecutorService parsePool = Executors.newFixedThreadPool(parseThreads, daemonThreads("Multi-File-Parser-"));
+
+        try {
+            List<CompletableFuture<T>> outputs = new ArrayList<>(ordered.size());
+            for (File file : ordered) {
+                if (file.length() > SMALL_FILE_SIZE || AbstractLineBasedParser.isCompressed(file)) {
+                    outputs.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            return newFileParser().parseFile(file, progress);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, parsePool));
+                } else {
+                    outputs.add(CompletableFuture.supplyAsync(() -> {
+                        try {
+                            inMemory.acquire();
+                        } catch (InterruptedException e) {
+                            throw new CompletionException(e);
+                        }
+                        try {
+                            return Files.readAllBytes(file.toPath());
+                        } catch (IOException e) {
+                            inMemory.release();
+                            throw new UncheckedIOException(e);
+                        }
+                    }, ioPool).thenApplyAsync(bytes -> {
+                        try {
+                            return newFileParser().parseBytes(bytes, progress);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        } finally {
+                            inMemory.release();
+                        }
+                    }, parsePool));
+                }
+            }
+
+            //merge in order, as each output becomes available
+            T merged = null;
+            for (CompletableFuture<T> output : outputs) {
+                T next = output.join();
+                merged = (merged == null) ? next : prototype.combine(merged, next);
+            }
+            return merged;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Could not parse the files.", cause);
+        } finally {
+            ioPool.shutdownNow();
+            parsePool.shutdownNow();
+        }
+    }
+
+    private AbstractLineBasedParser<T> newFileParser() {
+        AbstractLineBasedParser<T> parser = prototype.newChunkParser();
+        prototype.copySettingsTo(parser);
+        //every file has its own header
+        parser.nLinesToSkip = prototype.nLinesToSkip;
+        return parser;
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        final AtomicInteger count = new AtomicInteger(0);
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param ioThreads How many files can be being read at once.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public MultiFileParser<T> setIoThreads(int ioThreads) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one I/O thread.");
+        }
+        this.ioThreads = ioThreads;
+        return this;
+    }
+
+    /**
+     * @param parseThreads How many files can be being parsed at once, the number of cores by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public MultiFileParser<T> setParseThreads(int parseThreads) {
+        if (parseThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one parsing thread.");
+        }
+        this.parseThreads = parseThreads;
+        return this;
+    }
+
+    /**
+     * Set the order in which the outputs of the files are merged, regardless of the order they finish in.
+     * @param order The order, or null to keep the order the files were given in.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public MultiFileParser<T> setOrder(Comparator<File> order) {
+        this.order = order;
+        return this;
+    }
+
+    /**
+     * Set where the progress of all the files together is reported, replacing the prototype's listener.
+     * @param progressListener the progress listener, may be null.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public MultiFileParser<T> setProgressListener(Consumer<Double> progressListener) {
+        this.progressListener = progressListener;
+        return this;
+    }
+
+}
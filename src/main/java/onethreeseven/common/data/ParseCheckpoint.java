@@ -0,0 +1,136 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Properties;
+
+/**
+ * Remembers how far through a file has been parsed, so that incremental parsing
+ * (see {@link AbstractLineBasedParser#parseIncremental(File, ParseCheckpoint)}) can
+ * carry on from there rather than starting again at the beginning.
+ * A checkpoint can be kept in memory or stored in a small properties file, usually
+ * next to the data-set (see {@link #sidecarFor(File)}), which is rewritten on every commit.
+ * @author Luke Bermingham
+ */
+public class ParseCheckpoint {
+
+    private static final String OFFSET_KEY = "offset";
+    private static final String LINES_KEY = "lines";
+    private static final String PENDING_LF_KEY = "pendingLF";
+
+    private final File store;
+    private long offset = 0;
+    private long lineCount = 0;
+    private boolean pendingLF = false;
+
+    /**
+     * A checkpoint that is only kept in memory, starting at the beginning of the file.
+     */
+    public ParseCheckpoint() {
+        this.store = null;
+    }
+
+    private ParseCheckpoint(File store) {
+        this.store = store;
+    }
+
+    /**
+     * Load a checkpoint from where it was last committed.
+     * @param store The file the checkpoint is stored in. If it does not exist yet the checkpoint
+     *              starts at the beginning of the data-set.
+     * @return The checkpoint, which will be committed back to the same file.
+     * @throws IOException If the store exists but cannot be read.
+     */
+    public static ParseCheckpoint load(File store) throws IOException {
+        ParseCheckpoint checkpoint = new ParseCheckpoint(store);
+        if (store.exists()) {
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(store)) {
+                props.load(in);
+            }
+            try {
+                checkpoint.offset = Long.parseLong(props.getProperty(OFFSET_KEY, "0"));
+                checkpoint.lineCount = Long.parseLong(props.getProperty(LINES_KEY, "0"));
+            } catch (NumberFormatException e) {
+                throw new IOException("Checkpoint file is corrupt: " + store, e);
+            }
+            checkpoint.pendingLF = Boolean.parseBoolean(props.getProperty(PENDING_LF_KEY, "false"));
+        }
+        return checkpoint;
+    }
+
+    /**
+     * @param dataset A data-set.
+     * @return The default place to store the data-set's checkpoint, "[dataset].checkpoint".
+     */
+    public static File sidecarFor(File dataset) {
+        return new File(dataset.getPath() + ".checkpoint");
+    }
+
+    /**
+     * Write the checkpoint to its store, if it has one. The store is replaced atomically
+     * so a crash part way through never leaves a half written checkpoint.
+     * @throws IOException If the store cannot be written.
+     */
+    public void commit() throws IOException {
+        if (store == null) {
+            return;
+        }
+        Properties props = new Properties();
+        props.setProperty(OFFSET_KEY, String.valueOf(offset));
+        props.setProperty(LINES_KEY, String.valueOf(lineCount));
+        props.setProperty(PENDING_LF_KEY, String.valueOf(pendingLF));
+        File tmp = new File(store.getPath() + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            props.store(out, "Parse checkpoint");
+        }
+        Files.move(tmp.toPath(), store.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Go back to the beginning of the file, i.e. when it has been truncated or replaced.
+     */
+    public void reset() {
+        offset = 0;
+        lineCount = 0;
+        pendingLF = false;
+    }
+
+    /**
+     * @return The byte offset of the first line which has not been parsed yet.
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return How many lines have been consumed so far, including skipped header lines.
+     */
+    public long getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * @return The file the checkpoint is committed to, or null if it is only kept in memory.
+     */
+    public File getStore() {
+        return store;
+    }
+
+    boolean isPendingLF() {
+        return pendingLF;
+    }
+
+    void advance(long offset, long lineCount, boolean pendingLF) {
+        this.offset = offset;
+        this.lineCount = lineCount;
+        this.pendingLF = pendingLF;
+    }
+
+}
@@ -0,0 +1,154 @@
+package onethreeseven.common.data;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Throughput and timing figures for one or more parsers, see {@link AbstractLineBasedParser#setMetrics(ParseMetrics)}.
+ * It is cheap enough to leave on: parsing threads count lines locally and only add them to the
+ * shared totals (which are {@link LongAdder}s, so there is no lock) every so often, and only one
+ * line in {@link #SAMPLE_INTERVAL} is timed, with the rest estimated from those.
+ * The same metrics can be shared by several parsers and can be published over JMX with {@link #register(String)}.
+ * @author Luke Bermingham
+ */
+public class ParseMetrics implements ParseMetricsMXBean {
+
+    /**
+     * One in this many lines has its parsing timed.
+     */
+    public static final int SAMPLE_INTERVAL = 64;
+
+    private static final String DOMAIN = "onethreeseven.common.data";
+
+    private final LongAdder linesParsed = new LongAdder();
+    private final LongAdder linesSkipped = new LongAdder();
+    private final LongAdder lineExceptions = new LongAdder();
+    private final LongAdder bytesRead = new LongAdder();
+    private final LongAdder parseNanos = new LongAdder();
+    private final LongAdder busyNanos = new LongAdder();
+    private final AtomicLong firstStart = new AtomicLong(0);
+    private volatile long lastUpdate = 0;
+    private ObjectName registeredAs = null;
+
+    /**
+     * Publish these metrics through the platform MBean server.
+     * @param name What to call them, i.e. the name of the data-set being parsed.
+     * @return A reference to this object. Useful for method chaining.
+     * @throws JMException If the name is not valid or is already taken.
+     */
+    public synchronized ParseMetrics register(String name) throws JMException {
+        if (registeredAs != null) {
+            throw new IllegalStateException("Metrics are already registered as " + registeredAs);
+        }
+        ObjectName objectName = new ObjectName(DOMAIN + ":type=ParseMetrics,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        registeredAs = objectName;
+        return this;
+    }
+
+    /**
+     * Stop publishing these metrics, if they were registered.
+     * @throws JMException If the metrics could not be unregistered.
+     */
+    public synchronized void unregister() throws JMException {
+        if (registeredAs != null) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            server.unregisterMBean(registeredAs);
+            registeredAs = null;
+        }
+    }
+
+    /**
+     * Add a parsing thread's counts to the totals.
+     * @param startNanos When the thread began its current parse, from {@link System#nanoTime()}.
+     * @param lines How many more lines were parsed.
+     * @param skipped How many more lines were skipped.
+     * @param bytes How many more bytes were consumed.
+     * @param sampledParseNanos Time spent in the sampled calls to parseLine.
+     * @param busy How much more time the thread spent parsing, in total.
+     */
+    void add(long startNanos, long lines, long skipped, long bytes, long sampledParseNanos, long busy) {
+        firstStart.compareAndSet(0, startNanos);
+        linesParsed.add(lines);
+        linesSkipped.add(skipped);
+        bytesRead.add(bytes);
+        parseNanos.add(sampledParseNanos * SAMPLE_INTERVAL);
+        busyNanos.add(busy);
+        lastUpdate = System.nanoTime();
+    }
+
+    void lineFailed() {
+        lineExceptions.increment();
+    }
+
+    @Override
+    public long getLinesParsed() {
+        return linesParsed.sum();
+    }
+
+    @Override
+    public long getLinesSkipped() {
+        return linesSkipped.sum();
+    }
+
+    @Override
+    public long getLineExceptions() {
+        return lineExceptions.sum();
+    }
+
+    @Override
+    public long getBytesRead() {
+        return bytesRead.sum();
+    }
+
+    @Override
+    public double getLinesPerSecond() {
+        return perSecond(getLinesParsed());
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return perSecond(getBytesRead());
+    }
+
+    @Override
+    public long getParseNanos() {
+        //it is an estimate, so keep it within the time actually spent
+        return Math.min(parseNanos.sum(), busyNanos.sum());
+    }
+
+    @Override
+    public long getReadNanos() {
+        return busyNanos.sum() - getParseNanos();
+    }
+
+    @Override
+    public void reset() {
+        linesParsed.reset();
+        linesSkipped.reset();
+        lineExceptions.reset();
+        bytesRead.reset();
+        parseNanos.reset();
+        busyNanos.reset();
+        firstStart.set(0);
+        lastUpdate = 0;
+    }
+
+    private double perSecond(long count) {
+        long elapsed = lastUpdate - firstStart.get();
+        return (elapsed <= 0) ? 0 : count / (elapsed / 1e9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d lines (%.0f/s), %d bytes (%.0f/s), %d skipped, %d exceptions, %.0f%% of time in parseLine",
+                getLinesParsed(), getLinesPerSecond(), getBytesRead(), getBytesPerSecond(),
+                getLinesSkipped(), getLineExceptions(),
+                100.0 * getParseNanos() / Math.max(1, getParseNanos() + getReadNanos()));
+    }
+
+}
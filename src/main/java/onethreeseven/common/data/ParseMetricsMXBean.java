@@ -0,0 +1,55 @@
+package onethreeseven.common.data;
+
+/**
+ * The management interface of {@link ParseMetrics}, so parsing can be watched over JMX.
+ * @author Luke Bermingham
+ */
+public interface ParseMetricsMXBean {
+
+    /**
+     * @return How many lines have been passed to the parser.
+     */
+    long getLinesParsed();
+
+    /**
+     * @return How many header lines have been skipped.
+     */
+    long getLinesSkipped();
+
+    /**
+     * @return How many lines the parser threw an exception for.
+     */
+    long getLineExceptions();
+
+    /**
+     * @return How many bytes have been consumed. When parsing through a reader the chars read are counted
+     * by their UTF-8 length, which matches the file for UTF-8 (or ASCII) files.
+     */
+    long getBytesRead();
+
+    /**
+     * @return Lines parsed per second of wall-clock time since parsing began.
+     */
+    double getLinesPerSecond();
+
+    /**
+     * @return Bytes consumed per second of wall-clock time since parsing began.
+     */
+    double getBytesPerSecond();
+
+    /**
+     * @return The estimated time spent inside the parser's parseLine methods, summed over all parsing threads.
+     */
+    long getParseNanos();
+
+    /**
+     * @return The estimated time spent reading, splitting and decoding lines, summed over all parsing threads.
+     */
+    long getReadNanos();
+
+    /**
+     * Start counting again from zero.
+     */
+    void reset();
+
+}
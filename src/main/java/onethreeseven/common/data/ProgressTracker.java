@@ -0,0 +1,65 @@
+package onethreeseven.common.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Totals the bytes consumed by one or more parsing threads and reports
+ * the overall progress (0-1) to a listener, at most every 50ms so a slow
+ * listener (i.e. one that prints) cannot hold up parsing.
+ * @author Luke Bermingham
+ */
+final class ProgressTracker {
+
+    /**
+     * How many bytes a parsing thread should consume before reporting them.
+     */
+    static final long REPORT_INTERVAL = 1 << 16;
+
+    /**
+     * The least time between two reports to the listener.
+     */
+    private static final long MIN_REPORT_NANOS = 50_000_000L;
+
+    private final Consumer<Double> listener;
+    private final double streamLength;
+    private final AtomicLong processed = new AtomicLong(0);
+    private volatile long lastReport = System.nanoTime() - MIN_REPORT_NANOS;
+
+    /**
+     * @param listener The listener to report to, may be null.
+     * @param streamLength The total number of bytes that will be consumed.
+     */
+    ProgressTracker(Consumer<Double> listener, double streamLength) {
+        this.listener = listener;
+        this.streamLength = streamLength;
+    }
+
+    /**
+     * Record that some more bytes have been consumed.
+     * @param bytes How many more bytes have been consumed.
+     */
+    void advance(long bytes) {
+        long total = processed.addAndGet(bytes);
+        if (listener != null && bytes > 0) {
+            long now = System.nanoTime();
+            //the end is always reported, otherwise at most one report per interval
+            if (total < streamLength && now - lastReport < MIN_REPORT_NANOS) {
+                return;
+            }
+            //listeners are not expected to be thread-safe
+            synchronized (this) {
+                lastReport = now;
+                listener.accept(total / streamLength);
+            }
+        }
+    }
+
+    /**
+     * @return How many bytes have been consumed so far.
+     */
+    long getProcessed() {
+        return processed.get();
+    }
+
+}
@@ -0,0 +1,282 @@
+package onethreeseven.common.data;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer for formatting a delimited record without making any garbage: numbers are formatted
+ * straight into the builder's chars instead of through {@link Long#toString(long)} or {@link Double#toString(double)},
+ * and the chars are kept between records. Hand the record to a writer, then {@link #reset()} it for the next one.
+ * {@link AbstractWriter.Session#write(RecordBuilder)} and {@link MappedLogWriter#append(CharSequence)} copy the
+ * chars straight into the file's buffer, so a record goes to the file without any garbage.
+ * A {@link ConcurrentFileWriter} queues strings, so it takes no builders (queueing makes garbage anyway).
+ * <p>
+ * Doubles are written in plain decimal notation with the fewest digits that parse back to exactly the same double,
+ * i.e. "0.1" and "1234567.25". Values whose digits do not fit below 2^53 (usually those needing 16 or 17
+ * significant digits), values of 2^53 or more, and values needing more than 22 decimal places
+ * fall back to {@link Double#toString(double)}, which allocates.
+ * <p>
+ * Typical use:
+ * <pre>
+ * RecordBuilder record = new RecordBuilder();
+ * session.write(record.reset().field(time).field(x).field(y).newLine());
+ * </pre>
+ * @author Luke Bermingham
+ */
+public class RecordBuilder implements CharSequence {
+
+    //exactly representable powers of ten
+    private static final double[] POW10 = new double[23];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+    //every long below this is exactly representable as a double
+    private static final double EXACT_LIMIT = 1L << 53;
+
+    private final String delimiter;
+    private char[] chars = new char[64];
+    private int length = 0;
+    private boolean firstField = true;
+
+    /**
+     * A builder using the same delimiter as {@link AbstractWriter} by default, ", ".
+     */
+    public RecordBuilder() {
+        this(", ");
+    }
+
+    /**
+     * @param delimiter Written between the fields added by the field methods.
+     */
+    public RecordBuilder(String delimiter) {
+        this.delimiter = delimiter;
+    }
+
+    /**
+     * Empty the builder, keeping its chars for the next record.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder reset() {
+        length = 0;
+        firstField = true;
+        return this;
+    }
+
+    /**
+     * @param value A field, preceded by the delimiter unless it is the first field of the line.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder field(long value) {
+        return nextField().append(value);
+    }
+
+    /**
+     * @param value A field, preceded by the delimiter unless it is the first field of the line.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder field(double value) {
+        return nextField().append(value);
+    }
+
+    /**
+     * @param value A field, preceded by the delimiter unless it is the first field of the line.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder field(CharSequence value) {
+        return nextField().append(value);
+    }
+
+    private RecordBuilder nextField() {
+        if (firstField) {
+            firstField = false;
+        } else {
+            append(delimiter);
+        }
+        return this;
+    }
+
+    /**
+     * End the line, the next field starts a new line.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder newLine() {
+        firstField = true;
+        return append('\n');
+    }
+
+    public RecordBuilder append(char c) {
+        ensureRoom(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public RecordBuilder append(CharSequence value) {
+        final int valueLength = value.length();
+        ensureRoom(valueLength);
+        if (value instanceof String) {
+            ((String) value).getChars(0, valueLength, chars, length);
+        } else {
+            for (int i = 0; i < valueLength; i++) {
+                chars[length + i] = value.charAt(i);
+            }
+        }
+        length += valueLength;
+        return this;
+    }
+
+    public RecordBuilder append(int value) {
+        return append((long) value);
+    }
+
+    public RecordBuilder append(long value) {
+        if (value == Long.MIN_VALUE) {
+            //cannot be negated
+            return append("-9223372036854775808");
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        appendDigits(value, 0);
+        return this;
+    }
+
+    /**
+     * Append a double using the fewest digits that parse back to the same double.
+     * @param value The double.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordBuilder append(double value) {
+        if (Double.isNaN(value)) {
+            return append("NaN");
+        }
+        if (Double.isInfinite(value)) {
+            return append((value > 0) ? "Infinity" : "-Infinity");
+        }
+        if (value == 0) {
+            return append((Double.doubleToRawLongBits(value) < 0) ? "-0.0" : "0.0");
+        }
+        double magnitude = Math.abs(value);
+        if (magnitude < EXACT_LIMIT) {
+            //find the fewest decimal places d such that some integer m / 10^d is the value;
+            //m and 10^d are exact, so the division is correctly rounded, just like parsing "m/10^d" is
+            for (int places = 0; places < POW10.length; places++) {
+                double scaled = magnitude * POW10[places];
+                if (scaled >= EXACT_LIMIT) {
+                    break;
+                }
+                long nearest = (long) Math.rint(scaled);
+                //the multiplication may have rounded, so try either side as well
+                long digits = parsesTo(nearest, places, magnitude) ? nearest :
+                        parsesTo(nearest - 1, places, magnitude) ? nearest - 1 :
+                        parsesTo(nearest + 1, places, magnitude) ? nearest + 1 : 0;
+                if (digits > 0) {
+                    if (value < 0) {
+                        append('-');
+                    }
+                    appendDecimal(digits, places);
+                    return this;
+                }
+            }
+        }
+        return append(Double.toString(value));
+    }
+
+    private static boolean parsesTo(long unscaled, int places, double magnitude) {
+        return unscaled > 0 && unscaled / POW10[places] == magnitude;
+    }
+
+    /**
+     * @param unscaled The digits.
+     * @param places How many of them go after the decimal point.
+     */
+    private void appendDecimal(long unscaled, int places) {
+        if (places == 0) {
+            appendDigits(unscaled, 0);
+            append(".0");
+            return;
+        }
+        int nDigits = countDigits(unscaled);
+        if (nDigits <= places) {
+            append('0').append('.');
+            for (int i = nDigits; i < places; i++) {
+                append('0');
+            }
+            appendDigits(unscaled, 0);
+        } else {
+            appendDigits(unscaled, places);
+        }
+    }
+
+    /**
+     * @param value A non-negative number.
+     * @param pointFromRight Where to put a decimal point, counting digits from the right, or 0 for none.
+     */
+    private void appendDigits(long value, int pointFromRight) {
+        int nDigits = countDigits(value);
+        int total = nDigits + ((pointFromRight > 0) ? 1 : 0);
+        ensureRoom(total);
+        int pos = length + total - 1;
+        int digit = 0;
+        do {
+            if (pointFromRight > 0 && digit == pointFromRight) {
+                chars[pos--] = '.';
+            }
+            chars[pos--] = (char) ('0' + (value % 10));
+            value /= 10;
+            digit++;
+        } while (value > 0);
+        length += total;
+    }
+
+    private static int countDigits(long value) {
+        int nDigits = 1;
+        while (value >= 10) {
+            value /= 10;
+            nDigits++;
+        }
+        return nDigits;
+    }
+
+    private void ensureRoom(int more) {
+        if (length + more > chars.length) {
+            chars = Arrays.copyOf(chars, Math.max(length + more, chars.length * 2));
+        }
+    }
+
+    /**
+     * @return The builder's chars, only the first {@link #length()} are the record.
+     */
+    char[] array() {
+        return chars;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + length);
+        }
+        return chars[index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Start " + start + ", end " + end + ", length " + length);
+        }
+        return new String(chars, start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+}
@@ -0,0 +1,180 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * Publishes the records of a file, as parsed by an {@link AbstractRecordParser}, to a single subscriber.
+ * Parsing is driven by demand: records are only pulled from the parser's lazy stream
+ * (see {@link AbstractRecordParser#stream(File)}) when the subscriber has requested them, and each
+ * request is served as one batch on the executor. So a slow consumer, such as a {@link WriterSubscriber},
+ * holds the parser back rather than the parsed records piling up in memory.
+ * <p>
+ * Subscribers are called on the executor's threads, so a subscriber which blocks (like a {@link WriterSubscriber}
+ * waiting on a full write queue) blocks the executor. By default each publisher drains on a pool of daemon threads
+ * kept for publishers; do not pass a shared pool such as {@link java.util.concurrent.ForkJoinPool#commonPool()}
+ * with a blocking subscriber, as it would starve everything else using that pool.
+ * @param <R> The record type.
+ * @author Luke Bermingham
+ */
+public class RecordPublisher<R> implements Flow.Publisher<R> {
+
+    private static final AtomicInteger THREAD_COUNT = new AtomicInteger(0);
+    //threads are made as drains need them and let go once idle, daemons so they never hold up exit
+    private static final ExecutorService DEFAULT_EXECUTOR = Executors.newCachedThreadPool(r -> {
+        Thread thread = new Thread(r, "Record-Publisher-" + THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AbstractRecordParser<R> parser;
+    private final File dataset;
+    private final Executor executor;
+    private final AtomicBoolean subscribed = new AtomicBoolean(false);
+
+    /**
+     * Publish on the publishers' own daemon threads, which is safe for subscribers that block.
+     * @param parser The parser used to make the records.
+     * @param dataset The file to parse.
+     */
+    public RecordPublisher(AbstractRecordParser<R> parser, File dataset) {
+        this(parser, dataset, DEFAULT_EXECUTOR);
+    }
+
+    /**
+     * @param parser The parser used to make the records.
+     * @param dataset The file to parse.
+     * @param executor Where parsing and delivery to the subscriber happens,
+     *                 it must have a thread to spare if the subscriber blocks.
+     */
+    public RecordPublisher(AbstractRecordParser<R> parser, File dataset, Executor executor) {
+        this.parser = parser;
+        this.dataset = dataset;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber cannot be null.");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            //the file is only parsed once
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("This publisher only supports one subscriber."));
+            return;
+        }
+        subscriber.onSubscribe(new RecordSubscription(subscriber));
+    }
+
+    /**
+     * Serves requests by draining the record stream on the executor, one drain at a time.
+     */
+    private class RecordSubscription implements Flow.Subscription {
+
+        private final Flow.Subscriber<? super R> subscriber;
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicInteger pendingDrains = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private volatile Throwable badRequest = null;
+
+        //only touched whilst draining
+        private Stream<R> records = null;
+        private Iterator<R> iterator = null;
+        private boolean finished = false;
+
+        RecordSubscription(Flow.Subscriber<? super R> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Must request a positive number of records, not " + n);
+            } else {
+                //saturate at Long.MAX_VALUE, which means unbounded
+                demand.getAndUpdate(current -> (current + n < 0) ? Long.MAX_VALUE : current + n);
+            }
+            scheduleDrain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (pendingDrains.getAndIncrement() == 0) {
+                executor.execute(this::drain);
+            }
+        }
+
+        private void drain() {
+            int missed = 1;
+            do {
+                if (finished) {
+                    return;
+                }
+                try {
+                    long requested = demand.get();
+                    long emitted = 0;
+                    while (emitted != requested && !cancelled && badRequest == null) {
+                        if (iterator == null) {
+                            records = parser.stream(dataset);
+                            iterator = records.iterator();
+                        }
+                        if (!iterator.hasNext()) {
+                            finish();
+                            subscriber.onComplete();
+                            return;
+                        }
+                        subscriber.onNext(iterator.next());
+                        emitted++;
+                    }
+                    if (cancelled) {
+                        finish();
+                        return;
+                    }
+                    if (badRequest != null) {
+                        finish();
+                        subscriber.onError(badRequest);
+                        return;
+                    }
+                    if (requested != Long.MAX_VALUE) {
+                        demand.addAndGet(-emitted);
+                    }
+                } catch (Exception e) {
+                    finish();
+                    subscriber.onError(e);
+                    return;
+                }
+                missed = pendingDrains.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void finish() {
+            finished = true;
+            if (records != null) {
+                records.close();
+            }
+        }
+    }
+
+}
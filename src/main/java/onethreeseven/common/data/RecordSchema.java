@@ -0,0 +1,143 @@
+package onethreeseven.common.data;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The names and types of the fields in the records of a binary record file,
+ * see {@link BinaryRecordWriter} and {@link BinaryRecordReader}.
+ * Records with only double and long fields are fixed width (8 bytes a field);
+ * any string field makes them variable width.
+ * @author Luke Bermingham
+ */
+public class RecordSchema {
+
+    private final List<String> names = new ArrayList<>();
+    private final List<ColumnarTable.Type> types = new ArrayList<>();
+
+    /**
+     * @param table A table.
+     * @return A schema with the same columns as the table.
+     */
+    public static RecordSchema of(ColumnarTable table) {
+        RecordSchema schema = new RecordSchema();
+        for (int i = 0; i < table.getColumnCount(); i++) {
+            schema.addColumn(table.getColumnName(i), table.getColumnType(i));
+        }
+        return schema;
+    }
+
+    /**
+     * @param name The name of the column, which must be unique.
+     * @param type The type of the column.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RecordSchema addColumn(String name, ColumnarTable.Type type) {
+        if (names.contains(name)) {
+            throw new IllegalArgumentException("There is already a column called " + name);
+        }
+        if (name.getBytes(StandardCharsets.UTF_8).length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Column name is too long.");
+        }
+        if (names.size() == Short.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many columns.");
+        }
+        names.add(name);
+        types.add(type);
+        return this;
+    }
+
+    public int getColumnCount() {
+        return names.size();
+    }
+
+    public String getColumnName(int column) {
+        return names.get(column);
+    }
+
+    public ColumnarTable.Type getColumnType(int column) {
+        return types.get(column);
+    }
+
+    /**
+     * @param name A column name.
+     * @return The index of the column with that name, or -1 if there is none.
+     */
+    public int getColumnIndex(String name) {
+        return names.indexOf(name);
+    }
+
+    /**
+     * @return True if every record has the same size, so records can be found by their index.
+     */
+    public boolean isFixedWidth() {
+        return !types.contains(ColumnarTable.Type.STRING);
+    }
+
+    /**
+     * @return The size of a record in bytes, if the records are fixed width.
+     */
+    public int getFixedWidth() {
+        if (!isFixedWidth()) {
+            throw new IllegalStateException("Records with string fields do not have a fixed width.");
+        }
+        return names.size() * Long.BYTES;
+    }
+
+    /**
+     * @return The size of the schema when written.
+     */
+    int encodedSize() {
+        int size = Short.BYTES;
+        for (String name : names) {
+            size += 1 + Short.BYTES + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return size;
+    }
+
+    /**
+     * @param out Where to write the schema.
+     */
+    void write(ByteBuffer out) {
+        out.putShort((short) names.size());
+        for (int i = 0; i < names.size(); i++) {
+            byte[] name = names.get(i).getBytes(StandardCharsets.UTF_8);
+            out.put((byte) types.get(i).ordinal());
+            out.putShort((short) name.length);
+            out.put(name);
+        }
+    }
+
+    /**
+     * @param in Where to read the schema from.
+     * @return The schema.
+     * @throws IOException If it is not a valid schema.
+     */
+    static RecordSchema read(ByteBuffer in) throws IOException {
+        RecordSchema schema = new RecordSchema();
+        ColumnarTable.Type[] allTypes = ColumnarTable.Type.values();
+        int nColumns = in.getShort();
+        if (nColumns < 0) {
+            throw new IOException("Invalid column count " + nColumns);
+        }
+        for (int i = 0; i < nColumns; i++) {
+            int type = in.get();
+            int nameLength = in.getShort();
+            if (type < 0 || type >= allTypes.length || nameLength < 0) {
+                throw new IOException("Invalid column " + i);
+            }
+            byte[] name = new byte[nameLength];
+            in.get(name);
+            try {
+                schema.addColumn(new String(name, StandardCharsets.UTF_8), allTypes[type]);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid column " + i, e);
+            }
+        }
+        return schema;
+    }
+
+}
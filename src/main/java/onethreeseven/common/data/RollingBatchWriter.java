@@ -0,0 +1,352 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes batches to a sequence of segment files, starting a new segment once the current one
+ * is big enough or old enough. Segments are named after a base file: "name.000001", "name.000002", and so on.
+ * The segment being written is called "name.000001.active" and is renamed (atomically) once it is complete,
+ * so any segment without the ".active" suffix can be read. A roll only happens between batches, so a string
+ * is never split over two segments, and a segment can go over the size limit by up to one batch.
+ * <p>
+ * Complete segments are handed to a low priority background thread, which can gzip them
+ * (to "name.000001.gz", again renamed into place once complete) and deletes the oldest segments
+ * beyond the retention count. If compressing or deleting a segment fails, the failure is thrown
+ * from the writer thread's next batch (or from closing) so the writer fails as it would on a failed write;
+ * a segment which could not be compressed is kept uncompressed.
+ * When starting, numbering carries on after any segments already there, and a segment left active
+ * by a crash is completed. Once compression is turned on, complete segments left uncompressed
+ * (i.e. by a crash before their turn) are compressed too.
+ * @author Luke Bermingham
+ */
+final class RollingBatchWriter extends BatchWriter {
+
+    private static final String ACTIVE = ".active";
+    private static final String GZIP = ".gz";
+    private static final String TEMP = ".tmp";
+
+    private final File directory;
+    private final String baseName;
+    private final Charset charset;
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+    private final ExecutorService background;
+
+    volatile long maxSegmentBytes = 256L << 20;
+    volatile long maxSegmentNanos = -1;
+    private volatile boolean compress = false;
+    volatile int retention = 0;
+    //whether a segment is forced before it is completed, only needed if appends wait on forces
+    volatile boolean forceOnRoll = false;
+    //the first failure on the background thread, until the writer thread throws it
+    private final AtomicReference<IOException> backgroundFailure = new AtomicReference<>();
+
+    //only used by the writer thread
+    private ChannelBatchWriter current = null;
+    private File currentFile = null;
+    private long currentStart = 0;
+    private long nextIndex;
+
+    /**
+     * @param base The file the segments are named after, it is not written itself.
+     * @param charset How to encode the strings.
+     * @throws IOException If a segment left active cannot be completed.
+     */
+    RollingBatchWriter(File base, Charset charset) throws IOException {
+        File absolute = base.getAbsoluteFile();
+        this.directory = absolute.getParentFile();
+        this.baseName = absolute.getName();
+        this.charset = charset;
+        this.background = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "Rolling-File-Compressor-" + baseName);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+
+        long last = 0;
+        for (String name : listNames()) {
+            long index = indexOf(name);
+            if (index > 0) {
+                last = Math.max(last, index);
+                if (name.endsWith(ACTIVE)) {
+                    complete(new File(directory, name), index);
+                }
+            } else if (name.startsWith(baseName + ".") && name.endsWith(GZIP + TEMP)) {
+                //a compression cut short, the segment it came from is still there
+                deleteTemp(new File(directory, name));
+            }
+        }
+        this.nextIndex = last + 1;
+    }
+
+    @Override
+    void add(CharSequence toAppend) throws IOException {
+        if (current == null) {
+            currentFile = new File(directory, segmentName(nextIndex) + ACTIVE);
+            current = new ChannelBatchWriter(currentFile, charset, buffers);
+            currentStart = System.nanoTime();
+        }
+        current.add(toAppend);
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        throwBackgroundFailure();
+        if (current != null) {
+            current.writeBatch();
+            if (currentFile.length() >= maxSegmentBytes || isOld()) {
+                roll();
+            }
+        }
+    }
+
+    @Override
+    long idleTimeoutNanos() {
+        long maxNanos = maxSegmentNanos;
+        if (current == null || maxNanos < 0) {
+            return -1;
+        }
+        return Math.max(0, maxNanos - (System.nanoTime() - currentStart));
+    }
+
+    @Override
+    void onIdle() throws IOException {
+        throwBackgroundFailure();
+        if (current != null && isOld()) {
+            roll();
+        }
+    }
+
+    private boolean isOld() {
+        long maxNanos = maxSegmentNanos;
+        return maxNanos >= 0 && System.nanoTime() - currentStart >= maxNanos;
+    }
+
+    @Override
+    void force() throws IOException {
+        if (current != null) {
+            current.force();
+        }
+    }
+
+    /**
+     * Complete the current segment, the next string starts a new one.
+     * @throws IOException If the segment cannot be completed.
+     */
+    private void roll() throws IOException {
+        ChannelBatchWriter rolled = current;
+        current = null;
+        try {
+            //appends waiting on a force may be in this segment
+            if (forceOnRoll) {
+                rolled.force();
+            }
+        } finally {
+            rolled.close();
+        }
+        complete(currentFile, nextIndex);
+        nextIndex++;
+    }
+
+    /**
+     * Rename a finished segment into place, then compress it and apply the retention in the background.
+     * @param activeFile The segment.
+     * @param index Its index.
+     * @throws IOException If it cannot be renamed.
+     */
+    private void complete(File activeFile, long index) throws IOException {
+        final File completed = new File(directory, segmentName(index));
+        Files.move(activeFile.toPath(), completed.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        background.execute(() -> {
+            if (compress) {
+                compressRemaining();
+            }
+            retain();
+        });
+    }
+
+    /**
+     * @param compress Whether to gzip complete segments, turning it on also compresses
+     *                 the complete segments which are not yet.
+     */
+    void setCompress(boolean compress) {
+        this.compress = compress;
+        if (compress) {
+            try {
+                background.execute(this::compressRemaining);
+            } catch (RejectedExecutionException e) {
+                //closed, there is nothing more to compress
+            }
+        }
+    }
+
+    /**
+     * Gzip every complete segment which is not compressed yet, on the background thread.
+     */
+    private void compressRemaining() {
+        for (String name : listNames()) {
+            if (indexOf(name) > 0 && !name.endsWith(ACTIVE) && !name.endsWith(GZIP)) {
+                File segment = new File(directory, name);
+                if (new File(directory, name + GZIP).exists()) {
+                    //compressed, but the crash came before the original was deleted
+                    delete(segment);
+                } else {
+                    gzip(segment);
+                }
+            }
+        }
+    }
+
+    private void gzip(File segment) {
+        File temp = new File(directory, segment.getName() + GZIP + TEMP);
+        try {
+            try (InputStream in = new FileInputStream(segment);
+                 OutputStream out = new GZIPOutputStream(new FileOutputStream(temp), 1 << 16)) {
+                byte[] buffer = new byte[1 << 16];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            Files.move(temp.toPath(), new File(directory, segment.getName() + GZIP).toPath(), StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(segment.toPath());
+        } catch (IOException e) {
+            //keep the uncompressed segment
+            failed(e);
+            deleteTemp(temp);
+        }
+    }
+
+    private static void deleteTemp(File temp) {
+        if (temp.exists() && !temp.delete()) {
+            temp.deleteOnExit();
+        }
+    }
+
+    private void delete(File segment) {
+        try {
+            Files.deleteIfExists(segment.toPath());
+        } catch (IOException e) {
+            failed(e);
+        }
+    }
+
+    /**
+     * Keep the first failure on the background thread, for the writer thread to throw.
+     * @param e The failure.
+     */
+    private void failed(IOException e) {
+        backgroundFailure.compareAndSet(null, e);
+    }
+
+    /**
+     * @throws IOException The failure on the background thread, if there has been one (only thrown once).
+     */
+    private void throwBackgroundFailure() throws IOException {
+        IOException failure = backgroundFailure.getAndSet(null);
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Delete the oldest complete segments beyond the retention count.
+     */
+    private void retain() {
+        int keep = retention;
+        if (keep < 1) {
+            return;
+        }
+        List<File> segments = getSegments();
+        for (int i = 0; i < segments.size() - keep; i++) {
+            delete(segments.get(i));
+        }
+    }
+
+    /**
+     * @return The complete segments, oldest first.
+     */
+    List<File> getSegments() {
+        TreeMap<Long, File> segments = new TreeMap<>();
+        for (String name : listNames()) {
+            long index = indexOf(name);
+            if (index > 0 && !name.endsWith(ACTIVE)) {
+                segments.put(index, new File(directory, name));
+            }
+        }
+        return new ArrayList<>(segments.values());
+    }
+
+    private String[] listNames() {
+        String[] names = directory.list();
+        return (names == null) ? new String[0] : names;
+    }
+
+    private String segmentName(long index) {
+        return baseName + "." + String.format("%06d", index);
+    }
+
+    /**
+     * @param name A file name.
+     * @return The index of the segment with that name, or -1 if it is not a segment
+     * (including a compressed segment still being written).
+     */
+    private long indexOf(String name) {
+        if (!name.startsWith(baseName + ".")) {
+            return -1;
+        }
+        String rest = name.substring(baseName.length() + 1);
+        if (rest.endsWith(ACTIVE)) {
+            rest = rest.substring(0, rest.length() - ACTIVE.length());
+        } else if (rest.endsWith(GZIP)) {
+            rest = rest.substring(0, rest.length() - GZIP.length());
+        }
+        if (rest.isEmpty() || rest.length() > 18) {
+            return -1;
+        }
+        for (int i = 0; i < rest.length(); i++) {
+            if (!Character.isDigit(rest.charAt(i))) {
+                return -1;
+            }
+        }
+        return Long.parseLong(rest);
+    }
+
+    @Override
+    void close() throws IOException {
+        try {
+            if (current != null) {
+                roll();
+            }
+        } finally {
+            //wait for the last segments to be compressed
+            background.shutdown();
+            try {
+                background.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        throwBackgroundFailure();
+    }
+
+}
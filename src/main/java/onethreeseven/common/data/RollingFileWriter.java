@@ -0,0 +1,119 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * A {@link ConcurrentFileWriter} which writes to a sequence of segment files instead of one file,
+ * rolling over to a new segment once the current one reaches a size or an age.
+ * Appending never waits for a roll: rolls happen on the writer thread, between batches.
+ * <p>
+ * Segments are named after a base file: "name.000001", "name.000002", and so on, and the segment
+ * being written has an extra ".active" suffix until it is complete. Complete segments can be gzipped
+ * ("name.000001.gz") on a low priority background thread, and only the newest can be kept.
+ * If compressing or deleting a segment fails the writer fails, as it would if a write had;
+ * a failure that only comes up while closing is thrown from {@link #close()}.
+ * With the {@link Durability#NONE} policy segments are not forced when they are completed.
+ * @author Luke Bermingham
+ */
+public class RollingFileWriter extends ConcurrentFileWriter {
+
+    private final RollingBatchWriter segments;
+
+    /**
+     * Write using the platform's charset.
+     * @param base The file the segments are named after, in the directory they are written to.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @throws IOException If a segment left active by an earlier run cannot be completed.
+     */
+    public RollingFileWriter(File base, int maxConcurrentWrites) throws IOException {
+        this(base, maxConcurrentWrites, Charset.defaultCharset());
+    }
+
+    /**
+     * @param base The file the segments are named after, in the directory they are written to.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @param charset How to encode the strings.
+     * @throws IOException If a segment left active by an earlier run cannot be completed.
+     */
+    public RollingFileWriter(File base, int maxConcurrentWrites, Charset charset) throws IOException {
+        this(new RollingBatchWriter(base, charset), maxConcurrentWrites, charset);
+    }
+
+    private RollingFileWriter(RollingBatchWriter segments, int maxConcurrentWrites, Charset charset) {
+        super(segments, maxConcurrentWrites, charset);
+        this.segments = segments;
+    }
+
+    /**
+     * Set when the data is forced to the disk, it can be changed while appending.
+     * Segments are only forced as they are completed once the policy has been something other than
+     * {@link Durability#NONE}; from then on they always are, as appends waiting on a force may be in them.
+     * @param durability The policy, {@link Durability#NONE} by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    @Override
+    public RollingFileWriter setDurability(Durability durability) {
+        //before the policy changes, so no append waiting on a force can be rolled without one
+        if (durability != null && durability != Durability.NONE) {
+            segments.forceOnRoll = true;
+        }
+        super.setDurability(durability);
+        return this;
+    }
+
+    /**
+     * @param maxSegmentBytes Roll once a segment reaches this size (it may go over by one batch), 256MB by default.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RollingFileWriter setMaxSegmentBytes(long maxSegmentBytes) {
+        if (maxSegmentBytes < 1) {
+            throw new IllegalArgumentException("Max segment size must be at least one byte.");
+        }
+        segments.maxSegmentBytes = maxSegmentBytes;
+        return this;
+    }
+
+    /**
+     * @param maxSegmentMillis Roll once this long has passed since a segment's first string,
+     *                         or a negative number to only roll on size (the default).
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RollingFileWriter setMaxSegmentMillis(long maxSegmentMillis) {
+        segments.maxSegmentNanos = (maxSegmentMillis < 0) ? -1 : maxSegmentMillis * 1_000_000L;
+        return this;
+    }
+
+    /**
+     * @param compress Whether to gzip segments once they are complete, false by default.
+     *                 Turning it on also compresses complete segments left uncompressed, i.e. by an earlier run.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RollingFileWriter setCompress(boolean compress) {
+        segments.setCompress(compress);
+        return this;
+    }
+
+    /**
+     * @param retention How many complete segments to keep, the oldest are deleted. Zero (the default) keeps them all.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public RollingFileWriter setRetention(int retention) {
+        if (retention < 0) {
+            throw new IllegalArgumentException("Retention cannot be negative.");
+        }
+        segments.retention = retention;
+        return this;
+    }
+
+    /**
+     * @return The complete segments (compressed or not), oldest first.
+     * Segments still being compressed may be listed uncompressed.
+     */
+    public List<File> getSegments() {
+        return segments.getSegments();
+    }
+
+}
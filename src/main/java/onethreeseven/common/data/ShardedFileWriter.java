@@ -0,0 +1,328 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Allows concurrently appending to many files, i.e. a file per device, using a few threads.
+ * Each append names a key, and the key decides the file. Keys are spread over a fixed number of
+ * shards, each with its own queue and writer thread, so all appends for a key are written by the
+ * same thread, in the order they were appended (per appending thread).
+ * <p>
+ * Each shard keeps its most recently used files open, up to its share of the open file limit,
+ * and closes the least recently used file to open another one. Files are always opened for appending,
+ * so a file which is closed and opened again carries on where it was. A shard drains everything
+ * pending in one go, then writes each file's strings with one gathering write.
+ * <p>
+ * If any write fails, later appends throw the failure; pending strings are discarded.
+ * <p>
+ * The threads are daemons, so a writer which is never closed does not keep the JVM running,
+ * but whatever it has not written yet is lost.
+ * @param <K> The key type.
+ * @author Luke Bermingham
+ */
+public class ShardedFileWriter<K> {
+
+    /**
+     * A queued string and the key it is for.
+     */
+    private static final class Append<K> {
+        private final K key;
+        private final String text;
+
+        private Append(K key, String text) {
+            this.key = key;
+            this.text = text;
+        }
+    }
+
+    /**
+     * An open file and the strings waiting to be written to it.
+     */
+    private static final class OpenFile {
+        private final BatchWriter writer;
+        private final List<String> pending = new ArrayList<>();
+
+        private OpenFile(BatchWriter writer) {
+            this.writer = writer;
+        }
+
+        private void write() throws IOException {
+            for (String toAppend : pending) {
+                writer.add(toAppend);
+            }
+            pending.clear();
+            writer.writeBatch();
+        }
+    }
+
+    private final Function<? super K, File> fileForKey;
+    private final Charset charset;
+    private final Semaphore capacity;
+    private final List<Shard> shards;
+    private volatile boolean stillWriting = true;
+    private volatile IOException failure = null;
+
+    /**
+     * Write using the platform's charset.
+     * @param fileForKey Which file the strings for a key are appended to, each key must have a different file.
+     * @param ioThreads How many threads write the files.
+     * @param maxOpenFiles How many files can be open at once, shared between the threads.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     */
+    public ShardedFileWriter(Function<? super K, File> fileForKey, int ioThreads, int maxOpenFiles, int maxConcurrentWrites) {
+        this(fileForKey, ioThreads, maxOpenFiles, maxConcurrentWrites, Charset.defaultCharset());
+    }
+
+    /**
+     * @param fileForKey Which file the strings for a key are appended to, each key must have a different file.
+     * @param ioThreads How many threads write the files.
+     * @param maxOpenFiles How many files can be open at once, shared between the threads.
+     * @param maxConcurrentWrites How many strings can be waiting to be written before appending blocks.
+     * @param charset How to encode the strings.
+     */
+    public ShardedFileWriter(Function<? super K, File> fileForKey, int ioThreads, int maxOpenFiles,
+                             int maxConcurrentWrites, Charset charset) {
+        if (ioThreads < 1) {
+            throw new IllegalArgumentException("There must be at least one I/O thread.");
+        }
+        if (maxOpenFiles < ioThreads) {
+            throw new IllegalArgumentException("Each I/O thread must be able to open at least one file.");
+        }
+        if (maxConcurrentWrites < 1) {
+            throw new IllegalArgumentException("Max concurrent writes must be at least one.");
+        }
+        this.fileForKey = fileForKey;
+        this.charset = charset;
+        this.capacity = new Semaphore(maxConcurrentWrites);
+        this.shards = new ArrayList<>(ioThreads);
+        for (int i = 0; i < ioThreads; i++) {
+            //spread the leftover files over the first shards
+            int shardOpenFiles = maxOpenFiles / ioThreads + ((i < maxOpenFiles % ioThreads) ? 1 : 0);
+            shards.add(new Shard(shardOpenFiles, "Sharded-File-Writer-" + i));
+        }
+    }
+
+    /**
+     * Queue a string to be appended to a key's file, blocking if the queue is full.
+     * @param key The key.
+     * @param toAppend The string to append.
+     * @throws IllegalStateException If the writer has been closed, or if the thread was interrupted
+     * while waiting for room in the queue (its interrupt flag is set again).
+     * @throws UncheckedIOException If an earlier write failed.
+     */
+    public void append(K key, String toAppend) {
+        if (!stillWriting) {
+            throw new IllegalStateException("The writer has been closed.");
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException(failed);
+        }
+        try {
+            capacity.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to append.", e);
+        }
+        int hash = key.hashCode();
+        Shard shard = shards.get(Math.floorMod(hash ^ (hash >>> 16), shards.size()));
+        //being counted keeps the shard running, so check again in case close happened while waiting
+        shard.appending.incrementAndGet();
+        if (!stillWriting) {
+            shard.appending.decrementAndGet();
+            LockSupport.unpark(shard.thread);
+            capacity.release();
+            throw new IllegalStateException("The writer has been closed.");
+        }
+        shard.toProcess.offer(new Append<>(key, toAppend));
+        shard.appending.decrementAndGet();
+        LockSupport.unpark(shard.thread);
+    }
+
+    /**
+     * @return How many files are open right now.
+     */
+    public int getOpenFileCount() {
+        int open = 0;
+        for (Shard shard : shards) {
+            open += shard.nOpen;
+        }
+        return open;
+    }
+
+    /**
+     * Write everything that is waiting, close all the files and stop the threads.
+     * @throws UncheckedIOException If writing or closing any of the files failed.
+     */
+    public void close() {
+        stillWriting = false;
+        for (Shard shard : shards) {
+            LockSupport.unpark(shard.thread);
+        }
+        for (Shard shard : shards) {
+            try {
+                shard.thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the writer threads.", e);
+            }
+        }
+        IOException failed = failure;
+        if (failed != null) {
+            throw new UncheckedIOException(failed);
+        }
+    }
+
+    /**
+     * Keep the first failure, which later appends (and close) throw.
+     * @param e The failure.
+     */
+    private void failed(IOException e) {
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /**
+     * A queue, the thread which drains it, and the files that thread has open.
+     */
+    private final class Shard {
+
+        private final ConcurrentLinkedQueue<Append<K>> toProcess = new ConcurrentLinkedQueue<>();
+        //appenders between deciding on this shard and queueing, they unpark the thread once done
+        private final AtomicInteger appending = new AtomicInteger(0);
+        private final Thread thread;
+        private final int maxOpen;
+
+        //only used by the shard's thread
+        private final LinkedHashMap<K, OpenFile> open = new LinkedHashMap<>(16, 0.75f, true);
+        private final List<OpenFile> dirty = new ArrayList<>();
+        private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+        private volatile int nOpen = 0;
+
+        private Shard(int maxOpen, String name) {
+            this.maxOpen = maxOpen;
+            this.thread = new Thread(this::writeLoop, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void writeLoop() {
+            while (true) {
+                //read the flag before draining, so nothing appended before close can be missed
+                boolean closing = !stillWriting;
+                if (drainBatch() > 0) {
+                    writeDirty();
+                } else if (closing) {
+                    //an appender may still be about to queue its string, it unparks this thread once it has
+                    if (appending.get() == 0 && toProcess.isEmpty()) {
+                        closeAll();
+                        return;
+                    }
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+        }
+
+        private int drainBatch() {
+            int taken = 0;
+            Append<K> next;
+            while ((next = toProcess.poll()) != null) {
+                if (failure == null) {
+                    try {
+                        OpenFile file = fileFor(next.key);
+                        if (file.pending.isEmpty()) {
+                            dirty.add(file);
+                        }
+                        file.pending.add(next.text);
+                    } catch (IOException e) {
+                        failed(e);
+                    }
+                }
+                taken++;
+            }
+            if (taken > 0) {
+                capacity.release(taken);
+            }
+            return taken;
+        }
+
+        /**
+         * Write each file's pending strings, one file at a time so only one file's buffers are in use.
+         */
+        private void writeDirty() {
+            for (OpenFile file : dirty) {
+                //an evicted file was written before it was closed
+                if (failure == null && !file.pending.isEmpty()) {
+                    try {
+                        file.write();
+                    } catch (IOException e) {
+                        failed(e);
+                    }
+                }
+                file.pending.clear();
+            }
+            dirty.clear();
+        }
+
+        /**
+         * @param key The key.
+         * @return The key's file, opened if need be (closing the least recently used file if too many are open).
+         * @throws IOException If a file cannot be opened, or the file being closed cannot be written.
+         */
+        private OpenFile fileFor(K key) throws IOException {
+            OpenFile file = open.get(key);
+            if (file != null) {
+                return file;
+            }
+            if (open.size() >= maxOpen) {
+                Iterator<Map.Entry<K, OpenFile>> eldest = open.entrySet().iterator();
+                OpenFile evicted = eldest.next().getValue();
+                eldest.remove();
+                nOpen = open.size();
+                try {
+                    if (!evicted.pending.isEmpty()) {
+                        evicted.write();
+                    }
+                } finally {
+                    evicted.writer.close();
+                }
+            }
+            file = new OpenFile(new ChannelBatchWriter(fileForKey.apply(key), charset, buffers));
+            open.put(key, file);
+            nOpen = open.size();
+            return file;
+        }
+
+        private void closeAll() {
+            for (OpenFile file : open.values()) {
+                try {
+                    file.writer.close();
+                } catch (IOException e) {
+                    failed(e);
+                }
+            }
+            open.clear();
+            nOpen = 0;
+        }
+
+    }
+
+}
@@ -0,0 +1,78 @@
+package onethreeseven.common.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes batches through a {@link FileOutputStream}: the batch is collected in a StringBuilder,
+ * encoded in one pass into a heap buffer and written in one call.
+ * @author Luke Bermingham
+ */
+final class StreamBatchWriter extends BatchWriter {
+
+    private static final int INITIAL_BUFFER_SIZE = 1 << 16;
+
+    private final FileOutputStream out;
+    private final CharsetEncoder encoder;
+    private final StringBuilder batch = new StringBuilder();
+    private ByteBuffer encoded = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+
+    /**
+     * @param file The file to append to.
+     * @param charset How to encode the strings.
+     * @throws IOException If the file cannot be opened.
+     */
+    StreamBatchWriter(File file, Charset charset) throws IOException {
+        this.out = new FileOutputStream(file, true);
+        this.encoder = charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    @Override
+    void add(CharSequence toAppend) {
+        batch.append(toAppend);
+    }
+
+    @Override
+    void writeBatch() throws IOException {
+        CharBuffer chars = CharBuffer.wrap(batch);
+        encoded.clear();
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, encoded, true);
+            if (result.isUnderflow()) {
+                result = encoder.flush(encoded);
+            }
+            if (result.isUnderflow()) {
+                break;
+            }
+            //overflow, grow the buffer and carry on
+            ByteBuffer bigger = ByteBuffer.allocate(encoded.capacity() * 2);
+            encoded.flip();
+            bigger.put(encoded);
+            encoded = bigger;
+        }
+        batch.setLength(0);
+        out.write(encoded.array(), 0, encoded.position());
+    }
+
+    @Override
+    void force() throws IOException {
+        //with the metadata, an append changes the file's length
+        out.getChannel().force(true);
+    }
+
+    @Override
+    void close() throws IOException {
+        out.close();
+    }
+
+}
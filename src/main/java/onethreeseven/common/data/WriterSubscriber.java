@@ -0,0 +1,113 @@
+package onethreeseven.common.data;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Function;
+
+/**
+ * Subscribes to records (i.e. from a {@link RecordPublisher}) and appends them to a {@link ConcurrentFileWriter}.
+ * Records are requested a batch at a time, and the next batch is only requested once the current one
+ * has been handed to the writer. Since the writer's queue is bounded, appending blocks when the disk
+ * falls behind, which in turn holds back the next request; so a parse-to-write pipeline runs in bounded memory.
+ * If an append fails (or its future completes exceptionally, i.e. it could not be written or forced)
+ * the subscription is cancelled and {@link #getCompletion()} completes with that failure.
+ * The writer is not closed by this subscriber, wait on {@link #getCompletion()} and then close it.
+ * @param <R> The record type.
+ * @author Luke Bermingham
+ */
+public class WriterSubscriber<R> implements Flow.Subscriber<R> {
+
+    private final ConcurrentFileWriter writer;
+    private final Function<? super R, String> formatter;
+    private final int batchSize;
+    private final CompletableFuture<Long> completion = new CompletableFuture<>();
+
+    private volatile Flow.Subscription subscription = null;
+    //appends are written in order, so once the last one is done so are the rest
+    private CompletableFuture<Void> lastAppend = CompletableFuture.completedFuture(null);
+    private long written = 0;
+    private int remainingInBatch = 0;
+
+    /**
+     * @param writer The writer to append to.
+     * @param formatter Turns a record into the text to append (including any line terminator).
+     * @param batchSize How many records to request at a time.
+     */
+    public WriterSubscriber(ConcurrentFileWriter writer, Function<? super R, String> formatter, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be at least one.");
+        }
+        this.writer = writer;
+        this.formatter = formatter;
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (this.subscription != null) {
+            subscription.cancel();
+            return;
+        }
+        this.subscription = subscription;
+        requestBatch();
+    }
+
+    @Override
+    public void onNext(R item) {
+        if (completion.isDone()) {
+            //an earlier append failed
+            return;
+        }
+        final CompletableFuture<Void> appended;
+        try {
+            appended = writer.append(formatter.apply(item));
+        } catch (RuntimeException e) {
+            fail(e);
+            return;
+        }
+        appended.whenComplete((ignored, failure) -> {
+            if (failure != null) {
+                fail(failure);
+            }
+        });
+        lastAppend = appended;
+        written++;
+        if (--remainingInBatch == 0) {
+            requestBatch();
+        }
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        completion.completeExceptionally(throwable);
+    }
+
+    @Override
+    public void onComplete() {
+        final long total = written;
+        lastAppend.whenComplete((ignored, failure) -> {
+            if (failure == null) {
+                completion.complete(total);
+            }
+        });
+    }
+
+    /**
+     * @return Completes with the number of records appended once the publisher is done, or exceptionally on error.
+     */
+    public CompletableFuture<Long> getCompletion() {
+        return completion;
+    }
+
+    private void fail(Throwable failure) {
+        if (completion.completeExceptionally(failure)) {
+            subscription.cancel();
+        }
+    }
+
+    private void requestBatch() {
+        remainingInBatch = batchSize;
+        subscription.request(batchSize);
+    }
+
+}
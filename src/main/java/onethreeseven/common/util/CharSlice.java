@@ -0,0 +1,131 @@
+package onethreeseven.common.util;
+
+/**
+ * A mutable, reusable {@link CharSequence} view over part of a char array.
+ * Parsers hand these out so that a line can be inspected without creating a String,
+ * which means the contents are only valid until the owner moves on to the next line.
+ * Call {@link #toString()} to keep a copy.
+ * @author Luke Bermingham
+ */
+public final class CharSlice implements CharSequence {
+
+    private char[] chars;
+    private int offset;
+    private int length;
+    private char[] decoded = null;
+
+    public CharSlice() {
+        this(new char[0], 0, 0);
+    }
+
+    public CharSlice(char[] chars, int offset, int length) {
+        set(chars, offset, length);
+    }
+
+    /**
+     * Point this slice at a different part of an array.
+     * @param chars The array.
+     * @param offset The first char of the slice.
+     * @param length The number of chars in the slice.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public CharSlice set(char[] chars, int offset, int length) {
+        this.chars = chars;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    /**
+     * Decode some UTF-8 bytes into a buffer owned by this slice and point the slice at them.
+     * Malformed input is replaced with U+FFFD.
+     * @param bytes The encoded bytes.
+     * @param offset Where the bytes start.
+     * @param length How many bytes to decode.
+     * @return A reference to this object. Useful for method chaining.
+     */
+    public CharSlice decodeUtf8(byte[] bytes, int offset, int length) {
+        //never more chars than bytes
+        if (decoded == null || decoded.length < length) {
+            decoded = new char[Math.max(length, 64)];
+        }
+        final char[] out = decoded;
+        final int end = offset + length;
+        int i = offset;
+        int n = 0;
+        //ascii fast path
+        while (i < end && bytes[i] >= 0) {
+            out[n++] = (char) bytes[i++];
+        }
+        while (i < end) {
+            int b = bytes[i++];
+            if (b >= 0) {
+                out[n++] = (char) b;
+            } else if ((b & 0xE0) == 0xC0 && i < end && isContinuation(bytes[i])) {
+                out[n++] = (char) (((b & 0x1F) << 6) | (bytes[i++] & 0x3F));
+            } else if ((b & 0xF0) == 0xE0 && i + 1 < end && isContinuation(bytes[i]) && isContinuation(bytes[i + 1])) {
+                out[n++] = (char) (((b & 0x0F) << 12) | ((bytes[i] & 0x3F) << 6) | (bytes[i + 1] & 0x3F));
+                i += 2;
+            } else if ((b & 0xF8) == 0xF0 && i + 2 < end && isContinuation(bytes[i]) &&
+                    isContinuation(bytes[i + 1]) && isContinuation(bytes[i + 2])) {
+                int codePoint = ((b & 0x07) << 18) | ((bytes[i] & 0x3F) << 12) |
+                        ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F);
+                i += 3;
+                if (Character.isSupplementaryCodePoint(codePoint)) {
+                    out[n++] = Character.highSurrogate(codePoint);
+                    out[n++] = Character.lowSurrogate(codePoint);
+                } else {
+                    out[n++] = '\uFFFD';
+                }
+            } else {
+                out[n++] = '\uFFFD';
+            }
+        }
+        return set(out, 0, n);
+    }
+
+    private static boolean isContinuation(byte b) {
+        return (b & 0xC0) == 0x80;
+    }
+
+    /**
+     * @return The array backing this slice, for callers that want to avoid {@link #charAt(int)}.
+     */
+    public char[] array() {
+        return chars;
+    }
+
+    /**
+     * @return Where this slice starts in {@link #array()}.
+     */
+    public int offset() {
+        return offset;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", length: " + length);
+        }
+        return chars[offset + index];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        if (start < 0 || end > length || start > end) {
+            throw new IndexOutOfBoundsException("Start: " + start + ", end: " + end + ", length: " + length);
+        }
+        return new String(chars, offset + start, end - start);
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, offset, length);
+    }
+
+}
@@ -3,7 +3,6 @@ package onethreeseven.common.util;
 import java.io.*;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Arrays;
 import java.util.function.Consumer;
 
 /**
@@ -24,14 +23,54 @@ public final class FileUtil {
     }
 
 
+    /**
+     * Read from a reader until one of the terminators is found (or the end of the reader).
+     * The terminators are compiled into a {@link TerminatorMatcher} on every call, so to read many lines
+     * compile them once and use {@link #readUntil(BufferedReader, TerminatorMatcher, StringBuilder, boolean)},
+     * or use {@link LineReader}, which is faster still.
+     * @param br the reader to read from
+     * @param terminators the terminators used to determine a line end, if there are none the rest of the reader is read
+     * @param sb a builder to accumulate the line in, it is emptied before returning
+     * @param keepTerminators whether to keep the terminator in the output string
+     * @return the line, or null if the reader was already at its end
+     * @throws IOException if the reader cannot be read
+     * @throws IllegalArgumentException if one of the terminators is empty
+     */
     public static String readUntil(BufferedReader br, char[][] terminators, StringBuilder sb, boolean keepTerminators) throws IOException {
+        final TerminatorMatcher matcher = (terminators.length == 0) ? null : TerminatorMatcher.ofChars(terminators);
+        return readUntil(br, matcher, sb, keepTerminators);
+    }
+
+    /**
+     * Read from a reader until the matcher finds a terminator (or the end of the reader).
+     * Chars are read in blocks and scanned with the matcher,
+     * anything read past the terminator is given back to the reader using mark/reset.
+     * If the builder already holds some chars the line carries on from them,
+     * so a terminator can start in them and end in what is read.
+     * @param br the reader to read from
+     * @param matcher the compiled terminators (see {@link TerminatorMatcher#ofChars(char[][])}),
+     *                or null to read the rest of the reader
+     * @param sb a builder to accumulate the line in, it is emptied before returning
+     * @param keepTerminators whether to keep the terminator in the output string
+     * @return the line, or null if the reader was already at its end
+     * @throws IOException if the reader cannot be read
+     */
+    public static String readUntil(BufferedReader br, TerminatorMatcher matcher, StringBuilder sb, boolean keepTerminators) throws IOException {
 
+        final char[] block = readUntilBlock.get();
+        int state = TerminatorMatcher.START;
+        if (matcher != null) {
+            //catch up on the end of what is already in the builder, a terminator may have started there
+            for (int i = Math.max(0, sb.length() - matcher.getMaxLength() + 1); i < sb.length(); i++) {
+                state = matcher.step(state, sb.charAt(i));
+            }
+        }
         boolean firstRead = true;
-        boolean keepReading = true;
 
-        while (keepReading) {
-            int c = br.read();
-            if (c == -1) {
+        while (true) {
+            br.mark(block.length);
+            int n = br.read(block, 0, block.length);
+            if (n == -1) {
                 //if it is the first loop through the current readUntil and we get EOF, then return
                 if (firstRead) {
                     return null;
@@ -39,57 +78,60 @@ public final class FileUtil {
                 //otherwise we got EOF whilst we have some string in the sb, so return the string
                 break;
             }
-            if (firstRead) {
-                firstRead = false;
-            }
-            //append
-            sb.append((char) c);
-            //check for the terminating characters
-            for (char[] terminator : terminators) {
-                //the buffer has to have at least that same number of characters
-                if (sb.length() >= terminator.length) {
-                    //check the last characters of the buffer for containing the terminators
-                    int srcEnd = sb.length();
-                    if (srcEnd > 0) {
-                        int srcBegin = srcEnd - terminator.length;
-                        char[] lastChars = new char[terminator.length];
-                        sb.getChars(srcBegin, srcEnd, lastChars, 0);
-                        //check if we have terminator
-                        if (Arrays.equals(lastChars, terminator)) {
-                            if (!keepTerminators) {
-                                //change the output length to not include the terminators
-                                sb.setLength(sb.length() - terminator.length);
-                            }
-                            //stop reading if we found a terminator
-                            keepReading = false;
-                            //don't look for anymore terminators
-                            break;
-                        }
+            firstRead = false;
+            for (int i = 0; matcher != null && i < n; i++) {
+                state = matcher.step(state, block[i]);
+                int termLength = matcher.matchLength(state);
+                if (termLength != 0) {
+                    //give back whatever was read past the terminator
+                    br.reset();
+                    long toSkip = i + 1;
+                    while (toSkip > 0) {
+                        toSkip -= br.skip(toSkip);
+                    }
+                    sb.append(block, 0, i + 1);
+                    if (!keepTerminators) {
+                        //the terminator may have started in an earlier block, so trim the builder
+                        sb.setLength(sb.length() - termLength);
                     }
+                    String out = sb.toString();
+                    sb.setLength(0);
+                    return out;
                 }
             }
+            sb.append(block, 0, n);
         }
         String out = sb.toString();
         sb.setLength(0);
         return out;
     }
 
+    private static final ThreadLocal<char[]> readUntilBlock = ThreadLocal.withInitial(() -> new char[256]);
+
     /**
      * Reads a file line by line using some supplied terminators to define when a line ends.
      *
      * @param file  the file to read
-     * @param terminators the terminators used to determine a line end
+     * @param terminators the terminators used to determine a line end, if there are none the whole file is one line
      * @param keepTerminators whether to keep the terminators in the output line string
      * @param readLineListener what to do with each line
      */
     public static void readLineByLine(File file, char[][] terminators, boolean keepTerminators, Consumer<String> readLineListener) {
-        try {
-            StringBuilder sb = new StringBuilder();
-            FileReader fr = new FileReader(file);
-            BufferedReader br = new BufferedReader(fr);
-            String line;
-            while ((line = readUntil(br, terminators, sb, keepTerminators)) != null) {
-                readLineListener.accept(line);
+        if (terminators.length == 0) {
+            //no terminators, the whole file is one line
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line = readUntil(br, (TerminatorMatcher) null, new StringBuilder(), keepTerminators);
+                if (line != null) {
+                    readLineListener.accept(line);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+        try (LineReader reader = new LineReader(new FileReader(file), TerminatorMatcher.ofChars(terminators), keepTerminators)) {
+            while (reader.next()) {
+                readLineListener.accept(reader.line().toString());
             }
         } catch (IOException e) {
             e.printStackTrace();
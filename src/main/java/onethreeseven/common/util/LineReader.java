@@ -0,0 +1,208 @@
+package onethreeseven.common.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads lines into a reusable block of chars, rather than creating a String for each line.
+ * By default lines end at \n, \r or \r\n, the same as {@link java.io.BufferedReader#readLine()},
+ * alternatively a {@link TerminatorMatcher} can be used to find custom terminators
+ * (even when they span two reads). Lines are pulled one at a time using {@link #next()}
+ * and viewed through {@link #line()}, the view is only valid until the next call.
+ * @author Luke Bermingham
+ */
+public final class LineReader implements Closeable {
+
+    private static final int DEFAULT_BUFFER_SIZE = 1 << 13;
+
+    private final Reader reader;
+    private final TerminatorMatcher matcher;
+    private final boolean keepTerminators;
+    private final CharSlice line = new CharSlice();
+    private char[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean skipLF = false;
+    private int state = TerminatorMatcher.START;
+    private long consumed = 0;
+    private long consumedBytes = 0;
+
+    public LineReader(Reader reader) {
+        this(reader, null, false, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param reader Where to read the chars from, no extra buffering is needed.
+     * @param matcher The custom terminators (see {@link TerminatorMatcher#ofChars(char[][])}), or null for the defaults.
+     * @param keepTerminators Whether to keep custom terminators at the end of each line.
+     */
+    public LineReader(Reader reader, TerminatorMatcher matcher, boolean keepTerminators) {
+        this(reader, matcher, keepTerminators, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param reader Where to read the chars from, no extra buffering is needed.
+     * @param matcher The custom terminators (see {@link TerminatorMatcher#ofChars(char[][])}), or null for the defaults.
+     * @param keepTerminators Whether to keep custom terminators at the end of each line.
+     * @param bufferSize The initial size of the block, it grows if a line does not fit.
+     */
+    public LineReader(Reader reader, TerminatorMatcher matcher, boolean keepTerminators, int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive.");
+        }
+        this.reader = reader;
+        this.matcher = matcher;
+        this.keepTerminators = keepTerminators;
+        this.buffer = new char[bufferSize];
+    }
+
+    /**
+     * Move to the next line.
+     * @return True if there is another line, false at the end of the input.
+     * @throws IOException If the reader cannot be read.
+     */
+    public boolean next() throws IOException {
+        if (matcher != null) {
+            return nextMatched();
+        }
+        if (skipLF) {
+            if (pos == limit && !fill()) {
+                return false;
+            }
+            skipLF = false;
+            if (buffer[pos] == '\n') {
+                consume(pos + 1);
+            }
+        }
+
+        int i = pos;
+        while (true) {
+            char c = 0;
+            while (i < limit && (c = buffer[i]) != '\n' && c != '\r') {
+                i++;
+            }
+            if (i < limit) {
+                line.set(buffer, pos, i - pos);
+                skipLF = c == '\r';
+                consume(i + 1);
+                return true;
+            }
+            //the line carries on past what is buffered
+            int scanned = i - pos;
+            if (!fill()) {
+                if (limit > pos) {
+                    //last line, without a terminator
+                    line.set(buffer, pos, limit - pos);
+                    consume(limit);
+                    return true;
+                }
+                return false;
+            }
+            i = pos + scanned;
+        }
+    }
+
+    private boolean nextMatched() throws IOException {
+        int i = pos;
+        while (true) {
+            int termLength = 0;
+            while (i < limit) {
+                state = matcher.step(state, buffer[i++]);
+                if ((termLength = matcher.matchLength(state)) != 0) {
+                    break;
+                }
+            }
+            if (termLength != 0) {
+                state = TerminatorMatcher.START;
+                line.set(buffer, pos, (keepTerminators ? i : i - termLength) - pos);
+                consume(i);
+                return true;
+            }
+            //the line carries on past what is buffered, the automaton's state carries on with it
+            int scanned = i - pos;
+            if (!fill()) {
+                if (limit > pos) {
+                    //last line, without a terminator
+                    line.set(buffer, pos, limit - pos);
+                    consume(limit);
+                    return true;
+                }
+                return false;
+            }
+            i = pos + scanned;
+        }
+    }
+
+    /**
+     * @return A view of the current line, excluding its terminator (unless they are being kept).
+     */
+    public CharSlice line() {
+        return line;
+    }
+
+    /**
+     * @return How many chars have been consumed so far, including terminators.
+     */
+    public long consumed() {
+        return consumed;
+    }
+
+    /**
+     * @return How many bytes the chars consumed so far take when encoded as UTF-8, including terminators;
+     * i.e. for measuring progress against the length of a UTF-8 file.
+     */
+    public long consumedBytes() {
+        return consumedBytes;
+    }
+
+    /**
+     * Count the chars up to the end of a line as consumed.
+     * @param end Where the line ends in the block, including its terminator.
+     */
+    private void consume(int end) {
+        consumed += end - pos;
+        long bytes = end - pos;
+        for (int i = pos; i < end; i++) {
+            char c = buffer[i];
+            if (c >= 0x80) {
+                //each half of a surrogate pair counts 2, making the 4 bytes of the pair
+                bytes += (c < 0x800 || Character.isSurrogate(c)) ? 1 : 2;
+            }
+        }
+        consumedBytes += bytes;
+        pos = end;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+
+    /**
+     * Move any unconsumed chars to the front of the block (growing it if they fill it) and read more after them.
+     * @return False if the reader is exhausted.
+     */
+    private boolean fill() throws IOException {
+        int remaining = limit - pos;
+        if (pos > 0) {
+            System.arraycopy(buffer, pos, buffer, 0, remaining);
+        } else if (remaining == buffer.length) {
+            char[] bigger = new char[buffer.length * 2];
+            System.arraycopy(buffer, 0, bigger, 0, remaining);
+            buffer = bigger;
+        }
+        pos = 0;
+        limit = remaining;
+        int n;
+        do {
+            n = reader.read(buffer, limit, buffer.length - limit);
+        } while (n == 0);
+        if (n < 0) {
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+}
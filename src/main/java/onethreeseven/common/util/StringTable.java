@@ -0,0 +1,167 @@
+package onethreeseven.common.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded table of canonical strings, for fields which repeat the same few values
+ * (ids, labels, categories) over millions of lines. Looking a value up straight from
+ * the chars or bytes of a line returns the same String instance every time, and no
+ * String is created at all when the value is already in the table.
+ * <p>
+ * The table is direct-mapped: each value can only live in the slot its hash points to,
+ * and a new value simply replaces whatever was there. So it never holds more than its
+ * capacity, and values longer than the maximum length are never kept. A replaced value
+ * just means an extra String is made the next time it is seen; results are always correct.
+ * The table can be shared between threads without locking.
+ * @author Luke Bermingham
+ */
+public final class StringTable {
+
+    private static final int DEFAULT_MAX_LENGTH = 64;
+    private static final ThreadLocal<CharSlice> decoded = ThreadLocal.withInitial(CharSlice::new);
+
+    private final AtomicReferenceArray<String> slots;
+    private final int mask;
+    private final int maxLength;
+
+    /**
+     * @param capacity How many strings the table can hold, rounded up to a power of two.
+     *                 A few times the number of distinct values keeps collisions rare.
+     */
+    public StringTable(int capacity) {
+        this(capacity, DEFAULT_MAX_LENGTH);
+    }
+
+    /**
+     * @param capacity How many strings the table can hold, rounded up to a power of two.
+     * @param maxLength Strings longer than this are not kept.
+     */
+    public StringTable(int capacity, int maxLength) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Capacity must be between 1 and 2^30.");
+        }
+        if (maxLength < 0) {
+            throw new IllegalArgumentException("Max length cannot be negative.");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * @param value Some chars.
+     * @return The canonical String with the same content.
+     */
+    public String intern(CharSequence value) {
+        if (value instanceof CharSlice) {
+            CharSlice slice = (CharSlice) value;
+            return intern(slice.array(), slice.offset(), slice.length());
+        }
+        final int length = value.length();
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + value.charAt(i);
+        }
+        final int idx = slotOf(hash);
+        String existing = slots.get(idx);
+        if (existing != null && existing.hashCode() == hash && existing.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = existing.charAt(i) == value.charAt(i);
+            }
+            if (same) {
+                return existing;
+            }
+        }
+        return store(idx, value.toString());
+    }
+
+    /**
+     * @param chars The array holding the value.
+     * @param offset Where the value starts.
+     * @param length The length of the value.
+     * @return The canonical String with the same content.
+     */
+    public String intern(char[] chars, int offset, int length) {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + chars[i];
+        }
+        final int idx = slotOf(hash);
+        String existing = slots.get(idx);
+        if (existing != null && existing.hashCode() == hash && existing.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = existing.charAt(i) == chars[offset + i];
+            }
+            if (same) {
+                return existing;
+            }
+        }
+        return store(idx, new String(chars, offset, length));
+    }
+
+    /**
+     * @param bytes The array holding the UTF-8 encoded value, i.e. a line which has not been decoded.
+     * @param offset Where the value starts.
+     * @param length The length of the value in bytes.
+     * @return The canonical String with the same content.
+     */
+    public String intern(byte[] bytes, int offset, int length) {
+        //for ASCII each byte is a char, so the String hash can be worked out from the bytes
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            int b = bytes[i];
+            if (b < 0) {
+                CharSlice slice = decoded.get().decodeUtf8(bytes, offset, length);
+                return intern(slice.array(), slice.offset(), slice.length());
+            }
+            hash = 31 * hash + b;
+        }
+        final int idx = slotOf(hash);
+        String existing = slots.get(idx);
+        if (existing != null && existing.hashCode() == hash && existing.length() == length) {
+            boolean same = true;
+            for (int i = 0; i < length && same; i++) {
+                same = existing.charAt(i) == bytes[offset + i];
+            }
+            if (same) {
+                return existing;
+            }
+        }
+        return store(idx, new String(bytes, offset, length, StandardCharsets.ISO_8859_1));
+    }
+
+    /**
+     * @return How many strings the table can hold.
+     */
+    public int getCapacity() {
+        return slots.length();
+    }
+
+    /**
+     * Forget every string in the table.
+     */
+    public void clear() {
+        for (int i = 0; i < slots.length(); i++) {
+            slots.set(i, null);
+        }
+    }
+
+    private int slotOf(int hash) {
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private String store(int idx, String value) {
+        if (value.length() <= maxLength) {
+            slots.set(idx, value);
+        }
+        return value;
+    }
+
+}
@@ -0,0 +1,218 @@
+package onethreeseven.common.util;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A precompiled automaton (Aho-Corasick, flattened into a DFA) that recognises
+ * the end of a line for a set of custom line terminators, all at once.
+ * Feed it one symbol (a byte or a char) at a time using {@link #step(int, int)};
+ * when {@link #matchLength(int)} is non-zero a terminator has just ended and
+ * scanning should restart from {@link #START}. Because the state is just an int,
+ * a terminator can be split across buffers without any special handling.
+ * If more than one terminator ends on the same symbol the one supplied first wins,
+ * which is the same rule {@link FileUtil#readUntil} has always applied.
+ * @author Luke Bermingham
+ */
+public final class TerminatorMatcher {
+
+    /**
+     * The state to start in, and to return to after each match.
+     */
+    public static final int START = 0;
+
+    //symbols that appear in no terminator all share class 0
+    private final int[] lowClasses = new int[256];
+    private final int[] highSymbols;
+    private final int[] highClasses;
+    private final int width;
+
+    private final int[] transitions;
+    private final int[] matchLengths;
+    private final int maxLength;
+
+    private TerminatorMatcher(int[][] terminators) {
+        if (terminators == null || terminators.length == 0) {
+            throw new IllegalArgumentException("Must have at least one terminator.");
+        }
+
+        int capacity = 1;
+        int longest = 0;
+        for (int[] terminator : terminators) {
+            if (terminator.length == 0) {
+                throw new IllegalArgumentException("Terminators cannot be empty.");
+            }
+            capacity += terminator.length;
+            longest = Math.max(longest, terminator.length);
+        }
+
+        //give every distinct symbol its own class so the transition table stays small
+        int[] symbols = Arrays.stream(terminators).flatMapToInt(Arrays::stream).distinct().sorted().toArray();
+        int nHigh = 0;
+        for (int i = 0; i < symbols.length; i++) {
+            if (symbols[i] < lowClasses.length) {
+                lowClasses[symbols[i]] = i + 1;
+            } else {
+                nHigh++;
+            }
+        }
+        this.highSymbols = Arrays.copyOfRange(symbols, symbols.length - nHigh, symbols.length);
+        this.highClasses = new int[nHigh];
+        for (int i = 0; i < nHigh; i++) {
+            highClasses[i] = symbols.length - nHigh + i + 1;
+        }
+        this.width = symbols.length + 1;
+
+        //build the trie, remembering the first terminator to end at each node
+        int[] trie = new int[capacity * width];
+        Arrays.fill(trie, -1);
+        int[] terminal = new int[capacity];
+        Arrays.fill(terminal, -1);
+        int nStates = 1;
+
+        for (int i = 0; i < terminators.length; i++) {
+            int state = START;
+            for (int symbol : terminators[i]) {
+                int idx = state * width + classOf(symbol);
+                if (trie[idx] == -1) {
+                    trie[idx] = nStates++;
+                }
+                state = trie[idx];
+            }
+            if (terminal[state] == -1) {
+                terminal[state] = i;
+            }
+        }
+
+        //breadth first: fail links, flattened transitions and the winning match per state
+        this.transitions = new int[nStates * width];
+        this.matchLengths = new int[nStates];
+        this.maxLength = longest;
+        int[] fail = new int[nStates];
+        int[] matchIdx = new int[nStates];
+        matchIdx[START] = -1;
+
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        for (int c = 0; c < width; c++) {
+            int child = trie[c];
+            if (child == -1) {
+                transitions[c] = START;
+            } else {
+                transitions[c] = child;
+                fail[child] = START;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            int state = queue.poll();
+            int inherited = matchIdx[fail[state]];
+            int own = terminal[state];
+            matchIdx[state] = (own == -1 || (inherited != -1 && inherited < own)) ? inherited : own;
+            if (matchIdx[state] != -1) {
+                //a match is a suffix of this state, so its length comes from the terminator itself
+                matchLengths[state] = terminators[matchIdx[state]].length;
+            }
+            for (int c = 0; c < width; c++) {
+                int child = trie[state * width + c];
+                if (child == -1) {
+                    transitions[state * width + c] = transitions[fail[state] * width + c];
+                } else {
+                    transitions[state * width + c] = child;
+                    fail[child] = transitions[fail[state] * width + c];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    /**
+     * Compile some byte sequences into a matcher.
+     * @param terminators The byte sequences that end a line.
+     * @return The compiled matcher, which expects bytes as unsigned values (0-255).
+     */
+    public static TerminatorMatcher ofBytes(byte[][] terminators) {
+        int[][] symbols = new int[terminators.length][];
+        for (int i = 0; i < terminators.length; i++) {
+            byte[] terminator = terminators[i];
+            symbols[i] = new int[terminator == null ? 0 : terminator.length];
+            for (int j = 0; j < symbols[i].length; j++) {
+                symbols[i][j] = terminator[j] & 0xFF;
+            }
+        }
+        return new TerminatorMatcher(symbols);
+    }
+
+    /**
+     * Compile some character terminators into a matcher that works on their UTF-8 encoded form.
+     * @param terminators The character sequences that end a line.
+     * @return The compiled matcher, which expects bytes as unsigned values (0-255).
+     */
+    public static TerminatorMatcher ofUtf8(char[][] terminators) {
+        byte[][] encoded = new byte[terminators.length][];
+        for (int i = 0; i < terminators.length; i++) {
+            encoded[i] = (terminators[i] == null) ? null : new String(terminators[i]).getBytes(StandardCharsets.UTF_8);
+        }
+        return ofBytes(encoded);
+    }
+
+    /**
+     * Compile some character terminators into a matcher.
+     * @param terminators The character sequences that end a line.
+     * @return The compiled matcher, which expects chars.
+     */
+    public static TerminatorMatcher ofChars(char[][] terminators) {
+        int[][] symbols = new int[terminators.length][];
+        for (int i = 0; i < terminators.length; i++) {
+            char[] terminator = terminators[i];
+            symbols[i] = new int[terminator == null ? 0 : terminator.length];
+            for (int j = 0; j < symbols[i].length; j++) {
+                symbols[i][j] = terminator[j];
+            }
+        }
+        return new TerminatorMatcher(symbols);
+    }
+
+    private int classOf(int symbol) {
+        if (symbol < lowClasses.length) {
+            return lowClasses[symbol];
+        }
+        int idx = Arrays.binarySearch(highSymbols, symbol);
+        return (idx < 0) ? 0 : highClasses[idx];
+    }
+
+    /**
+     * Advance the automaton by one symbol.
+     * @param state The current state.
+     * @param symbol The next byte (0-255) or char, depending on how the matcher was compiled.
+     * @return The next state.
+     */
+    public int step(int state, int symbol) {
+        return transitions[state * width + classOf(symbol)];
+    }
+
+    /**
+     * @param state A state returned by {@link #step(int, int)}.
+     * @return The length of the terminator that ends in this state, or 0 if no terminator has ended.
+     */
+    public int matchLength(int state) {
+        return matchLengths[state];
+    }
+
+    /**
+     * @param symbol A byte (0-255) or char, depending on how the matcher was compiled.
+     * @return True if the symbol appears anywhere in any of the terminators. A terminator can
+     * never span a symbol that does not, so the automaton is back in sync just after one.
+     */
+    public boolean isTerminatorSymbol(int symbol) {
+        return classOf(symbol) != 0;
+    }
+
+    /**
+     * @return The length of the longest terminator.
+     */
+    public int getMaxLength() {
+        return maxLength;
+    }
+
+}
@@ -0,0 +1,526 @@
+package onethreeseven.common.data;
+
+import onethreeseven.common.util.TerminatorMatcher;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Testing the different parsing modes of the {@link AbstractLineBasedParser}.
+ * @author Luke Bermingham
+ */
+public class AbstractLineBasedParserTest {
+
+    /**
+     * A parser which just collects every line it is given.
+     */
+    static class LinesParser extends AbstractLineBasedParser<List<String>> {
+
+        private final List<String> lines = new ArrayList<>();
+
+        LinesParser() {
+            setProgressListener(null);
+        }
+
+        @Override
+        protected void parseLine(String line) {
+            lines.add(line);
+        }
+
+        @Override
+        protected List<String> done() {
+            return lines;
+        }
+
+        @Override
+        protected AbstractLineBasedParser<List<String>> newChunkParser() {
+            return new LinesParser();
+        }
+
+        @Override
+        protected List<String> combine(List<String> first, List<String> second) {
+            first.addAll(second);
+            return first;
+        }
+    }
+
+    /**
+     * A parser which does its parsing in the allocation-free hook, summing the first field of each line.
+     */
+    static class SumParser extends AbstractLineBasedParser<long[]> {
+
+        private final long[] sumAndCount = new long[2];
+        private CharSequence lastView = null;
+        private boolean viewReused = true;
+
+        SumParser() {
+            setProgressListener(null);
+        }
+
+        @Override
+        protected void parseLine(String line) {
+            parseLine((CharSequence) line);
+        }
+
+        @Override
+        protected void parseLine(CharSequence line) {
+            long value = 0;
+            for (int i = 0; i < line.length() && Character.isDigit(line.charAt(i)); i++) {
+                value = value * 10 + (line.charAt(i) - '0');
+            }
+            sumAndCount[0] += value;
+            sumAndCount[1]++;
+            if (lastView != null && lastView != line) {
+                viewReused = false;
+            }
+            lastView = line;
+        }
+
+        @Override
+        protected long[] done() {
+            return sumAndCount;
+        }
+    }
+
+    private static final String mixedContent = "header\none\r\ntwo\rthree\n\nfive, été\r\nsix";
+    private static final List<String> mixedLines =
+            Arrays.asList("header", "one", "two", "three", "", "five, été", "six");
+
+    private static File mixedFile;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        mixedFile = writeTestFile(mixedContent);
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (mixedFile.delete()) {
+            System.out.println("Deleted test file.");
+        }
+    }
+
+    static File writeTestFile(String content) throws IOException {
+        File file = File.createTempFile("parsertest", ".txt");
+        writeContent(file, content);
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testMemoryMappedMatchesReader() throws Exception {
+        List<String> mapped = new LinesParser().setMemoryMapped(true).parse(mixedFile);
+        Assert.assertEquals(mixedLines, mapped);
+    }
+
+    @Test
+    public void testMemoryMappedSkipsHeader() throws Exception {
+        List<String> mapped = new LinesParser().setMemoryMapped(true).setnLinesToSkip(1).parse(mixedFile);
+        Assert.assertEquals(mixedLines.subList(1, mixedLines.size()), mapped);
+    }
+
+    @Test
+    public void testMemoryMappedCustomTerminators() throws Exception {
+        File file = writeTestFile("a||b|c||||d");
+        List<String> lines = new LinesParser()
+                .setMemoryMapped(true)
+                .setLineTerminators(new char[][]{"||".toCharArray()})
+                .parse(file);
+        Assert.assertEquals(Arrays.asList("a", "b|c", "", "d"), lines);
+    }
+
+    @Test
+    public void testParallelMatchesSequential() throws Exception {
+        //big enough to be cut into several chunks, with every kind of line break
+        StringBuilder sb = new StringBuilder("header\n");
+        String[] breaks = new String[]{"\n", "\r\n", "\r"};
+        for (int i = 0; i < 400000; i++) {
+            sb.append(i).append(", ").append(i * 0.5).append(breaks[i % breaks.length]);
+        }
+        File file = writeTestFile(sb.toString());
+
+        List<String> sequential = new LinesParser().setnLinesToSkip(1).parse(file);
+        List<String> parallel = new LinesParser().setnLinesToSkip(1).setParallelism(4).parse(file);
+        Assert.assertEquals(400000, sequential.size());
+        Assert.assertEquals(sequential, parallel);
+
+        File custom = writeTestFile(sb.toString().replace("\r\n", "##").replaceAll("[\r\n]", "##"));
+        List<String> parallelCustom = new LinesParser()
+                .setLineTerminators(new char[][]{"##".toCharArray()})
+                .setnLinesToSkip(1)
+                .setParallelism(3)
+                .parse(custom);
+        Assert.assertEquals(sequential, parallelCustom);
+    }
+
+    @Test
+    public void testGzipMatchesPlain() throws Exception {
+        //many blocks worth of lines, so the inflater has to wait for the parser to free buffers
+        StringBuilder sb = new StringBuilder("header\n");
+        for (int i = 0; i < 200000; i++) {
+            sb.append(i).append(", ").append(i * 0.25).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        File plain = writeTestFile(sb.toString());
+        File compressed = File.createTempFile("parsertest", ".txt.gz");
+        compressed.deleteOnExit();
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(compressed))) {
+            out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+        }
+
+        final double[] lastProgress = new double[]{0};
+        List<String> expected = new LinesParser().setnLinesToSkip(1).parse(plain);
+        List<String> inflated = new LinesParser().setnLinesToSkip(1)
+                .setProgressListener(progress -> lastProgress[0] = progress)
+                .parse(compressed);
+        Assert.assertEquals(200000, inflated.size());
+        Assert.assertEquals(expected, inflated);
+        Assert.assertEquals(1.0, lastProgress[0], 1e-9);
+    }
+
+    @Test
+    public void testNonAsciiProgress() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50000; i++) {
+            sb.append(i).append(", café ab€中\n");
+        }
+        File file = writeTestFile(sb.toString());
+        //progress is in bytes, so it must reach the end of the file whichever way the stream is parsed
+        for (int consumers = 0; consumers <= 1; consumers++) {
+            final double[] lastProgress = new double[]{0};
+            List<String> lines = new LinesParser()
+                    .setPipelined(consumers)
+                    .setProgressListener(progress -> lastProgress[0] = progress)
+                    .parse(new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)),
+                            file.length());
+            Assert.assertEquals(50000, lines.size());
+            Assert.assertEquals(1.0, lastProgress[0], 1e-9);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testGzipCorrupt() throws Exception {
+        File compressed = File.createTempFile("parsertest", ".gz");
+        compressed.deleteOnExit();
+        try (FileOutputStream out = new FileOutputStream(compressed)) {
+            out.write("not compressed at all".getBytes(StandardCharsets.UTF_8));
+        }
+        new LinesParser().parse(compressed);
+    }
+
+    @Test
+    public void testIncrementalResumes() throws Exception {
+        File file = writeTestFile("header\none\r");
+        File store = ParseCheckpoint.sidecarFor(file);
+        store.deleteOnExit();
+
+        Assert.assertEquals(Collections.singletonList("one"), new LinesParser().setnLinesToSkip(1).parseIncremental(file));
+        //the \n completes the \r break from before, "thr" is not finished yet
+        append(file, "\ntwo\nthr");
+        Assert.assertEquals(Collections.singletonList("two"), new LinesParser().setnLinesToSkip(1).parseIncremental(file));
+        append(file, "ee\n");
+        Assert.assertEquals(Collections.singletonList("three"), new LinesParser().setnLinesToSkip(1).parseIncremental(file));
+        Assert.assertEquals(Collections.emptyList(), new LinesParser().setnLinesToSkip(1).parseIncremental(file));
+
+        ParseCheckpoint checkpoint = ParseCheckpoint.load(store);
+        Assert.assertEquals(file.length(), checkpoint.getOffset());
+        Assert.assertEquals(4, checkpoint.getLineCount());
+
+        //a replaced file starts again, header and all
+        writeContent(file, "header\nnew\n");
+        Assert.assertEquals(Collections.singletonList("new"), new LinesParser().setnLinesToSkip(1).parseIncremental(file));
+    }
+
+    @Test
+    public void testFollow() throws Exception {
+        final int nLines = 2000;
+        File file = writeTestFile("");
+        ParseCheckpoint checkpoint = new ParseCheckpoint();
+        LinesParser parser = new LinesParser();
+
+        Thread appender = new Thread(() -> {
+            try {
+                for (int i = 0; i < nLines; i += 100) {
+                    StringBuilder sb = new StringBuilder();
+                    for (int j = i; j < i + 100; j++) {
+                        sb.append(j).append('\n');
+                    }
+                    append(file, sb.toString());
+                    Thread.sleep(1);
+                }
+            } catch (IOException | InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        appender.start();
+        List<String> lines = parser.follow(file, checkpoint, 1, () -> parser.lines.size() < nLines);
+        appender.join();
+
+        Assert.assertEquals(nLines, lines.size());
+        for (int i = 0; i < nLines; i++) {
+            Assert.assertEquals(String.valueOf(i), lines.get(i));
+        }
+        Assert.assertEquals(file.length(), checkpoint.getOffset());
+    }
+
+    private static void append(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file, true)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static void writeContent(File file, String content) throws IOException {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(content.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testByteRangesCoverEveryLineOnce() throws Exception {
+        List<String> expected = mixedLines.subList(1, mixedLines.size());
+        //cutting at every byte, including between a \r and its \n
+        for (long cut = 0; cut <= mixedFile.length(); cut++) {
+            List<String> lines = new LinesParser().setnLinesToSkip(1).parse(mixedFile, 0, cut);
+            lines.addAll(new LinesParser().setnLinesToSkip(1).parse(mixedFile, cut, Long.MAX_VALUE));
+            Assert.assertEquals("Cut at " + cut, expected, lines);
+        }
+
+        File custom = writeTestFile("h##a#b##c####d");
+        for (long cut = 0; cut <= custom.length(); cut++) {
+            LinesParser first = new LinesParser();
+            first.setLineTerminators(new char[][]{"##".toCharArray()}).setnLinesToSkip(1);
+            LinesParser second = new LinesParser();
+            second.setLineTerminators(new char[][]{"##".toCharArray()}).setnLinesToSkip(1);
+            List<String> lines = first.parse(custom, 0, cut);
+            lines.addAll(second.parse(custom, cut, custom.length()));
+            Assert.assertEquals("Cut at " + cut, Arrays.asList("a#b", "c", "", "d"), lines);
+        }
+    }
+
+    @Test
+    public void testPlannedSplits() throws Exception {
+        StringBuilder sb = new StringBuilder("header\n");
+        for (int i = 0; i < 10000; i++) {
+            sb.append(i).append(i % 3 == 0 ? "\r\n" : "\n");
+        }
+        File file = writeTestFile(sb.toString());
+        List<String> expected = new LinesParser().setnLinesToSkip(1).parse(file);
+
+        for (int nSplits : new int[]{1, 2, 7, 64}) {
+            long[] bounds = new LinesParser().planSplits(file, nSplits);
+            Assert.assertEquals(nSplits + 1, bounds.length);
+            Assert.assertEquals(file.length(), bounds[nSplits]);
+            List<String> lines = new ArrayList<>();
+            for (int i = 0; i < nSplits; i++) {
+                //balanced to within a line or so
+                long size = bounds[i + 1] - bounds[i];
+                Assert.assertTrue(Math.abs(size - file.length() / nSplits) <= 8);
+                lines.addAll(new LinesParser().setnLinesToSkip(1).parse(file, bounds[i], bounds[i + 1]));
+            }
+            Assert.assertEquals(expected, lines);
+        }
+    }
+
+    @Test
+    public void testPipelined() throws Exception {
+        StringBuilder sb = new StringBuilder("header\n");
+        String[] breaks = new String[]{"\n", "\r\n", "\r"};
+        for (int i = 0; i < 200000; i++) {
+            sb.append(i).append(", ").append(i * 0.5).append(breaks[i % breaks.length]);
+        }
+        File file = writeTestFile(sb.toString());
+        List<String> sequential = new LinesParser().setnLinesToSkip(1).parse(file);
+
+        //one consumer keeps the order
+        final double[] lastProgress = new double[]{0};
+        List<String> ordered = new LinesParser().setnLinesToSkip(1).setPipelined(1)
+                .setProgressListener(progress -> lastProgress[0] = progress)
+                .parse(file);
+        Assert.assertEquals(sequential, ordered);
+        Assert.assertEquals(1.0, lastProgress[0], 1e-9);
+
+        //several consumers see every line once, in any order
+        List<String> unordered = new LinesParser().setnLinesToSkip(1).setPipelined(3).parse(file);
+        Assert.assertEquals(sequential.size(), unordered.size());
+        List<String> expected = new ArrayList<>(sequential);
+        Collections.sort(expected);
+        Collections.sort(unordered);
+        Assert.assertEquals(expected, unordered);
+    }
+
+    /**
+     * A parser whose chunk parsers fail, with a checked exception, on one line.
+     */
+    static class FailingParser extends LinesParser {
+
+        private final IOException failure;
+
+        FailingParser(IOException failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        protected void parseLine(String line) {
+            if (line.equals("5000")) {
+                AbstractLineBasedParserTest.<RuntimeException>sneakyThrow(failure);
+            }
+            super.parseLine(line);
+        }
+
+        @Override
+        protected AbstractLineBasedParser<List<String>> newChunkParser() {
+            return new FailingParser(failure);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <E extends Throwable> void sneakyThrow(Throwable t) throws E {
+        throw (E) t;
+    }
+
+    @Test
+    public void testPipelinedCheckedFailure() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i).append('\n');
+        }
+        File file = writeTestFile(sb.toString());
+        IOException failure = new IOException("Bad line");
+        try {
+            new FailingParser(failure).setPipelined(3).parse(file);
+            Assert.fail("The failure was not thrown.");
+        } catch (IOException e) {
+            Assert.assertSame(failure, e);
+        }
+        //every consumer has been stopped
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            Assert.assertFalse(thread.getName(), thread.getName().startsWith("Pipelined-Parser-Consumer-"));
+        }
+    }
+
+    @Test
+    public void testChunkingUnsupported() {
+        //the sum parser does not say how to make or combine chunks, so it can only be parsed by one parser
+        SumParser parser = new SumParser();
+        parser.setParallelism(1).setPipelined(1);
+        try {
+            parser.setParallelism(2);
+            Assert.fail("Parallelism was allowed without chunking.");
+        } catch (UnsupportedOperationException expected) {
+            //fails before parsing
+        }
+        try {
+            parser.setPipelined(2);
+            Assert.fail("Several consumers were allowed without chunking.");
+        } catch (UnsupportedOperationException expected) {
+            //fails before parsing
+        }
+        try {
+            new MultiFileParser<>(parser);
+            Assert.fail("A multi-file parser was allowed without chunking.");
+        } catch (UnsupportedOperationException expected) {
+            //fails before parsing
+        }
+        new LinesParser().setParallelism(4).setPipelined(4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPipelinedConsumerFailure() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 100000; i++) {
+            sb.append(i).append('\n');
+        }
+        File file = writeTestFile(sb.toString());
+        new LinesParser() {
+            @Override
+            protected void parseLine(String line) {
+                if (line.equals("5000")) {
+                    throw new IllegalStateException("Bad line");
+                }
+            }
+        }.setPipelined(1).parse(file);
+    }
+
+    @Test
+    public void testCharSequenceHook() throws Exception {
+        //some lines longer than the reader's block so it has to grow
+        StringBuilder sb = new StringBuilder();
+        long expected = 0;
+        for (int i = 0; i < 1000; i++) {
+            sb.append(i).append(", ");
+            for (int j = 0; j < (i % 100) * 100; j++) {
+                sb.append('x');
+            }
+            sb.append(i % 2 == 0 ? "\r\n" : "\n");
+            expected += i;
+        }
+        File file = writeTestFile(sb.toString());
+
+        SumParser readerParser = new SumParser();
+        long[] fromReader = readerParser.parse(file);
+        Assert.assertEquals(expected, fromReader[0]);
+        Assert.assertEquals(1000, fromReader[1]);
+        Assert.assertTrue(readerParser.viewReused);
+
+        SumParser mappedParser = new SumParser();
+        long[] fromMapped = mappedParser.setMemoryMapped(true).parse(file);
+        Assert.assertEquals(expected, fromMapped[0]);
+        Assert.assertEquals(1000, fromMapped[1]);
+        Assert.assertTrue(mappedParser.viewReused);
+    }
+
+    @Test
+    public void testScannerAcrossTinyBlocks() throws Exception {
+        //one byte per block, so every line and terminator spans several blocks
+        byte[] content = mixedContent.getBytes(StandardCharsets.UTF_8);
+        Assert.assertEquals(mixedLines, scanAll(content, 1, null));
+
+        byte[] custom = "one<>two<<>three<".getBytes(StandardCharsets.UTF_8);
+        TerminatorMatcher matcher = TerminatorMatcher.ofBytes(new byte[][]{"<>".getBytes(StandardCharsets.UTF_8)});
+        Assert.assertEquals(Arrays.asList("one", "two<", "three<"), scanAll(custom, 1, matcher));
+        Assert.assertEquals(Arrays.asList("one", "two<", "three<"), scanAll(custom, 3, matcher));
+    }
+
+    private static List<String> scanAll(byte[] content, int blockSize, TerminatorMatcher matcher) throws IOException {
+        ByteLineScanner.BlockSource source = new ByteLineScanner.BlockSource() {
+            private int position = 0;
+
+            @Override
+            public ByteBuffer nextBlock() {
+                if (position >= content.length) {
+                    return null;
+                }
+                int len = Math.min(blockSize, content.length - position);
+                ByteBuffer block = ByteBuffer.wrap(content, position, len);
+                position += len;
+                return block;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        List<String> lines = new ArrayList<>();
+        try (ByteLineScanner scanner = new ByteLineScanner(source, matcher)) {
+            while (scanner.next()) {
+                lines.add(new String(scanner.bytes(), scanner.offset(), scanner.length(), StandardCharsets.UTF_8));
+            }
+            Assert.assertEquals(content.length, scanner.consumed());
+        }
+        return lines;
+    }
+
+}
@@ -0,0 +1,147 @@
+package onethreeseven.common.data;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import java.io.File;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Testing the list and stream outputs of the {@link AbstractRecordParser}.
+ * @author Luke Bermingham
+ */
+public class AbstractRecordParserTest {
+
+    /**
+     * Parses "id, value" lines into a pair of numbers.
+     */
+    static class PairParser extends AbstractRecordParser<double[]> {
+
+        PairParser() {
+            setProgressListener(null);
+        }
+
+        @Override
+        protected double[] parseRecord(CharSequence line) {
+            String[] fields = line.toString().split(", ");
+            if (fields.length != 2) {
+                return null;
+            }
+            return new double[]{Double.parseDouble(fields[0]), Double.parseDouble(fields[1])};
+        }
+    }
+
+    private static final int nRecords = 200000;
+    private static File dataset;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        StringBuilder sb = new StringBuilder("id, value\n");
+        for (int i = 0; i < nRecords; i++) {
+            sb.append(i).append(", ").append(i * 0.25).append('\n');
+            if (i % 1000 == 0) {
+                sb.append("not a record\n");
+            }
+        }
+        dataset = AbstractLineBasedParserTest.writeTestFile(sb.toString());
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        if (dataset.delete()) {
+            System.out.println("Deleted test file.");
+        }
+    }
+
+    @Test
+    public void testParseToList() throws Exception {
+        List<double[]> records = new PairParser().setnLinesToSkip(1).parse(dataset);
+        Assert.assertEquals(nRecords, records.size());
+        List<double[]> parallel = new PairParser().setnLinesToSkip(1).setParallelism(4).parse(dataset);
+        Assert.assertEquals(nRecords, parallel.size());
+        for (int i = 0; i < nRecords; i++) {
+            Assert.assertEquals(records.get(i)[0], parallel.get(i)[0], 0);
+        }
+    }
+
+    @Test
+    public void testLazyStream() throws Exception {
+        PairParser parser = new PairParser();
+        parser.setnLinesToSkip(1);
+        try (Stream<double[]> records = parser.stream(dataset)) {
+            List<Double> firstBig = records.filter(r -> r[1] > 100).limit(3).map(r -> r[0]).collect(Collectors.toList());
+            Assert.assertEquals(3, firstBig.size());
+            Assert.assertEquals(401, firstBig.get(0), 0);
+        }
+    }
+
+    @Test
+    public void testParallelStream() throws Exception {
+        PairParser parser = new PairParser();
+        parser.setnLinesToSkip(1);
+        double expected = (nRecords - 1) * (double) nRecords / 2;
+        try (Stream<double[]> records = parser.stream(dataset)) {
+            Assert.assertEquals(expected, records.parallel().mapToDouble(r -> r[0]).sum(), 0);
+        }
+        try (Stream<double[]> records = parser.stream(dataset)) {
+            List<double[]> ordered = records.parallel().collect(Collectors.toList());
+            Assert.assertEquals(nRecords, ordered.size());
+            for (int i = 0; i < nRecords; i++) {
+                Assert.assertEquals(i, ordered.get(i)[0], 0);
+            }
+        }
+    }
+
+    @Test
+    public void testStreamHandlesLinesLikeParse() throws Exception {
+        //fails on a line parse() would also fail on, so both must skip it and count it the same way
+        File withBadLines = AbstractLineBasedParserTest.writeTestFile("id, value\n1, 2\nx, 3\n4, 5\n6, y\n7, 8\n");
+        ParseMetrics listMetrics = new ParseMetrics();
+        List<double[]> listed = new PairParser().setnLinesToSkip(1).setMetrics(listMetrics)
+                .setSkipBadLines(true).parse(withBadLines);
+
+        ParseMetrics streamMetrics = new ParseMetrics();
+        PairParser parser = new PairParser();
+        parser.setnLinesToSkip(1).setMetrics(streamMetrics).setSkipBadLines(true);
+        List<double[]> streamed;
+        try (Stream<double[]> records = parser.stream(withBadLines)) {
+            streamed = records.collect(Collectors.toList());
+        }
+
+        Assert.assertEquals(3, listed.size());
+        Assert.assertEquals(listed.size(), streamed.size());
+        for (int i = 0; i < listed.size(); i++) {
+            Assert.assertArrayEquals(listed.get(i), streamed.get(i), 0);
+        }
+        Assert.assertEquals(2, streamMetrics.getLineExceptions());
+        Assert.assertEquals(listMetrics.getLineExceptions(), streamMetrics.getLineExceptions());
+        Assert.assertEquals(listMetrics.getLinesParsed(), streamMetrics.getLinesParsed());
+        Assert.assertEquals(listMetrics.getLinesSkipped(), streamMetrics.getLinesSkipped());
+        Assert.assertEquals(withBadLines.length(), streamMetrics.getBytesRead());
+
+        //without skipping, the bad line stops the stream
+        PairParser strict = new PairParser();
+        strict.setnLinesToSkip(1);
+        try (Stream<double[]> records = strict.stream(withBadLines)) {
+            records.count();
+            Assert.fail("The bad line should have been thrown.");
+        } catch (NumberFormatException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testStreamCharacteristics() throws Exception {
+        try (Stream<double[]> records = new PairParser().stream(dataset)) {
+            Spliterator<double[]> spliterator = records.spliterator();
+            Assert.assertTrue(spliterator.hasCharacteristics(Spliterator.ORDERED));
+            //the file can be changed underneath it
+            Assert.assertFalse(spliterator.hasCharacteristics(Spliterator.IMMUTABLE));
+        }
+    }
+
+}
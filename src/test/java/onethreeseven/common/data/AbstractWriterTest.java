@@ -5,6 +5,10 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.Test;
 import java.io.*;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
 
 /**
  * Test the {@link AbstractWriter}
@@ -15,6 +19,9 @@ public class AbstractWriterTest {
     private static final AbstractWriter<String> mockWriter = new AbstractWriter<String>() {
         @Override
         protected boolean write(BufferedWriter bw, String s) throws IOException {
+            if (s.isEmpty()) {
+                return false;
+            }
             bw.write(s);
             return true;
         }
@@ -37,6 +44,68 @@ public class AbstractWriterTest {
         br.close();
     }
 
+    @Test
+    public void testBulkWrite() throws Exception {
+        File file = File.createTempFile("bulkwritertest", ".txt");
+        file.deleteOnExit();
+        List<String> entities = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            entities.add(i + "\n");
+        }
+        entities.add("");
+        //a small buffer so it is written out many times
+        mockWriter.setBufferSize(100);
+        try {
+            Assert.assertEquals(10000, mockWriter.write(file, entities));
+            Assert.assertEquals(3, mockWriter.write(file, IntStream.range(0, 3).mapToObj(i -> "s" + i + "\n")));
+        } finally {
+            mockWriter.setBufferSize(1 << 16);
+        }
+
+        List<String> lines = Files.readAllLines(file.toPath());
+        Assert.assertEquals(10003, lines.size());
+        Assert.assertEquals("9999", lines.get(9999));
+        Assert.assertEquals("s2", lines.get(10002));
+    }
+
+    @Test
+    public void testSession() throws Exception {
+        File file = File.createTempFile("sessionwritertest", ".txt");
+        file.deleteOnExit();
+        AbstractWriter<String>.Session session = mockWriter.open(file);
+        Assert.assertTrue(session.write("first\n"));
+        Assert.assertFalse(session.write(""));
+        session.flush();
+        Assert.assertEquals("first\n", new String(Files.readAllBytes(file.toPath())));
+        session.write("second\n");
+        session.close();
+        session.close();
+        Assert.assertEquals("first\nsecond\n", new String(Files.readAllBytes(file.toPath())));
+
+        try {
+            session.write("too late\n");
+            Assert.fail("Wrote after closing.");
+        } catch (IllegalStateException expected) {
+            //closed
+        }
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void testWriteFailure() throws Exception {
+        File directory = Files.createTempDirectory("writertest").toFile();
+        directory.deleteOnExit();
+        //a directory cannot be written as a file
+        mockWriter.write(directory, testStr);
+    }
+
+    @Test(expected = IOException.class)
+    public void testBulkWriteFailure() throws Exception {
+        File directory = Files.createTempDirectory("bulkwritertest").toFile();
+        directory.deleteOnExit();
+        //a directory cannot be written as a file
+        mockWriter.write(directory, new ArrayList<>());
+    }
+
     @AfterClass
     public static void tearDown(){
         System.out.println("Deleting: " + testFile.getAbsolutePath() +
@@ -0,0 +1,141 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Testing records written by a {@link BinaryRecordWriter} read back the same by a {@link BinaryRecordReader}.
+ * @author Luke Bermingham
+ */
+public class BinaryRecordTest {
+
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("binaryrecordtest", ".bin");
+        file.deleteOnExit();
+        BinaryRecordWriter.indexFor(file).deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testFixedWidth() throws Exception {
+        File file = newFile();
+        RecordSchema schema = new RecordSchema()
+                .addColumn("time", ColumnarTable.Type.LONG)
+                .addColumn("x", ColumnarTable.Type.DOUBLE);
+        Assert.assertTrue(schema.isFixedWidth());
+        double[] awkward = {0.1, -0.0, Double.MIN_VALUE, Double.NaN, Double.POSITIVE_INFINITY, 1.0 / 3};
+        final int nRecords = 10000;
+        try (BinaryRecordWriter writer = new BinaryRecordWriter(file, schema, false)) {
+            for (int i = 0; i < nRecords; i++) {
+                writer.setLong(0, Long.MAX_VALUE - i).setDouble(1, awkward[i % awkward.length] * (i + 1)).writeRecord();
+            }
+        }
+
+        //small regions so records are read across many mappings
+        try (BinaryRecordReader reader = new BinaryRecordReader(file, 1000)) {
+            Assert.assertEquals(nRecords, reader.getRecordCount());
+            Assert.assertEquals("x", reader.getSchema().getColumnName(1));
+            int i = 0;
+            while (reader.next()) {
+                Assert.assertEquals(Long.MAX_VALUE - i, reader.getLong(0));
+                //exactly the same bits
+                Assert.assertEquals(Double.doubleToLongBits(awkward[i % awkward.length] * (i + 1)),
+                        Double.doubleToLongBits(reader.getDouble(1)));
+                i++;
+            }
+            Assert.assertEquals(nRecords, i);
+
+            reader.seek(1234);
+            Assert.assertTrue(reader.next());
+            Assert.assertEquals(Long.MAX_VALUE - 1234, reader.getLong(0));
+        }
+    }
+
+    @Test
+    public void testVariableWidthWithIndex() throws Exception {
+        File file = newFile();
+        RecordSchema schema = new RecordSchema()
+                .addColumn("id", ColumnarTable.Type.LONG)
+                .addColumn("mode", ColumnarTable.Type.STRING)
+                .addColumn("speed", ColumnarTable.Type.DOUBLE);
+        Assert.assertFalse(schema.isFixedWidth());
+        String[] modes = {"walk", "", null, "vélo", "a much longer mode of transport than the others"};
+        final int nRecords = 5000;
+        try (BinaryRecordWriter writer = new BinaryRecordWriter(file, schema, true)) {
+            for (int i = 0; i < nRecords; i++) {
+                writer.setLong(0, i).setString(1, modes[i % modes.length]).setDouble(2, i * 0.25).writeRecord();
+            }
+            Assert.assertEquals(nRecords, writer.getRecordCount());
+        }
+
+        try (BinaryRecordReader reader = new BinaryRecordReader(file, 100)) {
+            Assert.assertEquals(nRecords, reader.getRecordCount());
+            for (long record : new long[]{4999, 0, 2500, 17}) {
+                reader.seek(record);
+                Assert.assertTrue(reader.next());
+                Assert.assertEquals(record, reader.getLong(0));
+                Assert.assertEquals(modes[(int) (record % modes.length)], reader.getString(1));
+                Assert.assertEquals(record * 0.25, reader.getDouble(2), 0);
+            }
+            reader.seek(nRecords);
+            Assert.assertFalse(reader.next());
+        }
+
+        //without the index the records can still be read in order
+        Assert.assertTrue(BinaryRecordWriter.indexFor(file).delete());
+        try (BinaryRecordReader reader = new BinaryRecordReader(file)) {
+            Assert.assertEquals(-1, reader.getRecordCount());
+            ColumnarTable table = reader.readTable();
+            Assert.assertEquals(nRecords, table.getRowCount());
+            Assert.assertEquals(3, table.getLong(3, 0));
+            Assert.assertEquals("vélo", table.getString(3, 1));
+            Assert.assertNull(table.getString(2, 1));
+        }
+    }
+
+    @Test
+    public void testTableRoundTrip() throws Exception {
+        ColumnarTable table = new ColumnarTable()
+                .addColumn("time", ColumnarTable.Type.LONG)
+                .addColumn("x", ColumnarTable.Type.DOUBLE)
+                .addColumn("mode", ColumnarTable.Type.STRING);
+        for (int i = 0; i < 3000; i++) {
+            table.newRow().setLong(0, i).setDouble(1, Math.sqrt(i)).setString(2, (i % 2 == 0) ? "walk" : "bus");
+        }
+        File file = newFile();
+        try (BinaryRecordWriter writer = new BinaryRecordWriter(file, RecordSchema.of(table), false)) {
+            writer.write(table);
+        }
+        ColumnarTable read;
+        try (BinaryRecordReader reader = new BinaryRecordReader(file)) {
+            read = reader.readTable();
+        }
+        Assert.assertEquals(table.getRowCount(), read.getRowCount());
+        Assert.assertEquals("mode", read.getColumnName(2));
+        for (int i = 0; i < table.getRowCount(); i++) {
+            Assert.assertEquals(table.getLong(i, 0), read.getLong(i, 0));
+            Assert.assertEquals(table.getDouble(i, 1), read.getDouble(i, 1), 0);
+            Assert.assertEquals(table.getString(i, 2), read.getString(i, 2));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() throws Exception {
+        File file = newFile();
+        try (BinaryRecordWriter writer = new BinaryRecordWriter(file,
+                new RecordSchema().addColumn("x", ColumnarTable.Type.DOUBLE), false)) {
+            writer.setLong(0, 1);
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotBinary() throws Exception {
+        File file = newFile();
+        Files.write(file.toPath(), "1, 2, 3\n4, 5, 6\n".getBytes());
+        new BinaryRecordReader(file).close();
+    }
+
+}
@@ -0,0 +1,143 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.File;
+
+/**
+ * Testing the {@link ColumnarTable}, on its own and as the output of a parser.
+ * @author Luke Bermingham
+ */
+public class ColumnarTableTest {
+
+    private static final String[] modes = new String[]{"walk", "tram", "train"};
+
+    /**
+     * Parses "time, x, mode" lines into a table.
+     */
+    static class TableParser extends AbstractLineBasedParser<ColumnarTable> {
+
+        private final ColumnarTable table = newTable(4);
+        private final FieldTokenizer tokenizer = new FieldTokenizer();
+
+        TableParser() {
+            setProgressListener(null);
+        }
+
+        static ColumnarTable newTable(int capacity) {
+            return new ColumnarTable(capacity)
+                    .addColumn("time", ColumnarTable.Type.LONG)
+                    .addColumn("x", ColumnarTable.Type.DOUBLE)
+                    .addColumn("mode", ColumnarTable.Type.STRING);
+        }
+
+        @Override
+        protected void parseLine(String line) {
+            parseLine((CharSequence) line);
+        }
+
+        @Override
+        protected void parseLine(CharSequence line) {
+            table.appendRow(tokenizer.reset(line));
+        }
+
+        @Override
+        protected ColumnarTable done() {
+            return table.trimToSize();
+        }
+
+        @Override
+        protected AbstractLineBasedParser<ColumnarTable> newChunkParser() {
+            return new TableParser();
+        }
+
+        @Override
+        protected ColumnarTable combine(ColumnarTable first, ColumnarTable second) {
+            return first.appendAll(second);
+        }
+    }
+
+    @Test
+    public void testRowsAndColumns() {
+        ColumnarTable table = TableParser.newTable(1);
+        for (int i = 0; i < 1000; i++) {
+            table.newRow().setLong(0, i).setDouble(1, i * 0.5).setString(2, new StringBuilder(modes[i % 3]));
+        }
+        table.newRow().setLong(0, -1);
+
+        Assert.assertEquals(1001, table.getRowCount());
+        Assert.assertEquals(3, table.getColumnCount());
+        Assert.assertEquals(1, table.getColumnIndex("x"));
+        Assert.assertEquals(ColumnarTable.Type.STRING, table.getColumnType(2));
+        Assert.assertEquals(999, table.getLong(999, 0));
+        Assert.assertEquals(499.5, table.getDouble(999, 1), 0);
+        Assert.assertEquals("walk", table.getString(999, 2));
+        //unset fields
+        Assert.assertEquals(0, table.getDouble(1000, 1), 0);
+        Assert.assertNull(table.getString(1000, 2));
+
+        //each distinct string is stored once
+        Assert.assertSame(table.getString(0, 2), table.getString(3, 2));
+        Assert.assertArrayEquals(modes, table.getDictionary(2));
+        Assert.assertEquals(1001, table.getLongColumn(0).length);
+        Assert.assertEquals(1, table.getStringCodes(2)[1]);
+    }
+
+    @Test
+    public void testColumnsWhileBuilding() {
+        ColumnarTable table = TableParser.newTable(8);
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        table.appendRow(tokenizer.reset("1, 2.5, walk"));
+        //reading while building copies rather than shrinking the table under the next row
+        long[] times = table.getLongColumn(0);
+        Assert.assertArrayEquals(new long[]{1}, times);
+        Assert.assertNotSame(times, table.getLongColumn(0));
+        table.appendRow(tokenizer.reset("2, 3.5, bus"));
+        Assert.assertArrayEquals(new double[]{2.5, 3.5}, table.getDoubleColumn(1), 0);
+        Assert.assertArrayEquals(new int[]{0, 1}, table.getStringCodes(2));
+
+        //once trimmed the table's own arrays are handed out
+        table.trimToSize();
+        Assert.assertSame(table.getLongColumn(0), table.getLongColumn(0));
+        Assert.assertSame(table.getDoubleColumn(1), table.getDoubleColumn(1));
+        Assert.assertSame(table.getStringCodes(2), table.getStringCodes(2));
+    }
+
+    @Test
+    public void testBadRowIsNotAdded() {
+        ColumnarTable table = TableParser.newTable(8);
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        table.appendRow(tokenizer.reset("1, 2.5, walk"));
+        try {
+            table.appendRow(tokenizer.reset("2, oops, tram"));
+            Assert.fail("Expected the row to be rejected.");
+        } catch (NumberFormatException expected) {
+            Assert.assertEquals(1, table.getRowCount());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongType() {
+        TableParser.newTable(8).newRow().setDouble(0, 1.5);
+    }
+
+    @Test
+    public void testParallelParseMatchesSequential() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300000; i++) {
+            sb.append(i).append(", ").append(i * 0.125).append(", ").append(modes[(i * 7) % 3]).append('\n');
+        }
+        File file = AbstractLineBasedParserTest.writeTestFile(sb.toString());
+
+        ColumnarTable sequential = new TableParser().parse(file);
+        ColumnarTable parallel = new TableParser().setParallelism(4).parse(file);
+        Assert.assertEquals(300000, sequential.getRowCount());
+        Assert.assertEquals(300000, parallel.getRowCount());
+        Assert.assertArrayEquals(sequential.getLongColumn(0), parallel.getLongColumn(0));
+        Assert.assertArrayEquals(sequential.getDoubleColumn(1), parallel.getDoubleColumn(1), 0);
+        for (int row = 0; row < 300000; row++) {
+            Assert.assertEquals(modes[(row * 7) % 3], parallel.getString(row, 2));
+        }
+    }
+
+}
@@ -6,10 +6,23 @@ import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileReader;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -68,4 +81,236 @@ public class ConcurrentFileWriterTest {
         });
 
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyAppenders() throws Exception {
+        final int nAppenders = 64;
+        final int nEach = 5000;
+        File output = File.createTempFile("concurrentwritertest", ".txt");
+        output.deleteOnExit();
+        final ConcurrentFileWriter manyWriter = new ConcurrentFileWriter(output, 256);
+
+        ExecutorService exec = Executors.newFixedThreadPool(nAppenders);
+        for (int t = 0; t < nAppenders; t++) {
+            final int thread = t;
+            exec.submit(() -> {
+                for (int i = 0; i < nEach; i++) {
+                    manyWriter.append(thread + "," + i + "\n");
+                }
+            });
+        }
+        exec.shutdown();
+        Assert.assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+        manyWriter.close();
+
+        //every line is whole, and each thread's lines are in the order it appended them
+        int[] nextExpected = new int[nAppenders];
+        try (BufferedReader br = new BufferedReader(new FileReader(output))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] parts = line.split(",");
+                int thread = Integer.parseInt(parts[0]);
+                Assert.assertEquals(nextExpected[thread]++, Integer.parseInt(parts[1]));
+            }
+        }
+        for (int count : nextExpected) {
+            Assert.assertEquals(nEach, count);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendAfterClose() throws Exception {
+        File output = File.createTempFile("concurrentwritertest", ".txt");
+        output.deleteOnExit();
+        ConcurrentFileWriter closedWriter = new ConcurrentFileWriter(output, 1);
+        closedWriter.close();
+        closedWriter.append("too late\n");
+    }
+
+    @Test
+    public void testChannelBackend() throws Exception {
+        //ascii, latin-1, wider than latin-1, a surrogate pair, and one string bigger than all the buffers together
+        StringBuilder huge = new StringBuilder();
+        while (huge.length() < ChannelBatchWriter.BUFFER_SIZE * (ChannelBatchWriter.MAX_GATHER + 1)) {
+            huge.append("long line é ");
+        }
+        String[] values = {"plain ascii\n", "café crème\n", "ab\u20ac\u4e2d\n", "x\ud83d\ude00y\n", huge.toString(), "\n"};
+        Charset[] charsets = {StandardCharsets.UTF_8, StandardCharsets.ISO_8859_1, StandardCharsets.US_ASCII, StandardCharsets.UTF_16LE};
+        for (Charset charset : charsets) {
+            File output = File.createTempFile("channelwritertest", ".txt");
+            output.deleteOnExit();
+            ConcurrentFileWriter channelWriter = new ConcurrentFileWriter(output, 4, ConcurrentFileWriter.Backend.CHANNEL, charset);
+            StringBuilder expected = new StringBuilder();
+            for (int i = 0; i < 200; i++) {
+                String value = values[i % values.length];
+                channelWriter.append(value);
+                expected.append(value);
+            }
+            channelWriter.close();
+            Assert.assertArrayEquals(charset.toString(),
+                    expected.toString().getBytes(charset), Files.readAllBytes(output.toPath()));
+        }
+    }
+
+    @Test
+    public void testDurability() throws Exception {
+        for (ConcurrentFileWriter.Durability durability : ConcurrentFileWriter.Durability.values()) {
+            File output = File.createTempFile("durablewritertest", ".txt");
+            output.deleteOnExit();
+            final ConcurrentFileWriter durableWriter = new ConcurrentFileWriter(output, 64,
+                    ConcurrentFileWriter.Backend.CHANNEL, StandardCharsets.UTF_8)
+                    .setDurability(durability)
+                    .setForceInterval(20);
+
+            ExecutorService exec = Executors.newFixedThreadPool(8);
+            List<Future<List<CompletableFuture<Void>>>> appended = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                appended.add(exec.submit(() -> {
+                    List<CompletableFuture<Void>> forced = new ArrayList<>();
+                    for (int i = 0; i < 500; i++) {
+                        forced.add(durableWriter.append("line\n"));
+                    }
+                    return forced;
+                }));
+            }
+            exec.shutdown();
+            List<CompletableFuture<Void>> all = new ArrayList<>();
+            for (Future<List<CompletableFuture<Void>>> future : appended) {
+                all.addAll(future.get(60, TimeUnit.SECONDS));
+            }
+            //complete without closing
+            CompletableFuture.allOf(all.toArray(new CompletableFuture<?>[0])).get(60, TimeUnit.SECONDS);
+            if (durability != ConcurrentFileWriter.Durability.NONE) {
+                Assert.assertEquals(8 * 500 * "line\n".length(), output.length());
+            }
+            durableWriter.close();
+            Assert.assertEquals(8 * 500 * "line\n".length(), output.length());
+        }
+    }
+
+    @Test
+    public void testOverflowPolicies() throws Exception {
+        final int nAppenders = 8;
+        final int nEach = 20000;
+        for (ConcurrentFileWriter.OverflowPolicy policy : ConcurrentFileWriter.OverflowPolicy.values()) {
+            File output = File.createTempFile("overflowwritertest", ".txt");
+            File spill = File.createTempFile("overflowwritertest", ".spill");
+            output.deleteOnExit();
+            spill.deleteOnExit();
+            //a tiny queue so it overflows
+            final ConcurrentFileWriter asyncWriter = new ConcurrentFileWriter(output, 1)
+                    .setSpillFile(spill)
+                    .setOverflowPolicy(policy);
+
+            ExecutorService exec = Executors.newFixedThreadPool(nAppenders);
+            List<Future<Integer>> failures = new ArrayList<>();
+            for (int t = 0; t < nAppenders; t++) {
+                failures.add(exec.submit(() -> {
+                    int failed = 0;
+                    for (int i = 0; i < nEach; i++) {
+                        if (asyncWriter.appendAsync("line\n").isCompletedExceptionally()) {
+                            failed++;
+                        }
+                    }
+                    return failed;
+                }));
+            }
+            exec.shutdown();
+            long nFailed = 0;
+            for (Future<Integer> failed : failures) {
+                nFailed += failed.get(60, TimeUnit.SECONDS);
+            }
+            asyncWriter.close();
+            Assert.assertEquals(0, asyncWriter.getQueueDepth());
+
+            //every append is accounted for
+            long written = output.length() / "line\n".length();
+            long spilled = spill.length() / "line\n".length();
+            Assert.assertEquals(asyncWriter.getSpilledCount(), spilled);
+            Assert.assertEquals(asyncWriter.getRejectedCount(), nFailed);
+            Assert.assertEquals(nAppenders * nEach,
+                    written + spilled + asyncWriter.getRejectedCount() + asyncWriter.getDroppedCount());
+            if (policy != ConcurrentFileWriter.OverflowPolicy.SPILL) {
+                Assert.assertEquals(0, spilled);
+            }
+            if (policy == ConcurrentFileWriter.OverflowPolicy.BLOCK) {
+                Assert.assertEquals(nAppenders * nEach, written);
+            }
+        }
+    }
+
+    @Test
+    public void testInterruptedClose() throws Exception {
+        File output = File.createTempFile("overflowwritertest", ".txt");
+        output.deleteOnExit();
+        ConcurrentFileWriter interruptedWriter = new ConcurrentFileWriter(output, 1024);
+        for (int i = 0; i < 1000; i++) {
+            interruptedWriter.append("line\n");
+        }
+        //closing still waits for everything to be written, and keeps the interrupt
+        Thread.currentThread().interrupt();
+        try {
+            interruptedWriter.close();
+            Assert.assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        Assert.assertEquals(1000 * "line\n".length(), output.length());
+    }
+
+    @Test
+    public void testAsyncAfterClose() throws Exception {
+        File output = File.createTempFile("overflowwritertest", ".txt");
+        output.deleteOnExit();
+        ConcurrentFileWriter closedWriter = new ConcurrentFileWriter(output, 1)
+                .setOverflowPolicy(ConcurrentFileWriter.OverflowPolicy.FAIL_FAST);
+        closedWriter.close();
+        Assert.assertTrue(closedWriter.appendAsync("too late\n").isCompletedExceptionally());
+    }
+
+    @Test
+    public void testCloseRace() throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            File output = File.createTempFile("closingwritertest", ".txt");
+            output.deleteOnExit();
+            final ConcurrentFileWriter closingWriter = new ConcurrentFileWriter(output, 4,
+                    ConcurrentFileWriter.Backend.CHANNEL, StandardCharsets.UTF_8)
+                    .setDurability(ConcurrentFileWriter.Durability.GROUP_COMMIT);
+            final Queue<CompletableFuture<Void>> futures = new ConcurrentLinkedQueue<>();
+            List<Thread> appenders = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                appenders.add(new Thread(() -> {
+                    try {
+                        while (true) {
+                            futures.add(closingWriter.append("line\n"));
+                        }
+                    } catch (IllegalStateException closed) {
+                        //stop appending
+                    }
+                }));
+            }
+            for (Thread appender : appenders) {
+                appender.start();
+            }
+            Thread.sleep(5);
+            closingWriter.close();
+            for (Thread appender : appenders) {
+                appender.join(10000);
+                Assert.assertFalse("An appender is stuck.", appender.isAlive());
+            }
+
+            //every append is either written or rejected, none are left waiting
+            int written = 0;
+            for (CompletableFuture<Void> future : futures) {
+                try {
+                    future.get(10, TimeUnit.SECONDS);
+                    written++;
+                } catch (ExecutionException e) {
+                    Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+                }
+            }
+            Assert.assertEquals(written, Files.readAllLines(output.toPath()).size());
+        }
+    }
+
+}
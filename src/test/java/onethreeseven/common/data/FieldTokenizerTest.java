@@ -0,0 +1,94 @@
+package onethreeseven.common.data;
+
+import onethreeseven.common.util.CharSlice;
+import org.junit.Assert;
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Testing the {@link FieldTokenizer} against the usual split and parse approach.
+ * @author Luke Bermingham
+ */
+public class FieldTokenizerTest {
+
+    @Test
+    public void testFields() {
+        FieldTokenizer tokenizer = new FieldTokenizer().reset("1497000000000, -37.81, 144.96, , tram");
+        Assert.assertEquals(5, tokenizer.getFieldCount());
+        Assert.assertEquals(1497000000000L, tokenizer.getLong(0));
+        Assert.assertEquals(-37.81, tokenizer.getDouble(1), 0);
+        Assert.assertEquals(144.96, tokenizer.getDouble(2), 0);
+        Assert.assertEquals("", tokenizer.getString(3));
+        Assert.assertEquals("tram", tokenizer.getField(4).toString());
+
+        //a custom, single char delimiter with spaces around numbers
+        tokenizer = new FieldTokenizer(",").reset(" 42 ,-7,+3.5e2,NaN");
+        Assert.assertEquals(42, tokenizer.getInt(0));
+        Assert.assertEquals(-7, tokenizer.getInt(1));
+        Assert.assertEquals(350, tokenizer.getDouble(2), 0);
+        Assert.assertTrue(Double.isNaN(tokenizer.getDouble(3)));
+    }
+
+    @Test
+    public void testSourcesAgree() {
+        String line = "12, 0.000125, été, -9223372036854775808";
+        byte[] bytes = ("xx" + line).getBytes(StandardCharsets.UTF_8);
+        char[] chars = ("xx" + line).toCharArray();
+        FieldTokenizer[] tokenizers = new FieldTokenizer[]{
+                new FieldTokenizer().reset(line),
+                new FieldTokenizer().reset(new CharSlice(chars, 2, line.length())),
+                new FieldTokenizer().reset(bytes, 2, bytes.length - 2)
+        };
+        for (FieldTokenizer tokenizer : tokenizers) {
+            Assert.assertEquals(4, tokenizer.getFieldCount());
+            Assert.assertEquals(12, tokenizer.getInt(0));
+            Assert.assertEquals(0.000125, tokenizer.getDouble(1), 0);
+            Assert.assertEquals("été", tokenizer.getString(2));
+            Assert.assertEquals(Long.MIN_VALUE, tokenizer.getLong(3));
+        }
+    }
+
+    @Test
+    public void testDoublesMatchParseDouble() {
+        Random rand = new Random(137);
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        for (int i = 0; i < 100000; i++) {
+            //mostly typical coordinates and measurements, with some full precision doubles
+            String value;
+            switch (i % 4) {
+                case 0:
+                    value = String.format(Locale.ROOT, "%.6f", rand.nextDouble() * 360 - 180);
+                    break;
+                case 1:
+                    value = String.valueOf(rand.nextInt(1000000) / 1000.0);
+                    break;
+                case 2:
+                    value = String.valueOf(rand.nextGaussian() * Math.pow(10, rand.nextInt(40) - 20));
+                    break;
+                default:
+                    value = String.valueOf(Double.longBitsToDouble(rand.nextLong()));
+            }
+            tokenizer.reset(value + ", " + value);
+            Assert.assertEquals(value, Double.doubleToLongBits(Double.parseDouble(value)),
+                    Double.doubleToLongBits(tokenizer.getDouble(1)));
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testLongOverflow() {
+        new FieldTokenizer().reset("9223372036854775808").getLong(0);
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testNotANumber() {
+        new FieldTokenizer().reset("1, 2.5x").getDouble(1);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testMissingField() {
+        new FieldTokenizer().reset("1, 2").getLong(2);
+    }
+
+}
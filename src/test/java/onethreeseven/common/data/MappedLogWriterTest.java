@@ -0,0 +1,211 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Testing concurrent appends to a {@link MappedLogWriter}.
+ * @author Luke Bermingham
+ */
+public class MappedLogWriterTest {
+
+    @Test
+    public void testManyAppenders() throws Exception {
+        File output = File.createTempFile("mappedwritertest", ".txt");
+        output.deleteOnExit();
+        //small regions, so appends often span two of them
+        final MappedLogWriter writer = new MappedLogWriter(output, 100);
+        final int nThreads = 8;
+        final int nAppends = 2000;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                RecordBuilder record = new RecordBuilder();
+                try {
+                    for (int i = 0; i < nAppends; i++) {
+                        if (i % 2 == 0) {
+                            writer.append(record.reset().field(thread).field(i).newLine());
+                        } else {
+                            writer.append((thread + ", " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                        }
+                    }
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long position = writer.getPosition();
+        writer.close();
+        writer.close();
+        Assert.assertEquals(position, output.length());
+
+        List<String> lines = Files.readAllLines(output.toPath());
+        Assert.assertEquals(nThreads * nAppends, lines.size());
+        List<String> expected = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            for (int i = 0; i < nAppends; i++) {
+                expected.add(t + ", " + i);
+            }
+        }
+        Collections.sort(lines);
+        Collections.sort(expected);
+        Assert.assertEquals(expected, lines);
+    }
+
+    @Test
+    public void testAppendToExisting() throws Exception {
+        File output = File.createTempFile("mappedwritertest", ".txt");
+        output.deleteOnExit();
+        Files.write(output.toPath(), "existing\n".getBytes(StandardCharsets.UTF_8));
+        //ascii, latin-1, wider than latin-1, a surrogate pair and an unpaired surrogate
+        String text = "plain café ab€中 x😀y \ud83d\n";
+        MappedLogWriter writer = new MappedLogWriter(output, 7);
+        Assert.assertEquals(9, writer.append(text));
+        writer.close();
+        Assert.assertEquals("existing\n" + text.replace("\ud83d\n", "?\n"),
+                new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+        Assert.assertArrayEquals(("existing\n" + text).getBytes(StandardCharsets.UTF_8), Files.readAllBytes(output.toPath()));
+
+        try {
+            writer.append("too late\n");
+            Assert.fail("Appended after closing.");
+        } catch (IllegalStateException expected) {
+            //closed
+        }
+    }
+
+    @Test
+    public void testForce() throws Exception {
+        File output = File.createTempFile("mappedwritertest", ".txt");
+        output.deleteOnExit();
+        MappedLogWriter writer = new MappedLogWriter(output, 16);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            String line = "line " + i + "\n";
+            writer.append(line);
+            expected.append(line);
+        }
+        //most of the regions have been filled and let go, they must be forced as well
+        writer.force();
+        byte[] beforeClose = Files.readAllBytes(output.toPath());
+        Assert.assertEquals(expected.toString(),
+                new String(beforeClose, 0, expected.length(), StandardCharsets.UTF_8));
+        writer.close();
+        try {
+            writer.force();
+            Assert.fail("Forced after closing.");
+        } catch (IOException expectedFailure) {
+            //closed
+        }
+    }
+
+    @Test
+    public void testFailedAppend() throws Exception {
+        File output = File.createTempFile("mappedwritertest", ".txt");
+        output.deleteOnExit();
+        MappedLogWriter writer = new MappedLogWriter(output, 10);
+        //25 chars, failing part of the way through copying the 16th
+        CharSequence failing = new CharSequence() {
+            private int calls = 0;
+
+            @Override
+            public int length() {
+                return 25;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (++calls > 25 + 15) {
+                    throw new IllegalStateException("Failed.");
+                }
+                return 'a';
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            writer.append(failing);
+            Assert.fail("The append did not fail.");
+        } catch (IllegalStateException expected) {
+            //failed
+        }
+        Assert.assertEquals(25, writer.append("bcdef"));
+        //the abandoned space counts as written, so only the region mapped ahead is left
+        Assert.assertEquals(1, writer.getMappedRegionCount());
+        writer.close();
+
+        byte[] bytes = Files.readAllBytes(output.toPath());
+        Assert.assertEquals(30, bytes.length);
+        Assert.assertEquals("aaaaaaaaaaaaaaa", new String(bytes, 0, 15, StandardCharsets.US_ASCII));
+        for (int i = 15; i < 25; i++) {
+            Assert.assertEquals(0, bytes[i]);
+        }
+        Assert.assertEquals("bcdef", new String(bytes, 25, 5, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void testErrorDuringAppend() throws Exception {
+        File output = File.createTempFile("mappedwritertest", ".txt");
+        output.deleteOnExit();
+        MappedLogWriter writer = new MappedLogWriter(output, 10);
+        //an Error rather than an exception, after the space has been claimed
+        CharSequence failing = new CharSequence() {
+            private int calls = 0;
+
+            @Override
+            public int length() {
+                return 25;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (++calls > 25 + 5) {
+                    throw new StackOverflowError();
+                }
+                return 'a';
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                throw new UnsupportedOperationException();
+            }
+        };
+        try {
+            writer.append(failing);
+            Assert.fail("The append did not fail.");
+        } catch (StackOverflowError expected) {
+            //failed
+        }
+        //close does not wait forever for the space the failed append claimed
+        Thread closer = new Thread(() -> {
+            try {
+                writer.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        closer.start();
+        closer.join(10000);
+        Assert.assertFalse("Close is stuck.", closer.isAlive());
+        Assert.assertEquals(25, output.length());
+    }
+
+}
@@ -0,0 +1,107 @@
+package onethreeseven.common.data;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Testing that the {@link MultiFileParser} merges many files the same way every time.
+ * @author Luke Bermingham
+ */
+public class MultiFileParserTest {
+
+    private static final int nFiles = 300;
+    private static File directory;
+
+    @BeforeClass
+    public static void setup() throws IOException {
+        directory = Files.createTempDirectory("multifiletest").toFile();
+        for (int i = 0; i < nFiles; i++) {
+            StringBuilder sb = new StringBuilder("device, reading\n");
+            for (int j = 0; j < 50; j++) {
+                sb.append(i).append(", ").append(j).append('\n');
+            }
+            byte[] content = sb.toString().getBytes(StandardCharsets.UTF_8);
+            //every tenth file is compressed
+            String name = String.format("device-%04d.csv", i) + ((i % 10 == 0) ? ".gz" : "");
+            try (FileOutputStream out = new FileOutputStream(new File(directory, name))) {
+                if (i % 10 == 0) {
+                    try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+                        gz.write(content);
+                    }
+                } else {
+                    out.write(content);
+                }
+            }
+        }
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        if (directory.delete()) {
+            System.out.println("Deleted test directory.");
+        }
+    }
+
+    private static List<String> expectedLines(List<Integer> deviceOrder) {
+        List<String> lines = new ArrayList<>();
+        for (int i : deviceOrder) {
+            for (int j = 0; j < 50; j++) {
+                lines.add(i + ", " + j);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testDirectoryInNameOrder() throws Exception {
+        final double[] lastProgress = new double[]{0};
+        List<String> lines = new MultiFileParser<>(new AbstractLineBasedParserTest.LinesParser().setnLinesToSkip(1))
+                .setIoThreads(8)
+                .setParseThreads(3)
+                .setProgressListener(progress -> lastProgress[0] = progress)
+                .parseDirectory(directory);
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < nFiles; i++) {
+            order.add(i);
+        }
+        Assert.assertEquals(expectedLines(order), lines);
+        Assert.assertEquals(1.0, lastProgress[0], 1e-9);
+    }
+
+    @Test
+    public void testCallerOrder() throws Exception {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".csv"));
+        Assert.assertNotNull(files);
+        List<String> lines = new MultiFileParser<>(new AbstractLineBasedParserTest.LinesParser().setnLinesToSkip(1))
+                .setOrder(Comparator.comparing(File::getName).reversed())
+                .parse(Arrays.asList(files));
+
+        List<Integer> order = new ArrayList<>();
+        for (int i = nFiles - 1; i >= 0; i--) {
+            if (i % 10 != 0) {
+                order.add(i);
+            }
+        }
+        Assert.assertEquals(expectedLines(order), lines);
+    }
+
+}
@@ -0,0 +1,81 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+/**
+ * Testing the counts collected by {@link ParseMetrics} in each parsing mode.
+ * @author Luke Bermingham
+ */
+public class ParseMetricsTest {
+
+    private static final int nRows = 100000;
+    private static File dataset;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        StringBuilder sb = new StringBuilder("time, x, mode\nheader two\n");
+        for (int i = 0; i < nRows; i++) {
+            sb.append(i).append(", ").append(i * 0.5).append(", walk\n");
+            if (i % 1000 == 0) {
+                sb.append("broken, line, here\n");
+            }
+        }
+        dataset = AbstractLineBasedParserTest.writeTestFile(sb.toString());
+    }
+
+    @Test
+    public void testCountsInEveryMode() throws Exception {
+        for (int mode = 0; mode < 3; mode++) {
+            ParseMetrics metrics = new ParseMetrics();
+            AbstractLineBasedParser<ColumnarTable> parser = new ColumnarTableTest.TableParser()
+                    .setnLinesToSkip(2)
+                    .setSkipBadLines(true)
+                    .setMetrics(metrics);
+            if (mode == 1) {
+                parser.setMemoryMapped(true);
+            } else if (mode == 2) {
+                parser.setParallelism(4);
+            }
+            ColumnarTable table = parser.parse(dataset);
+
+            Assert.assertEquals(nRows, table.getRowCount());
+            Assert.assertEquals(nRows + nRows / 1000, metrics.getLinesParsed());
+            Assert.assertEquals(nRows / 1000, metrics.getLineExceptions());
+            Assert.assertEquals(2, metrics.getLinesSkipped());
+            Assert.assertEquals(dataset.length(), metrics.getBytesRead());
+            Assert.assertTrue(metrics.getLinesPerSecond() > 0);
+            Assert.assertTrue(metrics.getParseNanos() >= 0 && metrics.getReadNanos() >= 0);
+        }
+    }
+
+    @Test(expected = NumberFormatException.class)
+    public void testBadLinesStopTheParseByDefault() throws Exception {
+        ParseMetrics metrics = new ParseMetrics();
+        try {
+            new ColumnarTableTest.TableParser().setnLinesToSkip(2).setMetrics(metrics).parse(dataset);
+        } finally {
+            Assert.assertEquals(1, metrics.getLineExceptions());
+        }
+    }
+
+    @Test
+    public void testJmx() throws Exception {
+        ParseMetrics metrics = new ParseMetrics().register("metrics test");
+        try {
+            new ColumnarTableTest.TableParser().setnLinesToSkip(2).setSkipBadLines(true).setMetrics(metrics).parse(dataset);
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("onethreeseven.common.data:type=ParseMetrics,name=" + ObjectName.quote("metrics test"));
+            Assert.assertEquals(metrics.getLinesParsed(), server.getAttribute(name, "LinesParsed"));
+            Assert.assertEquals(2L, server.getAttribute(name, "LinesSkipped"));
+        } finally {
+            metrics.unregister();
+        }
+    }
+
+}
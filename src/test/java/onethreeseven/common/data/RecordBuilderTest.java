@@ -0,0 +1,114 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Random;
+
+/**
+ * Test the {@link RecordBuilder}
+ * @author Luke Bermingham
+ */
+public class RecordBuilderTest {
+
+    @Test
+    public void testLongs() {
+        RecordBuilder record = new RecordBuilder();
+        long[] values = {0, 7, -7, 10, 1234567890123L, Integer.MIN_VALUE, Long.MAX_VALUE, Long.MIN_VALUE};
+        for (long value : values) {
+            Assert.assertEquals(Long.toString(value), record.reset().append(value).toString());
+        }
+    }
+
+    @Test
+    public void testDoubles() {
+        RecordBuilder record = new RecordBuilder();
+        Assert.assertEquals("0.1", record.reset().append(0.1).toString());
+        Assert.assertEquals("100.0", record.reset().append(100.0).toString());
+        Assert.assertEquals("-2.5", record.reset().append(-2.5).toString());
+        Assert.assertEquals("0.000015", record.reset().append(1.5e-5).toString());
+        Assert.assertEquals("1234567.25", record.reset().append(1234567.25).toString());
+        Assert.assertEquals("0.0", record.reset().append(0.0).toString());
+        Assert.assertEquals("-0.0", record.reset().append(-0.0).toString());
+        Assert.assertEquals("NaN", record.reset().append(Double.NaN).toString());
+        Assert.assertEquals("-Infinity", record.reset().append(Double.NEGATIVE_INFINITY).toString());
+
+        //whatever the format, every double must parse back to exactly the same double
+        Random random = new Random(137);
+        for (int i = 0; i < 100000; i++) {
+            double value;
+            switch (i % 4) {
+                case 0:
+                    value = random.nextDouble();
+                    break;
+                case 1:
+                    value = (random.nextDouble() - 0.5) * 360;
+                    break;
+                case 2:
+                    value = Math.round(random.nextDouble() * 1e6) / 1e3;
+                    break;
+                default:
+                    value = Double.longBitsToDouble(random.nextLong());
+            }
+            String formatted = record.reset().append(value).toString();
+            Assert.assertEquals(formatted, Double.doubleToLongBits(value),
+                    Double.doubleToLongBits(Double.parseDouble(formatted)));
+        }
+    }
+
+    @Test
+    public void testFields() {
+        RecordBuilder record = new RecordBuilder(",");
+        record.field(1).field(2.5).field("a").newLine().field(-3).newLine();
+        Assert.assertEquals("1,2.5,a\n-3\n", record.toString());
+        Assert.assertEquals(11, record.length());
+        Assert.assertEquals('a', record.charAt(6));
+        Assert.assertEquals("2.5", record.subSequence(2, 5).toString());
+        Assert.assertEquals("x", record.reset().field("x").toString());
+        //the chars of the earlier record are still in the builder, but not part of this one
+        try {
+            record.subSequence(0, 3);
+            Assert.fail("Read past the end of the record.");
+        } catch (IndexOutOfBoundsException expected) {
+            //out of range
+        }
+    }
+
+    @Test
+    public void testWriters() throws Exception {
+        File output = File.createTempFile("recordbuildertest", ".txt");
+        output.deleteOnExit();
+        MappedLogWriter writer = new MappedLogWriter(output, 1 << 12);
+        RecordBuilder record = new RecordBuilder();
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            //the builder is reused as soon as the record is appended
+            writer.append(record.reset().field(i).field(i / 8.0).field("é").newLine());
+            expected.append(i).append(", ").append(i / 8.0).append(", é\n");
+        }
+        writer.close();
+        Assert.assertEquals(expected.toString(), new String(Files.readAllBytes(output.toPath()), StandardCharsets.UTF_8));
+
+        File sessionOutput = File.createTempFile("recordbuildersessiontest", ".txt");
+        sessionOutput.deleteOnExit();
+        AbstractWriter<String> stringWriter = new AbstractWriter<String>() {
+            @Override
+            protected boolean write(BufferedWriter bw, String s) throws IOException {
+                bw.write(s);
+                return true;
+            }
+        };
+        stringWriter.setDelimiter(";");
+        try (AbstractWriter<String>.Session session = stringWriter.open(sessionOutput)) {
+            RecordBuilder sessionRecord = stringWriter.newRecordBuilder();
+            session.write(sessionRecord.field(1L).field(0.5).newLine());
+            session.write(sessionRecord.reset().field(2L).field(0.25).newLine());
+        }
+        Assert.assertEquals("1;0.5\n2;0.25\n", new String(Files.readAllBytes(sessionOutput.toPath())));
+    }
+
+}
@@ -0,0 +1,135 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Testing a parse-to-write pipeline made from a {@link RecordPublisher} and a {@link WriterSubscriber}.
+ * @author Luke Bermingham
+ */
+public class RecordPublisherTest {
+
+    @Test
+    public void testParseToWritePipeline() throws Exception {
+        final int nRecords = 50000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < nRecords; i++) {
+            sb.append(i).append(", ").append(i * 2).append('\n');
+        }
+        File input = AbstractLineBasedParserTest.writeTestFile(sb.toString());
+        File output = File.createTempFile("publishertest", ".txt");
+        output.deleteOnExit();
+
+        ConcurrentFileWriter writer = new ConcurrentFileWriter(output, 64);
+        WriterSubscriber<double[]> subscriber = new WriterSubscriber<>(writer, r -> (long) r[1] + "\n", 256);
+        new RecordPublisher<>(new AbstractRecordParserTest.PairParser(), input).subscribe(subscriber);
+
+        long written = subscriber.getCompletion().get(60, TimeUnit.SECONDS);
+        writer.close();
+        Assert.assertEquals(nRecords, written);
+
+        try (BufferedReader br = new BufferedReader(new FileReader(output))) {
+            for (int i = 0; i < nRecords; i++) {
+                Assert.assertEquals(String.valueOf(i * 2), br.readLine());
+            }
+            Assert.assertNull(br.readLine());
+        }
+    }
+
+    @Test
+    public void testOnlyOneSubscriber() throws Exception {
+        File input = AbstractLineBasedParserTest.writeTestFile("1, 2\n");
+        File output = File.createTempFile("publishertest", ".txt");
+        output.deleteOnExit();
+        ConcurrentFileWriter writer = new ConcurrentFileWriter(output, 4);
+
+        RecordPublisher<double[]> publisher = new RecordPublisher<>(new AbstractRecordParserTest.PairParser(), input);
+        WriterSubscriber<double[]> first = new WriterSubscriber<>(writer, r -> r[0] + "\n", 1);
+        WriterSubscriber<double[]> second = new WriterSubscriber<>(writer, r -> r[0] + "\n", 1);
+        publisher.subscribe(first);
+        publisher.subscribe(second);
+
+        Assert.assertEquals(1L, (long) first.getCompletion().get(60, TimeUnit.SECONDS));
+        Assert.assertTrue(second.getCompletion().isCompletedExceptionally());
+        writer.close();
+    }
+
+    @Test
+    public void testFailedAppendCancels() throws Exception {
+        File output = File.createTempFile("publishertest", ".txt");
+        output.deleteOnExit();
+        ConcurrentFileWriter writer = new ConcurrentFileWriter(output, 4);
+        AtomicBoolean cancelled = new AtomicBoolean(false);
+        WriterSubscriber<double[]> subscriber = new WriterSubscriber<>(writer, r -> r[0] + "\n", 8);
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+            }
+
+            @Override
+            public void cancel() {
+                cancelled.set(true);
+            }
+        });
+
+        //an interrupted append hands back a failed future rather than throwing
+        Thread.currentThread().interrupt();
+        try {
+            subscriber.onNext(new double[]{1, 2});
+        } finally {
+            Thread.interrupted();
+        }
+        subscriber.onComplete();
+        writer.close();
+
+        Assert.assertTrue(cancelled.get());
+        try {
+            subscriber.getCompletion().get(60, TimeUnit.SECONDS);
+            Assert.fail("The failed append should fail the completion.");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof InterruptedException);
+        }
+    }
+
+    @Test
+    public void testDefaultExecutorThreads() throws Exception {
+        File input = AbstractLineBasedParserTest.writeTestFile("1, 2\n");
+        AtomicReference<Thread> deliveredOn = new AtomicReference<>();
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        new RecordPublisher<>(new AbstractRecordParserTest.PairParser(), input).subscribe(new Flow.Subscriber<double[]>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                subscription.request(Long.MAX_VALUE);
+            }
+
+            @Override
+            public void onNext(double[] item) {
+                deliveredOn.set(Thread.currentThread());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                done.completeExceptionally(throwable);
+            }
+
+            @Override
+            public void onComplete() {
+                done.complete(null);
+            }
+        });
+        done.get(60, TimeUnit.SECONDS);
+        //not the common pool, which blocking subscribers would starve
+        Assert.assertTrue(deliveredOn.get().getName().startsWith("Record-Publisher-"));
+        Assert.assertTrue(deliveredOn.get().isDaemon());
+    }
+
+}
@@ -0,0 +1,209 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Testing rolling, compressing and retaining segments with a {@link RollingFileWriter}.
+ * @author Luke Bermingham
+ */
+public class RollingFileWriterTest {
+
+    private static File newBase() throws Exception {
+        File directory = Files.createTempDirectory("rollingwritertest").toFile();
+        directory.deleteOnExit();
+        return new File(directory, "trips.csv");
+    }
+
+    private static List<String> readSegments(List<File> segments) throws Exception {
+        List<String> lines = new ArrayList<>();
+        for (File segment : segments) {
+            segment.deleteOnExit();
+            InputStream in = new FileInputStream(segment);
+            if (segment.getName().endsWith(".gz")) {
+                in = new GZIPInputStream(in);
+            }
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    lines.add(line);
+                }
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testRollOnSize() throws Exception {
+        File base = newBase();
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8)
+                .setMaxSegmentBytes(1000);
+        for (int i = 0; i < 2000; i++) {
+            writer.append("line-" + i + "\n");
+        }
+        writer.close();
+
+        List<File> segments = writer.getSegments();
+        Assert.assertTrue(segments.size() > 10);
+        for (int i = 0; i < segments.size() - 1; i++) {
+            Assert.assertTrue(segments.get(i).length() >= 1000);
+        }
+        List<String> lines = readSegments(segments);
+        Assert.assertEquals(2000, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            Assert.assertEquals("line-" + i, lines.get(i));
+        }
+        //nothing left active
+        for (String name : base.getParentFile().list()) {
+            Assert.assertFalse(name.endsWith(".active"));
+        }
+
+        //numbering carries on after the segments already there
+        RollingFileWriter again = new RollingFileWriter(base, 16, StandardCharsets.UTF_8);
+        again.append("after\n");
+        again.close();
+        List<File> allSegments = again.getSegments();
+        Assert.assertEquals(segments.size() + 1, allSegments.size());
+        Assert.assertEquals("after", readSegments(allSegments.subList(segments.size(), allSegments.size())).get(0));
+    }
+
+    @Test
+    public void testCompressAndRetain() throws Exception {
+        File base = newBase();
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8)
+                .setMaxSegmentBytes(500)
+                .setCompress(true)
+                .setRetention(3);
+        for (int i = 0; i < 2000; i++) {
+            writer.append("line-" + i + "\n");
+        }
+        writer.close();
+
+        List<File> segments = writer.getSegments();
+        Assert.assertEquals(3, segments.size());
+        for (File segment : segments) {
+            Assert.assertTrue(segment.getName().endsWith(".gz"));
+        }
+        //the newest lines are kept, in order
+        List<String> lines = readSegments(segments);
+        int first = 2000 - lines.size();
+        for (int i = 0; i < lines.size(); i++) {
+            Assert.assertEquals("line-" + (first + i), lines.get(i));
+        }
+    }
+
+    @Test
+    public void testRollOnTimeWhileIdle() throws Exception {
+        File base = newBase();
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8)
+                .setMaxSegmentMillis(50);
+        writer.append("lonely line\n");
+        //rolls without any more appends
+        long deadline = System.currentTimeMillis() + 10000;
+        while (writer.getSegments().isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(1, writer.getSegments().size());
+        writer.close();
+        Assert.assertEquals("lonely line", readSegments(writer.getSegments()).get(0));
+    }
+
+    @Test
+    public void testCompressLeftoverSegments() throws Exception {
+        File base = newBase();
+        RollingFileWriter uncompressed = new RollingFileWriter(base, 16, StandardCharsets.UTF_8)
+                .setMaxSegmentBytes(500);
+        for (int i = 0; i < 200; i++) {
+            uncompressed.append("line-" + i + "\n");
+        }
+        uncompressed.close();
+        int nSegments = uncompressed.getSegments().size();
+        Assert.assertTrue(nSegments > 1);
+        //as though a crash cut a compression short
+        File partial = new File(base.getParentFile(), "trips.csv.000001.gz.tmp");
+        Files.write(partial.toPath(), new byte[]{1, 2, 3});
+
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8).setCompress(true);
+        writer.close();
+        Assert.assertFalse(partial.exists());
+        List<File> segments = writer.getSegments();
+        Assert.assertEquals(nSegments, segments.size());
+        for (File segment : segments) {
+            Assert.assertTrue(segment.getName().endsWith(".gz"));
+        }
+        List<String> lines = readSegments(segments);
+        Assert.assertEquals(200, lines.size());
+        for (int i = 0; i < lines.size(); i++) {
+            Assert.assertEquals("line-" + i, lines.get(i));
+        }
+    }
+
+    @Test
+    public void testCompressFailure() throws Exception {
+        File base = newBase();
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8)
+                .setMaxSegmentBytes(100)
+                .setCompress(true);
+        //a directory where the first segment's compressed copy would go, so compressing it fails
+        File blocker = new File(base.getParentFile(), "trips.csv.000001.gz.tmp");
+        Assert.assertTrue(blocker.mkdir());
+        File inBlocker = new File(blocker, "keep");
+        Files.write(inBlocker.toPath(), new byte[]{1});
+
+        boolean failed = false;
+        long deadline = System.currentTimeMillis() + 10000;
+        for (int i = 0; !failed && System.currentTimeMillis() < deadline; i++) {
+            try {
+                writer.append("line-" + i + "\n");
+                Thread.sleep(1);
+            } catch (UncheckedIOException e) {
+                failed = true;
+            }
+        }
+        Assert.assertTrue(failed);
+        try {
+            //the segment completed on close fails to compress as well
+            writer.close();
+        } catch (UncheckedIOException e) {
+            //expected
+        }
+        //the segment is kept uncompressed
+        Assert.assertTrue(new File(base.getParentFile(), "trips.csv.000001").exists());
+        Assert.assertTrue(inBlocker.delete());
+        Assert.assertTrue(blocker.delete());
+    }
+
+    @Test
+    public void testCompressFailureOnClose() throws Exception {
+        File base = newBase();
+        RollingFileWriter writer = new RollingFileWriter(base, 16, StandardCharsets.UTF_8).setCompress(true);
+        File blocker = new File(base.getParentFile(), "trips.csv.000001.gz.tmp");
+        Assert.assertTrue(blocker.mkdir());
+        File inBlocker = new File(blocker, "keep");
+        Files.write(inBlocker.toPath(), new byte[]{1});
+
+        writer.append("only line\n");
+        //the only segment is completed, and fails to compress, while closing
+        try {
+            writer.close();
+            Assert.fail("The failed compression should be thrown from close.");
+        } catch (UncheckedIOException e) {
+            Assert.assertNotNull(e.getCause());
+        }
+        Assert.assertTrue(new File(base.getParentFile(), "trips.csv.000001").exists());
+        Assert.assertTrue(inBlocker.delete());
+        Assert.assertTrue(blocker.delete());
+    }
+
+}
@@ -0,0 +1,145 @@
+package onethreeseven.common.data;
+
+import org.junit.Assert;
+import org.junit.Test;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Testing writing many files from many threads with a {@link ShardedFileWriter}.
+ * @author Luke Bermingham
+ */
+public class ShardedFileWriterTest {
+
+    @Test
+    public void testManyFilesFewThreads() throws Exception {
+        final int nDevices = 300;
+        final int nAppenders = 16;
+        final int nEach = 2000;
+        final File directory = Files.createTempDirectory("shardedwritertest").toFile();
+        directory.deleteOnExit();
+
+        //far fewer open files than devices, so files are closed and opened again
+        final ShardedFileWriter<Integer> writer = new ShardedFileWriter<>(
+                device -> new File(directory, "device-" + device + ".txt"), 4, 32, 1024);
+
+        ExecutorService exec = Executors.newFixedThreadPool(nAppenders);
+        for (int t = 0; t < nAppenders; t++) {
+            final int thread = t;
+            exec.submit(() -> {
+                for (int i = 0; i < nEach; i++) {
+                    writer.append((thread * 31 + i) % nDevices, thread + "," + i + "\n");
+                }
+            });
+        }
+        exec.shutdown();
+        Assert.assertTrue(exec.awaitTermination(60, TimeUnit.SECONDS));
+        Assert.assertTrue(writer.getOpenFileCount() <= 32);
+        writer.close();
+        Assert.assertEquals(0, writer.getOpenFileCount());
+
+        //each line went to the right file, in order for each appending thread
+        int[] nextExpected = new int[nAppenders];
+        int nLines = 0;
+        for (int device = 0; device < nDevices; device++) {
+            File file = new File(directory, "device-" + device + ".txt");
+            file.deleteOnExit();
+            int[] lastSeen = new int[nAppenders];
+            java.util.Arrays.fill(lastSeen, -1);
+            try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+                String line;
+                while ((line = br.readLine()) != null) {
+                    String[] parts = line.split(",");
+                    int thread = Integer.parseInt(parts[0]);
+                    int i = Integer.parseInt(parts[1]);
+                    Assert.assertEquals(device, (thread * 31 + i) % nDevices);
+                    Assert.assertTrue(i > lastSeen[thread]);
+                    lastSeen[thread] = i;
+                    nextExpected[thread]++;
+                    nLines++;
+                }
+            }
+        }
+        Assert.assertEquals(nAppenders * nEach, nLines);
+        for (int count : nextExpected) {
+            Assert.assertEquals(nEach, count);
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendAfterClose() throws Exception {
+        final File directory = Files.createTempDirectory("shardedwritertest").toFile();
+        directory.deleteOnExit();
+        ShardedFileWriter<String> writer = new ShardedFileWriter<>(key -> new File(directory, key), 1, 1, 1);
+        writer.close();
+        writer.append("a", "too late\n");
+    }
+
+    @Test
+    public void testCloseRace() throws Exception {
+        for (int attempt = 0; attempt < 20; attempt++) {
+            final File directory = Files.createTempDirectory("shardedwritertest").toFile();
+            directory.deleteOnExit();
+            final ShardedFileWriter<Integer> writer = new ShardedFileWriter<>(
+                    device -> new File(directory, "device-" + device + ".txt"), 2, 4, 4);
+            final AtomicInteger appended = new AtomicInteger();
+            List<Thread> appenders = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                appenders.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; ; i++) {
+                            writer.append((thread + i) % 8, "line\n");
+                            appended.incrementAndGet();
+                        }
+                    } catch (IllegalStateException closed) {
+                        //stop appending
+                    }
+                }));
+            }
+            for (Thread appender : appenders) {
+                appender.start();
+            }
+            Thread.sleep(5);
+            writer.close();
+            for (Thread appender : appenders) {
+                appender.join(10000);
+                Assert.assertFalse("An appender is stuck.", appender.isAlive());
+            }
+
+            //every append which returned was written
+            int nLines = 0;
+            for (File file : directory.listFiles()) {
+                file.deleteOnExit();
+                nLines += Files.readAllLines(file.toPath()).size();
+            }
+            Assert.assertEquals(appended.get(), nLines);
+        }
+    }
+
+    @Test
+    public void testInterruptedAppend() throws Exception {
+        final File directory = Files.createTempDirectory("shardedwritertest").toFile();
+        directory.deleteOnExit();
+        ShardedFileWriter<String> writer = new ShardedFileWriter<>(key -> new File(directory, key), 1, 1, 1);
+        Thread.currentThread().interrupt();
+        try {
+            writer.append("a", "interrupted\n");
+            Assert.fail("Appended while interrupted.");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(Thread.interrupted());
+        } finally {
+            writer.close();
+        }
+        Assert.assertFalse(new File(directory, "a").exists());
+    }
+
+}
@@ -2,8 +2,15 @@ package onethreeseven.common.util;
 
 import org.junit.Assert;
 import org.junit.Test;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -34,6 +41,104 @@ public class FileUtilTest {
         tempFile.deleteOnExit();
     }
 
+    @Test
+    public void testReadUntilCustomTerminators() throws Exception {
+        //a long line so the terminator straddles the blocks readUntil reads in
+        StringBuilder longLine = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            longLine.append('x');
+        }
+        String content = "a<|>b<<|>" + longLine + "<|>c|d";
+        char[][] terminators = new char[][]{"<|>".toCharArray(), "|d".toCharArray()};
+
+        BufferedReader br = new BufferedReader(new StringReader(content));
+        StringBuilder sb = new StringBuilder();
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = FileUtil.readUntil(br, terminators, sb, false)) != null) {
+            lines.add(line);
+        }
+        Assert.assertEquals(Arrays.asList("a", "b<", longLine.toString(), "c"), lines);
+
+        br = new BufferedReader(new StringReader(content));
+        Assert.assertEquals("a<|>", FileUtil.readUntil(br, terminators, sb, true));
+        Assert.assertEquals("b<<|>", FileUtil.readUntil(br, terminators, sb, true));
+    }
+
+    @Test
+    public void testReadUntilCarriesOnFromBuilder() throws Exception {
+        char[][] terminators = new char[][]{"<|>".toCharArray()};
+        TerminatorMatcher matcher = TerminatorMatcher.ofChars(terminators);
+        //the terminator starts in what the builder already holds
+        StringBuilder sb = new StringBuilder("ab<");
+        BufferedReader br = new BufferedReader(new StringReader("|>cd<|>"));
+        Assert.assertEquals("ab", FileUtil.readUntil(br, matcher, sb, false));
+        Assert.assertEquals(0, sb.length());
+        Assert.assertEquals("cd<|>", FileUtil.readUntil(br, matcher, sb, true));
+
+        sb.append("x<|");
+        br = new BufferedReader(new StringReader(">y"));
+        Assert.assertEquals("x<|>", FileUtil.readUntil(br, terminators, sb, true));
+        Assert.assertEquals("y", FileUtil.readUntil(br, terminators, sb, true));
+    }
+
+    @Test
+    public void testReadUntilWithoutTerminators() throws Exception {
+        //no terminators reads to the end, as it always has
+        BufferedReader br = new BufferedReader(new StringReader("a\nb<|>c"));
+        StringBuilder sb = new StringBuilder();
+        Assert.assertEquals("a\nb<|>c", FileUtil.readUntil(br, new char[0][], sb, false));
+        Assert.assertNull(FileUtil.readUntil(br, new char[0][], sb, false));
+
+        //but an empty terminator would end every line straight away, so it is refused
+        try {
+            FileUtil.readUntil(br, new char[][]{"\n".toCharArray(), new char[0]}, sb, false);
+            Assert.fail("An empty terminator should be refused.");
+        } catch (IllegalArgumentException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void testLineReaderMatchesReadUntil() throws Exception {
+        //the first terminator supplied wins when two end on the same char
+        char[][] terminators = new char[][]{"\r\n".toCharArray(), "\n".toCharArray(), "b\r\n".toCharArray()};
+        String content = "ab\r\ncd\n\nef";
+        List<String> expected = Arrays.asList("ab", "cd", "", "ef");
+
+        List<String> fromReadUntil = new ArrayList<>();
+        BufferedReader br = new BufferedReader(new StringReader(content));
+        StringBuilder sb = new StringBuilder();
+        String line;
+        while ((line = FileUtil.readUntil(br, terminators, sb, false)) != null) {
+            fromReadUntil.add(line);
+        }
+        Assert.assertEquals(expected, fromReadUntil);
+
+        //a one char buffer means every terminator crosses a refill
+        List<String> fromLineReader = new ArrayList<>();
+        LineReader reader = new LineReader(new StringReader(content), TerminatorMatcher.ofChars(terminators), false, 1);
+        while (reader.next()) {
+            fromLineReader.add(reader.line().toString());
+        }
+        Assert.assertEquals(expected, fromLineReader);
+        Assert.assertEquals(content.length(), reader.consumed());
+    }
+
+    @Test
+    public void testLineReaderConsumedBytes() throws IOException {
+        //latin-1, wider than latin-1 and a surrogate pair
+        String content = "café\r\nab€中\n\nx\ud83d\ude00y";
+        LineReader reader = new LineReader(new StringReader(content), null, false, 2);
+        int nLines = 0;
+        while (reader.next()) {
+            nLines++;
+        }
+        Assert.assertEquals(4, nLines);
+        Assert.assertEquals(content.length(), reader.consumed());
+        Assert.assertEquals(content.getBytes(StandardCharsets.UTF_8).length, reader.consumedBytes());
+    }
+
     @Test
     public void testMakeTmpFile() {
         File tmpFile = FileUtil.makeTempFile();
@@ -0,0 +1,81 @@
+package onethreeseven.common.util;
+
+import onethreeseven.common.data.FieldTokenizer;
+import org.junit.Assert;
+import org.junit.Test;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Testing the {@link StringTable} gives back the same instance for the same content.
+ * @author Luke Bermingham
+ */
+public class StringTableTest {
+
+    @Test
+    public void testSameInstanceFromEverySource() {
+        StringTable table = new StringTable(1024);
+        String first = table.intern("tram-42");
+        char[] chars = "xxtram-42".toCharArray();
+        byte[] bytes = "xxtram-42".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(first, table.intern(chars, 2, 7));
+        Assert.assertSame(first, table.intern(bytes, 2, 7));
+        Assert.assertSame(first, table.intern(new CharSlice(chars, 2, 7)));
+        Assert.assertSame(first, table.intern(new StringBuilder("tram-42")));
+
+        //non-ASCII bytes are decoded first
+        String accented = table.intern("café");
+        byte[] utf8 = "café".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(accented, table.intern(utf8, 0, utf8.length));
+
+        Assert.assertEquals("", table.intern(new char[0], 0, 0));
+    }
+
+    @Test
+    public void testBounded() {
+        StringTable table = new StringTable(10, 8);
+        Assert.assertEquals(16, table.getCapacity());
+        //far more values than slots, every answer is still right
+        for (int i = 0; i < 10000; i++) {
+            String value = "id" + i;
+            Assert.assertEquals(value, table.intern(value.toCharArray(), 0, value.length()));
+        }
+        //too long to keep
+        char[] longValue = "a much longer value".toCharArray();
+        Assert.assertNotSame(table.intern(longValue, 0, longValue.length), table.intern(longValue, 0, longValue.length));
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final StringTable table = new StringTable(4096);
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        Future<?>[] futures = new Future<?>[8];
+        for (int t = 0; t < futures.length; t++) {
+            futures[t] = pool.submit(() -> {
+                for (int i = 0; i < 200000; i++) {
+                    String value = "device-" + (i % 500);
+                    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                    Assert.assertEquals(value, table.intern(bytes, 0, bytes.length));
+                }
+            });
+        }
+        for (Future<?> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testFieldTokenizer() {
+        StringTable table = new StringTable(256);
+        FieldTokenizer tokenizer = new FieldTokenizer();
+        String first = tokenizer.reset("1, walk, 2").getString(1, table);
+        byte[] bytes = "3, walk, 4".getBytes(StandardCharsets.UTF_8);
+        Assert.assertSame(first, tokenizer.reset(bytes, 0, bytes.length).getString(1, table));
+        Assert.assertSame(first, tokenizer.reset(new StringBuilder("5, walk")).getString(1, table));
+    }
+
+}